@@ -2,14 +2,14 @@ package bean;
 
 import android.content.Context;
 
+import com.mingbikes.acquisition.DeviceSnapshot;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 
-import utils.DeviceInfo;
-
 /**
  * crash detail bean
  */
@@ -32,14 +32,8 @@ public class CrashDetail {
 
     public String getCrashData(Context context) {
 
-        final JSONObject json = new JSONObject();
-
-        fillJSONIfValuesNotEmpty(json,
-                "_device", DeviceInfo.getDevice(),
-                "_os", DeviceInfo.getOS(),
-                "_os_version", DeviceInfo.getOSVersion(),
-                "_app_version", DeviceInfo.getAppVersion(context)
-        );
+        // the device part is serialized once per process and reused for every report
+        String result = "{" + DeviceSnapshot.get(context).getStaticJson() + "}";
 
 //        try {
 //            json.put("operations", new JSONObject(operations));
@@ -47,8 +41,6 @@ public class CrashDetail {
 //
 //        }
 
-        String result = json.toString();
-
         try {
             result = java.net.URLEncoder.encode(result, "UTF-8");
         } catch (UnsupportedEncodingException ignored) {
@@ -1,7 +1,11 @@
 package com.mingbikes.acquisition;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Map;
+
+import utils.HttpConnectionUtils;
 
 /**
  *
@@ -14,8 +18,25 @@ public class Acquisition {
      */
     public static final String TAG = "mingbikes.acquisition";
 
-    public boolean enableLogging_ = false;
+    /**
+     * Number of stored events that are sent to the server together.
+     */
+    static final int EVENT_QUEUE_SIZE_THRESHOLD = 10;
+    static final int DEFAULT_EVENT_BUFFER_CAPACITY = 1024;
+    static final long DEFAULT_EVENT_BLOCK_TIMEOUT_MILLIS = 10;
+
+    public volatile boolean enableLogging_ = false;
     private HttpConnectionQueue _connectionQueue;
+    private volatile EventAggregator _eventAggregator;
+    private final EventSampler _eventSampler = new EventSampler();
+    private final EventTimers _eventTimers = new EventTimers();
+    private int _eventFlushMaxBuckets = EventAggregator.DEFAULT_MAX_BUCKETS;
+    private long _eventFlushIntervalMillis = EventAggregator.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private volatile EventRingBuffer _eventBuffer;
+    private volatile EventWriter _eventWriter;
+    private int _eventBufferCapacity = DEFAULT_EVENT_BUFFER_CAPACITY;
+    private OverflowPolicy _eventOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long _eventBlockTimeoutMillis = DEFAULT_EVENT_BLOCK_TIMEOUT_MILLIS;
 
     // see http://stackoverflow.com/questions/7048198/thread-safe-singletons-in-java
     private static class SingletonHolder {
@@ -29,6 +50,374 @@ public class Acquisition {
         return SingletonHolder.instance;
     }
 
+    /**
+     * Constructs an instance that is independent of {@link #sharedInstance}, prefer the
+     * shared one.
+     */
+    public Acquisition() {
+        _connectionQueue = new HttpConnectionQueue();
+    }
+
+    /**
+     * Initializes the Acquisition SDK. Call from your main Activity's onCreate() method.
+     * @param context application context
+     * @param serverURL URL of the server to submit data to
+     * @return Acquisition instance
+     * @throws IllegalArgumentException if context is null or serverURL is empty
+     */
+    public synchronized Acquisition init(final Context context, final String serverURL) {
+        if (context == null) {
+            throw new IllegalArgumentException("valid context is required");
+        }
+        if (serverURL == null || serverURL.length() == 0) {
+            throw new IllegalArgumentException("valid serverURL is required");
+        }
+        if (_connectionQueue.getAcquisitionStore() == null) {
+            _connectionQueue.setAcquisitionStore(new AcquisitionStore(context));
+            _connectionQueue.openStore();
+        }
+        _connectionQueue.setContext(context);
+        _connectionQueue.setServerURL(serverURL);
+        _connectionQueue.watchNetwork();
+        if (_eventAggregator == null) {
+            final EventAggregator aggregator = new EventAggregator(_connectionQueue.getAcquisitionStore(), _eventSampler);
+            aggregator.setFlushPolicy(_eventFlushMaxBuckets, _eventFlushIntervalMillis);
+            _eventAggregator = aggregator;
+        }
+        if (_eventBuffer == null) {
+            final EventRingBuffer buffer = new EventRingBuffer(_eventBufferCapacity, _eventOverflowPolicy, _eventBlockTimeoutMillis);
+            final EventWriter writer = new EventWriter(buffer, _eventAggregator, new Runnable() {
+                @Override
+                public void run() {
+                    sendEvents(false);
+                }
+            });
+            _eventAggregator.setBucketListener(new Runnable() {
+                @Override
+                public void run() {
+                    writer.wake();
+                }
+            });
+            writer.start();
+            _eventWriter = writer;
+            _eventBuffer = buffer;
+        }
+        return this;
+    }
+
+    /**
+     * Configures the in-memory buffer used by {@link #record}. Must be called before init.
+     * @param capacity maximum number of events waiting for the writer thread
+     * @param policy what to do with new events when the buffer is full
+     * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits for room
+     * @return Acquisition instance
+     * @throws IllegalStateException if the SDK has already been initialized
+     */
+    public synchronized Acquisition setEventBuffer(final int capacity, final OverflowPolicy policy, final long blockTimeoutMillis) {
+        if (_eventBuffer != null) {
+            throw new IllegalStateException("event buffer must be configured before init");
+        }
+        if (capacity < 1 || policy == null || blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("invalid event buffer configuration");
+        }
+        _eventBufferCapacity = capacity;
+        _eventOverflowPolicy = policy;
+        _eventBlockTimeoutMillis = blockTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Records a custom event without blocking or doing any I/O on the calling thread.
+     * @param key name of the custom event, required, must not be the empty string
+     * @return true if the event was accepted, false if it was dropped because the buffer is full
+     */
+    public boolean record(final String key) {
+        return record(key, null, 1, 0);
+    }
+
+    /**
+     * Records a custom event without blocking or doing any I/O on the calling thread.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param segmentation segmentation dictionary to associate with the event, can be null
+     * @return true if the event was accepted, false if it was dropped because the buffer is full
+     */
+    public boolean record(final String key, final Map<String, String> segmentation) {
+        return record(key, segmentation, 1, 0);
+    }
+
+    /**
+     * Records a custom event without blocking or doing any I/O on the calling thread. The event
+     * is handed to a background writer that coalesces and persists it, see {@link #recordEvent}.
+     * Only {@link OverflowPolicy#BLOCK} can make this call wait, for at most its timeout.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param segmentation segmentation dictionary to associate with the event, can be null,
+     *                     must not be modified after this call
+     * @param count count to associate with the event, should be more than zero
+     * @param sum sum to associate with the event
+     * @return true if the event was accepted, false if it was dropped because the buffer is full
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     * @throws IllegalArgumentException if key is null or empty, or count is less than 1
+     */
+    public boolean record(final String key, final Map<String, String> segmentation, final int count, final double sum) {
+        final EventRingBuffer buffer = _eventBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("Acquisition.sharedInstance().init must be called before record");
+        }
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("Valid event key is required");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("Event count must be greater than zero");
+        }
+
+        final EventSampler.Policy policy = _eventSampler.policy(key, SamplingStage.HEAD);
+        if (policy != null && !policy.admit(count, sum)) {
+            // counted in the next event of the key that is kept
+            return true;
+        }
+        final Event event = new Event(key);
+        event.segmentation = segmentation;
+        event.count = policy != null ? policy.weighCount(count) : count;
+        event.sum = policy != null ? policy.weighSum(sum) : sum;
+        final long start = System.nanoTime();
+        final boolean accepted = buffer.publish(event);
+        _connectionQueue.getMetrics().recordEnqueue(System.nanoTime() - start);
+        return accepted;
+    }
+
+    /**
+     * Returns the number of events passed to {@link #record} that were dropped because
+     * the buffer was full.
+     */
+    public long getDroppedEventCount() {
+        final EventRingBuffer buffer = _eventBuffer;
+        return buffer != null ? buffer.getDroppedCount() : 0;
+    }
+
+    /**
+     * Sets when recorded events, coalesced in memory by key and segmentation, are persisted.
+     * @param maxBuckets number of distinct key/segmentation pairs that triggers a flush
+     * @param flushIntervalMillis maximum time events stay in memory before they are persisted
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setEventAggregation(final int maxBuckets, final long flushIntervalMillis) {
+        if (maxBuckets < 1 || flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("invalid event aggregation limits");
+        }
+        _eventFlushMaxBuckets = maxBuckets;
+        _eventFlushIntervalMillis = flushIntervalMillis;
+        if (_eventAggregator != null) {
+            _eventAggregator.setFlushPolicy(maxBuckets, flushIntervalMillis);
+        }
+        return this;
+    }
+
+    /**
+     * Records a custom event with no segmentation values, a count of one and a sum of zero.
+     * @param key name of the custom event, required, must not be the empty string
+     */
+    public void recordEvent(final String key) {
+        recordEvent(key, null, 1, 0);
+    }
+
+    /**
+     * Records a custom event with no segmentation values, the specified count, and a sum of zero.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param count count to associate with the event, should be more than zero
+     */
+    public void recordEvent(final String key, final int count) {
+        recordEvent(key, null, count, 0);
+    }
+
+    /**
+     * Records a custom event with no segmentation values, and the specified count and sum.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param count count to associate with the event, should be more than zero
+     * @param sum sum to associate with the event
+     */
+    public void recordEvent(final String key, final int count, final double sum) {
+        recordEvent(key, null, count, sum);
+    }
+
+    /**
+     * Records a custom event with the specified segmentation values and count, and a sum of zero.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param segmentation segmentation dictionary to associate with the event, can be null
+     * @param count count to associate with the event, should be more than zero
+     */
+    public void recordEvent(final String key, final Map<String, String> segmentation, final int count) {
+        recordEvent(key, segmentation, count, 0);
+    }
+
+    /**
+     * Records a custom event with the specified values. Events with the same key and
+     * segmentation are coalesced in memory and persisted as one record.
+     * @param key name of the custom event, required, must not be the empty string
+     * @param segmentation segmentation dictionary to associate with the event, can be null
+     * @param count count to associate with the event, should be more than zero
+     * @param sum sum to associate with the event
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     * @throws IllegalArgumentException if key is null or empty, or count is less than 1
+     */
+    public void recordEvent(final String key, final Map<String, String> segmentation, final int count, final double sum) {
+        final EventAggregator aggregator = _eventAggregator;
+        if (aggregator == null) {
+            throw new IllegalStateException("Acquisition.sharedInstance().init must be called before recordEvent");
+        }
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("Valid event key is required");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("Event count must be greater than zero");
+        }
+
+        final EventSampler.Policy policy = _eventSampler.policy(key, SamplingStage.HEAD);
+        if (policy != null && !policy.admit(count, sum)) {
+            return;
+        }
+        if (aggregator.add(key, segmentation, policy != null ? policy.weighCount(count) : count,
+                policy != null ? policy.weighSum(sum) : sum)) {
+            sendEvents(false);
+        }
+    }
+
+    /**
+     * Sets per-key sampling and rate limits for high-volume events, replacing the previous
+     * ones. Can be called at any time, for example with a config fetched from a server. Events
+     * that are not kept add their count and sum to the next event of the key that is kept, so
+     * totals stay unbiased while fewer events reach the store. {@link #record} returns true for
+     * them, as they are accounted for.
+     * @param config JSON object of policies by event key, for example
+     *               <code>{"scroll": {"sample": 0.1, "limit": 20, "burst": 50, "stage": "tail"}}</code>
+     *               keeps one in ten scroll events and at most 20 a second after a burst of 50.
+     *               sample defaults to 1, limit to none, burst to the limit and stage to
+     *               {@link SamplingStage#HEAD}. Null or empty removes all policies.
+     * @return Acquisition instance
+     * @throws IllegalArgumentException if the config is not valid
+     */
+    public synchronized Acquisition setSamplingPolicies(final String config) {
+        _eventSampler.update(config);
+        return this;
+    }
+
+    /**
+     * Starts timing the event, {@link #endEvent} records the time since as its duration. One
+     * timing per key runs at a time.
+     * @param key name of the event, required, must not be the empty string
+     * @return false if the event is already being timed, it then keeps its start time
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     * @throws IllegalArgumentException if key is null or empty
+     */
+    public boolean startEvent(final String key) {
+        timedEventAggregator(key);
+        return _eventTimers.start(key);
+    }
+
+    /**
+     * Ends timing the event and records it without segmentation, see {@link #endEvent(String, Map)}.
+     * @param key name of the event, required, must not be the empty string
+     * @return false if the event was not being timed
+     */
+    public boolean endEvent(final String key) {
+        return endEvent(key, null);
+    }
+
+    /**
+     * Ends timing the event and records it with its duration in milliseconds as sum. Durations
+     * with the same key and segmentation are coalesced like {@link #recordEvent}, into their
+     * count, total, shortest and longest duration and the wall clock time the earliest started.
+     * @param key name of the event, required, must not be the empty string
+     * @param segmentation segmentation dictionary to associate with the event, can be null
+     * @return false if the event was not being timed
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     * @throws IllegalArgumentException if key is null or empty
+     */
+    public boolean endEvent(final String key, final Map<String, String> segmentation) {
+        final EventAggregator aggregator = timedEventAggregator(key);
+        final long nanos = _eventTimers.end(key);
+        if (nanos < 0) {
+            return false;
+        }
+        final double millis = nanos / 1000000d;
+        final long startMillis = System.currentTimeMillis() - nanos / 1000000;
+
+        final EventSampler.Policy policy = _eventSampler.policy(key, SamplingStage.HEAD);
+        if (policy != null && !policy.admit(1, millis)) {
+            return true;
+        }
+        if (aggregator.addDuration(key, segmentation, policy != null ? policy.weighCount(1) : 1,
+                policy != null ? policy.weighSum(millis) : millis, millis, startMillis)) {
+            sendEvents(false);
+        }
+        return true;
+    }
+
+    /**
+     * Stops timing the event without recording it.
+     * @param key name of the event, required, must not be the empty string
+     * @return false if the event was not being timed
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     * @throws IllegalArgumentException if key is null or empty
+     */
+    public boolean cancelEvent(final String key) {
+        timedEventAggregator(key);
+        return _eventTimers.cancel(key);
+    }
+
+    private EventAggregator timedEventAggregator(final String key) {
+        final EventAggregator aggregator = _eventAggregator;
+        if (aggregator == null) {
+            throw new IllegalStateException("Acquisition.sharedInstance().init must be called before timing events");
+        }
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("Valid event key is required");
+        }
+        return aggregator;
+    }
+
+    /**
+     * Persists events coalesced in memory and queues all stored events for upload.
+     */
+    public void flushEvents() {
+        final EventAggregator aggregator = _eventAggregator;
+        if (aggregator != null) {
+            final EventWriter writer = _eventWriter;
+            if (writer != null) {
+                writer.drain();
+            }
+            aggregator.flush();
+            sendEvents(true);
+        }
+    }
+
+    /**
+     * Moves stored events into the connection queue once enough of them have accumulated.
+     * Not synchronized, the store takes its own lock and must never wait for this one.
+     * @param force true to send any stored events regardless of their number
+     */
+    void sendEvents(final boolean force) {
+        final String events = _connectionQueue.getAcquisitionStore().takeEvents(force ? 1 : EVENT_QUEUE_SIZE_THRESHOLD);
+        if (events != null) {
+            _connectionQueue.recordEvents(events);
+        }
+    }
+
+    /**
+     * Packs several stored records into each upload request. Batching is disabled by default.
+     * @param maxRecords maximum number of records per request, 1 disables batching
+     * @param maxBytes maximum request body size in bytes
+     * @param format layout of the batched request body, {@link BatchFormat#COMPACT_BINARY} is
+     *               used for single records too
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadBatching(final int maxRecords, final int maxBytes, final BatchFormat format) {
+        if (maxRecords < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("batch limits must be positive");
+        }
+        _connectionQueue.setBatching(maxRecords, maxBytes, format);
+        return this;
+    }
+
     /**
      * Sets whether debug logging is turned on or off. Logging is disabled by default.
      * @param enableLogging true to enable logging, false to disable logging
@@ -39,42 +428,307 @@ public class Acquisition {
         return this;
     }
 
-    public synchronized boolean isLoggingEnabled() {
+    /**
+     * Returns whether debug logging is turned on, without locking, since it is checked while
+     * the store and the upload queue hold their locks.
+     */
+    public boolean isLoggingEnabled() {
         return enableLogging_;
     }
 
+    /**
+     * Enables gzip compression of upload requests whose body reaches the threshold.
+     * Compression is disabled by default, the server must accept Content-Encoding: gzip.
+     * @param enabled true to compress large requests
+     * @param thresholdBytes minimum body length to compress, smaller bodies are sent as is
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadCompression(final boolean enabled, final int thresholdBytes) {
+        if (enabled && thresholdBytes < 0) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        _connectionQueue.setCompressionThreshold(enabled ? thresholdBytes : HttpConnectionUtils.COMPRESSION_DISABLED);
+        return this;
+    }
+
+    /**
+     * Sets how many upload requests may be in flight at the same time, each on its own
+     * keep-alive connection. Records are still removed from the store in order, so batches
+     * behind a failed request are sent again later.
+     * @param window number of concurrent requests, 1 by default
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadConcurrency(final int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        _connectionQueue.setInFlightWindow(window);
+        return this;
+    }
+
+    /**
+     * Sets the transport uploads are sent with, for example a {@link UrlConnectionTransport}
+     * for a different endpoint or a {@link LoopbackTransport} for tests. By default uploads use
+     * a {@link PooledHttpTransport} to the server URL passed to init.
+     * @param transport transport to use, null to go back to the default
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setTransport(final Transport transport) {
+        _connectionQueue.setTransport(transport);
+        return this;
+    }
+
+    /**
+     * Sends the static device metadata once per session and lets uploads refer to it by a
+     * content hash id instead of repeating it. Disabled by default, the server must implement
+     * the context protocol described in {@link SessionContext}, servers that refuse the context
+     * get plain uploads. Must be called after init.
+     * @param enabled true to register a session context
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setSessionContextEnabled(final boolean enabled) {
+        _connectionQueue.setSessionContextEnabled(enabled);
+        return this;
+    }
+
+    /**
+     * Sets how a lane of the upload queue is drained and bounded. Crashes, handled exceptions and
+     * events are queued in separate lanes, and while several lanes hold records each gets a share
+     * of the requests in proportion to its weight, 8, 4 and 1 by default. Must be called after init.
+     * @param lane lane to configure
+     * @param weight share of upload requests, at least 1
+     * @param capacity maximum number of bytes the lane keeps, see {@link Lane#getDefaultCapacity}
+     * @param policy what happens to new records once the lane is full, DROP_OLDEST or DROP_NEWEST
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadLane(final Lane lane, final int weight, final int capacity,
+                                                  final OverflowPolicy policy) {
+        if (lane == null) {
+            throw new IllegalArgumentException("lane is required");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        _connectionQueue.setLane(lane, weight, capacity, policy);
+        return this;
+    }
+
+    /**
+     * Sets how much storage queued data may take. All upload lanes together keep at most
+     * maxBytes on disk, 2 MB by default, and events waiting to be batched, which are held in
+     * memory, at most maxEventBytes, 32 KB by default. Once a budget is reached the policy
+     * decides what is given up, see {@link #getEvictedRecordCount}. Must be called after init.
+     * @param maxBytes bytes the upload lanes may take together
+     * @param maxEventBytes bytes the events waiting to be batched may take
+     * @param policy what is evicted once a budget is reached
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setStoreBudget(final long maxBytes, final int maxEventBytes,
+                                                   final EvictionPolicy policy) {
+        _connectionQueue.setByteBudget(maxBytes, maxEventBytes, policy);
+        return this;
+    }
+
+    /**
+     * Returns the number of records and events evicted or dropped for lack of room since init.
+     */
+    public long getEvictedRecordCount() {
+        final AcquisitionStore store = _connectionQueue.getAcquisitionStore();
+        return store == null ? 0 : store.getEvictedRecordCount();
+    }
+
+    /**
+     * Returns the number of bytes given up with the evicted records and events since init.
+     */
+    public long getEvictedBytes() {
+        final AcquisitionStore store = _connectionQueue.getAcquisitionStore();
+        return store == null ? 0 : store.getEvictedBytes();
+    }
+
+    /**
+     * Returns the SDK's own metrics: enqueue, store and upload latencies, upload outcomes by
+     * HTTP status class, retries, drops and evictions, and the current queue depth.
+     */
+    public AcquisitionMetrics.Snapshot getMetrics() {
+        return _connectionQueue.getMetrics().snapshot(_connectionQueue.getAcquisitionStore(), getDroppedEventCount());
+    }
+
+    /**
+     * Records the {@link #getMetrics metrics} periodically as the internal event
+     * {@link AcquisitionMetrics#EVENT_KEY}, so they are uploaded along with the app's events.
+     * Must be called after init.
+     * @param intervalMillis time between reports, 0 to stop reporting
+     * @return Acquisition instance
+     * @throws IllegalStateException if Acquisition SDK has not been initialized
+     */
+    public synchronized Acquisition setMetricsReporting(final long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("interval must not be negative");
+        }
+        if (_eventBuffer == null) {
+            throw new IllegalStateException("Acquisition.sharedInstance().init must be called before setMetricsReporting");
+        }
+        _connectionQueue.setMetricsReport(intervalMillis, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    record(AcquisitionMetrics.EVENT_KEY, getMetrics().toSegmentation());
+                } catch (RuntimeException e) {
+                    // a failed report must not cancel the following ones
+                    if (isLoggingEnabled()) {
+                        Log.w(TAG, "Could not record metrics", e);
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets when queued records are uploaded, so the radio wakes up for fewer and larger requests.
+     * Crashes and handled exceptions are uploaded right away. Other records wait until the oldest
+     * of them has been queued for windowMillis or windowRecords are queued, on a metered network
+     * until the oldest has been queued for meteredWindowMillis. Nothing is uploaded while the
+     * device is offline. Defaults are 30 seconds, 50 records and 15 minutes, a window of 0
+     * uploads records as soon as they are queued.
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadWindow(final long windowMillis, final int windowRecords,
+                                                    final long meteredWindowMillis) {
+        if (windowMillis < 0 || meteredWindowMillis < 0) {
+            throw new IllegalArgumentException("windows must not be negative");
+        }
+        if (windowRecords < 1) {
+            throw new IllegalArgumentException("window records must be at least 1");
+        }
+        _connectionQueue.setUploadWindow(windowMillis, windowRecords, meteredWindowMillis);
+        return this;
+    }
+
+    /**
+     * Uploads all queued records and events now, regardless of the upload window, and waits
+     * for the upload to finish. Must be called after init, not on the main thread.
+     * @param timeoutMillis maximum time to wait
+     * @return true if the upload finished in time, successful or not
+     */
+    public boolean flushUploads(final long timeoutMillis) {
+        flushEvents();
+        return _connectionQueue.flush(timeoutMillis);
+    }
+
+    /**
+     * Stops uploading and the SDK's background threads until {@link #startUploads}, records
+     * are still stored. A running upload gets the timeout to finish, after which no SDK thread
+     * uploads anymore. Events passed to {@link #record} from then on wait in the buffer until
+     * uploads are started again or {@link #flushEvents} is called.
+     * @param timeoutMillis maximum time to wait for a running upload
+     * @return true if no upload is running anymore
+     */
+    public boolean stopUploads(final long timeoutMillis) {
+        final EventWriter writer = _eventWriter;
+        final boolean writerStopped = writer == null || writer.stop(timeoutMillis);
+        return _connectionQueue.stop(timeoutMillis) && writerStopped;
+    }
+
+    /**
+     * Resumes uploading after {@link #stopUploads}.
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition startUploads() {
+        final EventWriter writer = _eventWriter;
+        if (writer != null) {
+            writer.start();
+        }
+        _connectionQueue.start();
+        return this;
+    }
+
+    /**
+     * Sets the threads uploads run on. One worker thread sends the uploads and another runs
+     * timers; each is started when needed and ends after idleTimeoutMillis without work.
+     * @param priority Android thread priority, {@link android.os.Process#THREAD_PRIORITY_BACKGROUND} by default
+     * @param daemon whether the threads are daemon threads, true by default
+     * @param idleTimeoutMillis time an idle thread is kept, 60 seconds by default
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadThreads(final int priority, final boolean daemon,
+                                                     final long idleTimeoutMillis) {
+        if (idleTimeoutMillis < 1) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+        _connectionQueue.setWorkerThreads(priority, daemon, idleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Sets the connect and read timeouts of the default transport, 30 seconds each by default.
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadTimeouts(final int connectTimeoutMillis, final int readTimeoutMillis) {
+        if (connectTimeoutMillis < 0 || readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative");
+        }
+        _connectionQueue.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * Sets how failed uploads are retried. Each consecutive failure waits a random time up to
+     * baseDelayMillis doubled per failure and capped at maxDelayMillis, or longer if the server
+     * asks for it with Retry-After. After failureThreshold failures in a row uploads stop for
+     * circuitOpenMillis before a single probe request is sent.
+     * @return Acquisition instance
+     */
+    public synchronized Acquisition setUploadRetry(final long baseDelayMillis, final long maxDelayMillis,
+                                                   final int failureThreshold, final long circuitOpenMillis) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("delays must be positive and maxDelayMillis at least baseDelayMillis");
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        if (circuitOpenMillis < 0) {
+            throw new IllegalArgumentException("circuitOpenMillis must not be negative");
+        }
+        _connectionQueue.setRetryBackoff(baseDelayMillis, maxDelayMillis, failureThreshold, circuitOpenMillis);
+        return this;
+    }
+
     /**
      * Log handled exception to report it to server as non fatal crash
      * @param exception Exception to log
      */
     public synchronized Acquisition logException(Exception exception) {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        exception.printStackTrace(pw);
-        _connectionQueue.sendCrashReport(sw.toString(), true);
+        _connectionQueue.sendCrashReport(exception, true);
         return this;
     }
 
     /**
-     * Enable crash reporting to send unhandled crash reports to server
+     * Enable crash reporting to send unhandled crash reports to server. Unhandled crashes are
+     * written to a preallocated file before the process dies and uploaded, ahead of other
+     * records, once the app runs again. Must be called after init.
      */
     public synchronized Acquisition enableCrashReporting() {
+        _connectionQueue.enableCrashReports();
+
         //get default handler
         final Thread.UncaughtExceptionHandler oldHandler = Thread.getDefaultUncaughtExceptionHandler();
+        final HttpConnectionQueue connectionQueue = _connectionQueue;
 
         Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
 
             @Override
             public void uncaughtException(Thread t, Throwable e) {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                e.printStackTrace(pw);
-                Acquisition.sharedInstance()._connectionQueue.sendCrashReport(sw.toString(), false);
-
-                //if there was another handler before
-                if(oldHandler != null){
-                    //notify it also
-                    oldHandler.uncaughtException(t,e);
+                try {
+                    connectionQueue.sendFatalCrashReport(e);
+                } catch (Throwable ignored) {
+                    // out of memory or not initialized, the platform must still see the crash
+                } finally {
+                    //if there was another handler before
+                    if(oldHandler != null){
+                        //notify it also
+                        oldHandler.uncaughtException(t,e);
+                    }
                 }
             }
         };
@@ -0,0 +1,341 @@
+package com.mingbikes.acquisition;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measurements of the SDK itself, to tell whether the store or the network holds data back.
+ *
+ * Counters and {@link Histogram histograms} are updated without locks or allocation on the
+ * paths they measure. Queue depth, drops and evictions are read when a {@link Snapshot} is
+ * taken, see {@link Acquisition#getMetrics}.
+ */
+public final class AcquisitionMetrics {
+
+    /**
+     * Key of the internal event the snapshot is recorded as, see {@link Acquisition#setMetricsReporting}.
+     */
+    public static final String EVENT_KEY = "_acquisition_metrics";
+
+    private final LatencyHistogram mEnqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram mStoreCommitLatency = new LatencyHistogram();
+    private final LatencyHistogram mSerializationTime = new LatencyHistogram();
+    private final LatencyHistogram mUploadRoundTrip = new LatencyHistogram();
+
+    private final AtomicLong mUploadRequests = new AtomicLong();
+    private final AtomicLong mUploadedRecords = new AtomicLong();
+    private final AtomicLong mUploadedBytes = new AtomicLong();
+    private final AtomicLong mRejectedRecords = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    // responses by status class 1 to 5, requests that got no response at 0
+    private final AtomicLongArray mStatusClasses = new AtomicLongArray(6);
+
+    AcquisitionMetrics() {
+    }
+
+    void recordEnqueue(final long nanos) {
+        mEnqueueLatency.recordNanos(nanos);
+    }
+
+    void recordStoreCommit(final long nanos) {
+        mStoreCommitLatency.recordNanos(nanos);
+    }
+
+    void recordSerialization(final long nanos) {
+        mSerializationTime.recordNanos(nanos);
+    }
+
+    /**
+     * Records an upload request.
+     * @param responseCode HTTP status of the response, -1 if there was none
+     * @param nanos time from sending the request to reading the response
+     * @param bytes size of the request body as sent
+     */
+    void recordUpload(final int responseCode, final long nanos, final int bytes) {
+        mUploadRequests.incrementAndGet();
+        mUploadedBytes.addAndGet(bytes);
+        mUploadRoundTrip.recordNanos(nanos);
+        final int statusClass = responseCode / 100;
+        mStatusClasses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+    }
+
+    void recordDelivered(final int records) {
+        mUploadedRecords.addAndGet(records);
+    }
+
+    void recordRejected(final int records) {
+        mRejectedRecords.addAndGet(records);
+    }
+
+    void recordRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    /**
+     * Returns the current values.
+     * @param store store to read the queue depth and evictions from, may be null
+     * @param droppedEvents events dropped before they reached the store
+     */
+    Snapshot snapshot(final AcquisitionStore store, final long droppedEvents) {
+        final long[] statusClasses = new long[mStatusClasses.length()];
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = mStatusClasses.get(i);
+        }
+        return new Snapshot(this, store, droppedEvents, statusClasses);
+    }
+
+    /**
+     * Values of the metrics at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long mTimestamp = System.currentTimeMillis();
+        private final Histogram mEnqueueLatency;
+        private final Histogram mStoreCommitLatency;
+        private final Histogram mSerializationTime;
+        private final Histogram mUploadRoundTrip;
+        private final long mUploadRequests;
+        private final long mUploadedRecords;
+        private final long mUploadedBytes;
+        private final long mRejectedRecords;
+        private final long mRetries;
+        private final long[] mStatusClasses;
+        private final long mDroppedEvents;
+        private final long mEvictedRecords;
+        private final long mEvictedBytes;
+        private final int mQueuedRecords;
+        private final long mQueuedBytes;
+        private final int mStoredEvents;
+
+        Snapshot(final AcquisitionMetrics metrics, final AcquisitionStore store, final long droppedEvents,
+                 final long[] statusClasses) {
+            mEnqueueLatency = metrics.mEnqueueLatency.snapshot();
+            mStoreCommitLatency = metrics.mStoreCommitLatency.snapshot();
+            mSerializationTime = metrics.mSerializationTime.snapshot();
+            mUploadRoundTrip = metrics.mUploadRoundTrip.snapshot();
+            mUploadRequests = metrics.mUploadRequests.get();
+            mUploadedRecords = metrics.mUploadedRecords.get();
+            mUploadedBytes = metrics.mUploadedBytes.get();
+            mRejectedRecords = metrics.mRejectedRecords.get();
+            mRetries = metrics.mRetries.get();
+            mStatusClasses = statusClasses;
+            mDroppedEvents = droppedEvents;
+            mEvictedRecords = store != null ? store.getEvictedRecordCount() : 0;
+            mEvictedBytes = store != null ? store.getEvictedBytes() : 0;
+            mQueuedRecords = store != null ? store.connectionCount() : 0;
+            mQueuedBytes = store != null ? store.bytes() : 0;
+            mStoredEvents = store != null ? store.eventCount() : 0;
+        }
+
+        /**
+         * Returns the time the snapshot was taken, in milliseconds.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Returns the time {@link Acquisition#record} took to hand events to the writer thread.
+         */
+        public Histogram getEnqueueLatency() {
+            return mEnqueueLatency;
+        }
+
+        /**
+         * Returns the time writes to the store took, events and upload records alike.
+         */
+        public Histogram getStoreCommitLatency() {
+            return mStoreCommitLatency;
+        }
+
+        /**
+         * Returns the time building request bodies took, compression excluded.
+         */
+        public Histogram getSerializationTime() {
+            return mSerializationTime;
+        }
+
+        /**
+         * Returns the time from sending an upload request to reading its response.
+         */
+        public Histogram getUploadRoundTrip() {
+            return mUploadRoundTrip;
+        }
+
+        public long getUploadRequests() {
+            return mUploadRequests;
+        }
+
+        /**
+         * Returns the number of records the server accepted.
+         */
+        public long getUploadedRecords() {
+            return mUploadedRecords;
+        }
+
+        /**
+         * Returns the number of request body bytes sent, before compression.
+         */
+        public long getUploadedBytes() {
+            return mUploadedBytes;
+        }
+
+        /**
+         * Returns the number of records dropped because the server refused them with a 4xx.
+         */
+        public long getRejectedRecords() {
+            return mRejectedRecords;
+        }
+
+        /**
+         * Returns the number of failed uploads that were scheduled for a retry.
+         */
+        public long getRetries() {
+            return mRetries;
+        }
+
+        /**
+         * Returns the number of responses in the status class.
+         * @param statusClass 1 to 5 for 1xx to 5xx, 0 for requests that got no response
+         */
+        public long getStatusCount(final int statusClass) {
+            return statusClass >= 0 && statusClass < mStatusClasses.length ? mStatusClasses[statusClass] : 0;
+        }
+
+        /**
+         * Returns the number of events dropped because the event buffer was full.
+         */
+        public long getDroppedEvents() {
+            return mDroppedEvents;
+        }
+
+        public long getEvictedRecords() {
+            return mEvictedRecords;
+        }
+
+        public long getEvictedBytes() {
+            return mEvictedBytes;
+        }
+
+        /**
+         * Returns the number of records waiting for upload in all lanes.
+         */
+        public int getQueuedRecords() {
+            return mQueuedRecords;
+        }
+
+        public long getQueuedBytes() {
+            return mQueuedBytes;
+        }
+
+        /**
+         * Returns the number of events stored but not yet batched for upload.
+         */
+        public int getStoredEvents() {
+            return mStoredEvents;
+        }
+
+        /**
+         * Returns the values as event segmentation, latencies as p50, p99 and max in microseconds.
+         */
+        public Map<String, String> toSegmentation() {
+            final Map<String, String> values = new LinkedHashMap<>();
+            putHistogram(values, "enqueue", mEnqueueLatency);
+            putHistogram(values, "store_commit", mStoreCommitLatency);
+            putHistogram(values, "serialization", mSerializationTime);
+            putHistogram(values, "upload_rtt", mUploadRoundTrip);
+            values.put("upload_requests", Long.toString(mUploadRequests));
+            values.put("uploaded_records", Long.toString(mUploadedRecords));
+            values.put("uploaded_bytes", Long.toString(mUploadedBytes));
+            values.put("rejected_records", Long.toString(mRejectedRecords));
+            values.put("retries", Long.toString(mRetries));
+            values.put("no_response", Long.toString(mStatusClasses[0]));
+            for (int i = 1; i < mStatusClasses.length; i++) {
+                values.put("status_" + i + "xx", Long.toString(mStatusClasses[i]));
+            }
+            values.put("dropped_events", Long.toString(mDroppedEvents));
+            values.put("evicted_records", Long.toString(mEvictedRecords));
+            values.put("evicted_bytes", Long.toString(mEvictedBytes));
+            values.put("queued_records", Integer.toString(mQueuedRecords));
+            values.put("queued_bytes", Long.toString(mQueuedBytes));
+            values.put("stored_events", Integer.toString(mStoredEvents));
+            return values;
+        }
+
+        private static void putHistogram(final Map<String, String> values, final String name, final Histogram histogram) {
+            values.put(name + "_count", Long.toString(histogram.getCount()));
+            values.put(name + "_p50_us", Long.toString(histogram.getPercentile(50)));
+            values.put(name + "_p99_us", Long.toString(histogram.getPercentile(99)));
+            values.put(name + "_max_us", Long.toString(histogram.getMax()));
+        }
+
+        @Override
+        public String toString() {
+            return "AcquisitionMetrics" + toSegmentation();
+        }
+    }
+
+    /**
+     * Distribution of durations in microseconds, each value kept to within 1/16 of itself.
+     */
+    public static final class Histogram {
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Histogram(final long[] counts, final long count, final long sum, final long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * Returns the value at or below which the percentage of durations falls, 0 if none
+         * were recorded.
+         * @param percentile percentage between 0 and 100
+         */
+        public long getPercentile(final double percentile) {
+            long total = 0;
+            for (long count : mCounts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    final long highest = i + 1 < mCounts.length ? LatencyHistogram.lowestOf(i + 1) - 1 : mMax;
+                    return Math.min(highest, mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count=%d mean=%.1f p50=%d p99=%d max=%d",
+                    mCount, getMean(), getPercentile(50), getPercentile(99), mMax);
+        }
+    }
+}
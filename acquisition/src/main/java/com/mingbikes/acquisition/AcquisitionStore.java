@@ -2,17 +2,20 @@ package com.mingbikes.acquisition;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Acquisition store
@@ -21,25 +24,136 @@ public class AcquisitionStore {
 
     private static final String PREFERENCES = "ACQUISITION_STORE";
     private static final String DELIMITER = ":::";
-    private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+    private static final String CONNECTIONS_PREFERENCE = PreferencesStoreBackend.CONNECTIONS_PREFERENCE;
     private static final String EVENTS_PREFERENCE = "EVENTS";
+    private static final String JOURNAL_DIRECTORY = "acquisition_journal";
+
+    private static final Lane[] LANES = Lane.values();
 
-    // limit max
-    private static final int MAX_EVENTS = 100;
-    private static final int MAX_REQUESTS = 1000;
+    static final long DEFAULT_BYTE_BUDGET = 2 * 1024 * 1024;
+    static final int DEFAULT_EVENT_BYTE_BUDGET = 32 * 1024;
+    private static final int MAX_THINNING_LEVEL = 4;
 
-    private final SharedPreferences mPreferences;
+    private final Context mContext;
+    private final StoreBackend mEventsBackend;
+    private volatile boolean mOpen;
+    private SharedPreferences mPreferences;
+    private final StoreBackend[] mLanes = new StoreBackend[LANES.length];
+    private final long[] mLaneCapacities = new long[LANES.length];
+    private final OverflowPolicy[] mLanePolicies = new OverflowPolicy[LANES.length];
+    // records removed from the head of each lane since the store was created, the position
+    // of the current head record
+    private final long[] mLaneHeads = new long[LANES.length];
+    // bumped whenever a record is removed from the middle of a lane, which moves the records
+    // behind it up so the positions peeked before no longer match
+    private final long[] mLaneGenerations = new long[LANES.length];
+
+    private long mByteBudget = DEFAULT_BYTE_BUDGET;
+    private int mEventByteBudget = DEFAULT_EVENT_BYTE_BUDGET;
+    private EvictionPolicy mEvictionPolicy = EvictionPolicy.LOWEST_PRIORITY_FIRST;
+    // while thinning, one in 2^level new event records is kept
+    private int mThinningLevel;
+    private int mThinningCounter;
+    private final AtomicLong mEvictedRecords = new AtomicLong();
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+    private volatile AcquisitionMetrics mMetrics;
 
     /**
-     * Constructs a AcquisitionStore object.
+     * Constructs a AcquisitionStore object backed by the file journal, falling back to
+     * SharedPreferences if the journal cannot be opened. Storage is opened on first use,
+     * see {@link #open}.
      * @param context used to retrieve storage meta data, must not be null.
      * @throws IllegalArgumentException if context is null
      */
     public AcquisitionStore(final Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Constructs a AcquisitionStore object.
+     * @param context used to retrieve storage meta data, must not be null.
+     * @param backend backend for the {@link Lane#EVENTS} lane, null for the default file journal,
+     *                the other lanes always use their own journal
+     * @throws IllegalArgumentException if context is null
+     */
+    public AcquisitionStore(final Context context, final StoreBackend backend) {
         if (context == null) {
             throw new IllegalArgumentException("must provide valid context");
         }
-        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        mContext = context;
+        mEventsBackend = backend;
+        for (Lane lane : LANES) {
+            mLaneCapacities[lane.ordinal()] = lane.getDefaultCapacity();
+            mLanePolicies[lane.ordinal()] = lane.getDefaultPolicy();
+        }
+    }
+
+    /**
+     * Loads the preferences and opens the journals unless that is done already. Every access
+     * opens the store, calling this ahead of time from a background thread keeps the first
+     * caller from waiting for storage.
+     */
+    public void open() {
+        if (mOpen) {
+            return;
+        }
+        synchronized (this) {
+            if (!mOpen) {
+                mPreferences = mContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+                for (Lane lane : LANES) {
+                    mLanes[lane.ordinal()] = lane == Lane.EVENTS && mEventsBackend != null
+                            ? mEventsBackend : openJournal(mContext, lane);
+                }
+                migrateConnections();
+                mOpen = true;
+            }
+        }
+    }
+
+    private SharedPreferences preferences() {
+        open();
+        return mPreferences;
+    }
+
+    private StoreBackend[] lanes() {
+        open();
+        return mLanes;
+    }
+
+    private StoreBackend openJournal(final Context context, final Lane lane) {
+        final String suffix = lane.getSuffix();
+        try {
+            return new JournalStoreBackend(new File(context.getFilesDir(),
+                    suffix != null ? JOURNAL_DIRECTORY + "_" + suffix : JOURNAL_DIRECTORY));
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Cannot open journal, using SharedPreferences store", e);
+            }
+            return new PreferencesStoreBackend(mPreferences, suffix != null
+                    ? CONNECTIONS_PREFERENCE + "_" + suffix.toUpperCase(Locale.US) : CONNECTIONS_PREFERENCE);
+        }
+    }
+
+    private StoreBackend lane(final Lane lane) {
+        open();
+        return mLanes[lane.ordinal()];
+    }
+
+    /**
+     * Moves connections left in SharedPreferences by older versions into the current backend.
+     */
+    private void migrateConnections() {
+        final StoreBackend events = mLanes[Lane.EVENTS.ordinal()];
+        if (events instanceof PreferencesStoreBackend) {
+            return;
+        }
+        final String joinedConnStr = mPreferences.getString(CONNECTIONS_PREFERENCE, "");
+        if (joinedConnStr.length() > 0) {
+            for (String connection : joinedConnStr.split(DELIMITER)) {
+                events.append(connection);
+            }
+            mPreferences.edit().remove(CONNECTIONS_PREFERENCE).commit();
+        }
     }
 
     /**
@@ -51,8 +165,7 @@ public class AcquisitionStore {
             return;
         }
 
-        final Event event = new Event();
-        event.key = key;
+        final Event event = new Event(key);
 
         addEvent(event);
     }
@@ -67,8 +180,7 @@ public class AcquisitionStore {
             return;
         }
 
-        final Event event = new Event();
-        event.key = key;
+        final Event event = new Event(key);
         event.segmentation = segmentation;
 
         addEvent(event);
@@ -82,57 +194,189 @@ public class AcquisitionStore {
     public synchronized void removeEvents(final Collection<Event> eventsToRemove) {
         if (eventsToRemove != null && eventsToRemove.size() > 0) {
             final List<Event> events = eventsList();
-            if (events.removeAll(eventsToRemove)) {
-                mPreferences.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+            // sequence numbers make events unique, so a hash lookup finds exactly the ones to remove
+            if (events.removeAll(eventsToRemove instanceof Set ? eventsToRemove : new HashSet<>(eventsToRemove))) {
+                preferences().edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
             }
         }
     }
 
     /**
-     * Adds a event to the local store.
+     * Adds a event to the local store, evicting old events if the store exceeds its event budget.
      * @param event event to be added to the local store, must not be null
      */
     void addEvent(final Event event) {
-        final List<Event> events = eventsList();
-        if (events.size() < MAX_EVENTS) {
-            events.add(event);
-            mPreferences.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+        addEvents(Collections.singletonList(event));
+    }
+
+    /**
+     * Adds several events to the local store with a single write, evicting old events if the
+     * store exceeds its event budget. Stored events are appended to as JSON, not decoded.
+     * @param eventsToAdd events to be added to the local store, must not be null
+     */
+    synchronized void addEvents(final Collection<Event> eventsToAdd) {
+        if (eventsToAdd.isEmpty()) {
+            return;
+        }
+        final String stored = preferences().getString(EVENTS_PREFERENCE, "");
+        final StringBuilder builder = new StringBuilder(stored.length() + eventsToAdd.size() * 128);
+        builder.append(stored);
+        for (Event event : eventsToAdd) {
+            if (builder.length() > 0) {
+                builder.append(DELIMITER);
+            }
+            EventJsonWriter.write(event, builder);
+        }
+        String joined = builder.toString();
+        if (HttpConnectionProcessor.utf8Length(joined) > mEventByteBudget) {
+            joined = evictEvents(joined);
+        }
+        final long start = System.nanoTime();
+        preferences().edit().putString(EVENTS_PREFERENCE, joined).commit();
+        committed(start);
+    }
+
+    /**
+     * Evicts stored events, oldest first, as the eviction policy says until they take no more
+     * than the event byte budget. The events are kept in SharedPreferences, which Android holds
+     * in memory, so the budget bounds memory as well.
+     * @return the remaining events joined by the delimiter
+     */
+    private String evictEvents(final String joined) {
+        final String[] records = joined.split(DELIMITER);
+        final int[] sizes = new int[records.length];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = HttpConnectionProcessor.utf8Length(records[i]) + DELIMITER.length();
+            total += sizes[i];
+        }
+
+        final boolean[] evicted = new boolean[sizes.length];
+        int oldest = 0;
+        while (total > mEventByteBudget && oldest < sizes.length) {
+            if (mEvictionPolicy == EvictionPolicy.SAMPLE && sizes.length - oldest > 1) {
+                // every other event of the oldest half of what is left
+                final int half = oldest + (sizes.length - oldest) / 2;
+                for (int i = oldest; i < half && total > mEventByteBudget; i += 2) {
+                    if (!evicted[i]) {
+                        evicted[i] = true;
+                        total -= sizes[i];
+                        evictedRecord(sizes[i]);
+                    }
+                }
+                oldest = half;
+            } else {
+                if (!evicted[oldest]) {
+                    evicted[oldest] = true;
+                    total -= sizes[oldest];
+                    evictedRecord(sizes[oldest]);
+                }
+                oldest++;
+            }
         }
+        if (Acquisition.sharedInstance().isLoggingEnabled()) {
+            Log.w(Acquisition.TAG, "Event store is over its budget, evicted old events");
+        }
+
+        final StringBuilder builder = new StringBuilder(joined.length());
+        for (int i = 0; i < records.length; i++) {
+            if (!evicted[i] && records[i].length() > 0) {
+                if (builder.length() > 0) {
+                    builder.append(DELIMITER);
+                }
+                builder.append(records[i]);
+            }
+        }
+        return builder.toString();
     }
 
     /**
-     * Returns an unsorted array of the current stored event JSON strings.
+     * Returns an array of the current stored event JSON strings, in the order they were stored.
      */
     public String[] events() {
-        final String joinedEventsStr = mPreferences.getString(EVENTS_PREFERENCE, "");
+        final String joinedEventsStr = preferences().getString(EVENTS_PREFERENCE, "");
         return joinedEventsStr.length() == 0 ? new String[0] : joinedEventsStr.split(DELIMITER);
     }
 
     /**
-     * Returns a list of the current stored events, sorted by timestamp from oldest to newest.
+     * Returns an iterator over the current stored events in the order they were stored, oldest
+     * first. Events are decoded as the iterator reaches them, and later changes to the store
+     * are not seen. The iterator does not support removal.
+     */
+    public Iterator<Event> eventsIterator() {
+        return new EventCursor(preferences().getString(EVENTS_PREFERENCE, ""), DELIMITER);
+    }
+
+    /**
+     * Returns up to maxEvents of the oldest stored events without decoding the rest.
+     */
+    public List<Event> peekEvents(final int maxEvents) {
+        final List<Event> events = new ArrayList<>(Math.min(maxEvents, 16));
+        final Iterator<Event> iterator = eventsIterator();
+        while (events.size() < maxEvents && iterator.hasNext()) {
+            events.add(iterator.next());
+        }
+        return events;
+    }
+
+    /**
+     * Returns a list of the current stored events ordered by timestamp and sequence number,
+     * oldest first. Events without a sequence number keep their stored order among each other.
      */
     public List<Event> eventsList() {
-        final String[] array = events();
-        final List<Event> events = new ArrayList<>(array.length);
-        for (String s : array) {
-            try {
-                final Event event = Event.fromJSON(new JSONObject(s));
-                if (event != null) {
-                    events.add(event);
-                }
-            } catch (JSONException ignored) {
-                // should not happen since JSONObject is being constructed
-                // events -> json objects -> json strings -> storage -> json strings -> here
+        final List<Event> events = peekEvents(Integer.MAX_VALUE);
+        Collections.sort(events, Event.ORDER);
+        return events;
+    }
+
+    /**
+     * Returns the number of stored events, counted without decoding them.
+     */
+    public int eventCount() {
+        final String joined = preferences().getString(EVENTS_PREFERENCE, "");
+        int count = 0;
+        int start = 0;
+        while (start < joined.length()) {
+            int end = joined.indexOf(DELIMITER, start);
+            if (end < 0) {
+                end = joined.length();
+            }
+            if (end > start) {
+                count++;
             }
+            start = end + DELIMITER.length();
         }
-        // order the events from oldest to newest
-        Collections.sort(events, new Comparator<Event>() {
-            @Override
-            public int compare(final Event e1, final Event e2) {
-                return e1.timestamp - e2.timestamp;
+        return count;
+    }
+
+    /**
+     * Removes all stored events if there are at least minEvents of them and returns them as
+     * a JSON array, without decoding them.
+     * @return the JSON array, or null if fewer than minEvents events are stored
+     */
+    synchronized String takeEvents(final int minEvents) {
+        final String joined = preferences().getString(EVENTS_PREFERENCE, "");
+        final int count = eventCount();
+        if (count == 0 || count < minEvents) {
+            return null;
+        }
+        final StringBuilder array = new StringBuilder(joined.length() + 2).append('[');
+        int start = 0;
+        while (start < joined.length()) {
+            int end = joined.indexOf(DELIMITER, start);
+            if (end < 0) {
+                end = joined.length();
             }
-        });
-        return events;
+            if (end > start) {
+                if (array.length() > 1) {
+                    array.append(',');
+                }
+                array.append(joined, start, end);
+            }
+            start = end + DELIMITER.length();
+        }
+        preferences().edit().remove(EVENTS_PREFERENCE).commit();
+        return array.append(']').toString();
     }
 
     /**
@@ -141,11 +385,15 @@ public class AcquisitionStore {
      * @param delimiter split the string
      */
     static String joinEvents(final Collection<Event> collection, final String delimiter) {
-        final List<String> strings = new ArrayList<>();
+        final StringBuilder builder = new StringBuilder(collection.size() * 128);
+        int i = 0;
         for (Event e : collection) {
-            strings.add(e.toJSON().toString());
+            if (i++ > 0) {
+                builder.append(delimiter);
+            }
+            EventJsonWriter.write(e, builder);
         }
-        return join(strings, delimiter);
+        return builder.toString();
     }
 
     /**
@@ -166,52 +414,387 @@ public class AcquisitionStore {
         return builder.toString();
     }
 
+    /**
+     * Returns true if no lane holds a connection.
+     */
     public boolean isEmptyConnections() {
-        return mPreferences.getString(CONNECTIONS_PREFERENCE, "").length() == 0;
+        for (StoreBackend backend : lanes()) {
+            if (!backend.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the lane holds no connection.
+     */
+    public boolean isEmptyConnections(final Lane lane) {
+        return lane(lane).isEmpty();
+    }
+
+    /**
+     * Returns the number of connections in all lanes, read from the counters the lanes keep.
+     */
+    public int connectionCount() {
+        int count = 0;
+        for (StoreBackend backend : lanes()) {
+            count += backend.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of connections in the lane.
+     */
+    public int connectionCount(final Lane lane) {
+        return lane(lane).size();
+    }
+
+    /**
+     * Returns the time in milliseconds the oldest connection of any lane was stored, possibly
+     * earlier, see {@link StoreBackend#oldestTimestamp}, or 0 if no lane holds a connection.
+     */
+    public long oldestConnectionTimestamp() {
+        long oldest = 0;
+        for (StoreBackend backend : lanes()) {
+            final long timestamp = backend.oldestTimestamp();
+            if (timestamp > 0 && (oldest == 0 || timestamp < oldest)) {
+                oldest = timestamp;
+            }
+        }
+        return oldest;
     }
 
     /**
-     * Returns an unsorted array of the current stored connections.
+     * Returns an array of the current stored connections of all lanes, lane by lane in
+     * {@link Lane} order and oldest first within a lane.
      */
     public String[] connections() {
-        final String joinedConnStr = mPreferences.getString(CONNECTIONS_PREFERENCE, "");
-        return joinedConnStr.length() == 0 ? new String[0] : joinedConnStr.split(DELIMITER);
+        final List<String> connections = new ArrayList<>();
+        for (StoreBackend backend : lanes()) {
+            connections.addAll(backend.peek(Integer.MAX_VALUE));
+        }
+        return connections.toArray(new String[connections.size()]);
+    }
+
+    /**
+     * Returns up to maxRecords of the oldest connections of the {@link Lane#EVENTS} lane
+     * without removing them.
+     * @param maxRecords maximum number of connections to return
+     */
+    public List<String> peekConnections(final int maxRecords) {
+        return peekConnections(Lane.EVENTS, maxRecords);
+    }
+
+    /**
+     * Returns up to maxRecords of the oldest connections of the lane without removing them.
+     * @param maxRecords maximum number of connections to return
+     */
+    public List<String> peekConnections(final Lane lane, final int maxRecords) {
+        return lane(lane).peek(maxRecords);
+    }
+
+    /**
+     * Adds up to maxRecords of the oldest connections of the lane to records without removing
+     * them, and returns the position of the first one for {@link #ackConnections(Lane, Position, List)}.
+     * @param maxRecords maximum number of connections to add
+     * @param records list the connections are added to
+     */
+    synchronized Position peekConnections(final Lane lane, final int maxRecords, final List<String> records) {
+        records.addAll(lane(lane).peek(maxRecords));
+        return new Position(mLaneHeads[lane.ordinal()], mLaneGenerations[lane.ordinal()]);
+    }
+
+    /**
+     * Removes the count oldest connections of the {@link Lane#EVENTS} lane with a single write.
+     * @param count number of connections to remove
+     */
+    public synchronized void ackConnections(final int count) {
+        ackConnections(Lane.EVENTS, count);
+    }
+
+    /**
+     * Removes the count oldest connections of the lane with a single write.
+     * @param count number of connections to remove
+     */
+    public synchronized void ackConnections(final Lane lane, final int count) {
+        final long start = System.nanoTime();
+        removeHead(lane, count);
+        committed(start);
     }
 
     /**
-     * Adds a connection to the local store.
+     * Removes the connections that were peeked starting at the position, leaving alone the
+     * ones evicted or removed since, so an upload never acknowledges records it did not send.
+     * @param position position of the first connection, see {@link #peekConnections(Lane, int, List)}
+     * @param records the connections that were sent, in store order
+     */
+    synchronized void ackConnections(final Lane lane, final Position position, final List<String> records) {
+        final int count = records.size();
+        int acked;
+        if (position.generation == mLaneGenerations[lane.ordinal()]) {
+            final long gone = mLaneHeads[lane.ordinal()] - position.head;
+            if (gone < 0) {
+                // the records before these are still queued, acking would remove those instead
+                if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Acquisition.TAG, "Not acknowledging " + count + " records of lane " + lane
+                            + " ahead of the head of the queue");
+                }
+                return;
+            }
+            acked = (int) Math.max(0, count - gone);
+        } else {
+            // records moved up since the peek, so count the sent ones still at the head by
+            // identity, in order, skipping those no longer stored
+            acked = 0;
+            int next = 0;
+            for (String record : lane(lane).peek(count)) {
+                while (next < count && !records.get(next).equals(record)) {
+                    next++;
+                }
+                if (next == count) {
+                    break;
+                }
+                acked++;
+                next++;
+            }
+        }
+        if (acked > 0) {
+            final long start = System.nanoTime();
+            removeHead(lane, acked);
+            committed(start);
+        }
+    }
+
+    /**
+     * Removes records from the head of the lane and moves its head position past them.
+     */
+    private void removeHead(final Lane lane, final int count) {
+        final StoreBackend backend = lane(lane);
+        final int before = backend.size();
+        backend.ack(count);
+        mLaneHeads[lane.ordinal()] += before - backend.size();
+    }
+
+    /**
+     * Adds a connection to the {@link Lane#EVENTS} lane.
      * @param str the connection to be added, ignored if null or empty
      */
     public synchronized void addConnection(final String str) {
-        if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
-            if (connections.size() < MAX_REQUESTS) {
-                connections.add(str);
-                mPreferences.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
+        addConnection(Lane.EVENTS, str);
+    }
+
+    /**
+     * Adds a connection to the lane. A full lane applies its overflow policy, and once all
+     * lanes together exceed the byte budget the eviction policy decides what is given up.
+     * @param str the connection to be added, ignored if null or empty
+     */
+    public synchronized void addConnection(final Lane lane, final String str) {
+        if (str == null || str.length() == 0) {
+            return;
+        }
+        final long cost = HttpConnectionProcessor.utf8Length(str);
+        final StoreBackend backend = lane(lane);
+        final long capacity = mLaneCapacities[lane.ordinal()];
+        if (cost > capacity || cost > mByteBudget) {
+            dropped(lane, cost);
+            return;
+        }
+
+        while (backend.bytes() + cost > capacity) {
+            if (mLanePolicies[lane.ordinal()] != OverflowPolicy.DROP_OLDEST) {
+                dropped(lane, cost);
+                return;
+            }
+            evictOldest(lane);
+        }
+
+        long total = bytes();
+        if (total + cost > mByteBudget) {
+            if (mEvictionPolicy == EvictionPolicy.SAMPLE && lane == LANES[LANES.length - 1] && !sampled()) {
+                dropped(lane, cost);
+                return;
+            }
+            while (total + cost > mByteBudget) {
+                final Lane victim = victimFor(lane);
+                if (victim == null) {
+                    dropped(lane, cost);
+                    return;
+                }
+                evictOldest(victim);
+                total = bytes();
+            }
+        } else if (mThinningLevel > 0 && total + cost < mByteBudget / 4 * 3) {
+            mThinningLevel = 0;
+        }
+        final long start = System.nanoTime();
+        backend.append(str);
+        committed(start);
+    }
+
+    private void committed(final long start) {
+        final AcquisitionMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.recordStoreCommit(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the lane to evict from to make room for a record of the specified lane, or null
+     * if the eviction policy allows none.
+     */
+    private Lane victimFor(final Lane lane) {
+        Lane victim = null;
+        long oldest = Long.MAX_VALUE;
+        for (int i = LANES.length - 1; i >= lane.ordinal(); i--) {
+            final StoreBackend backend = lanes()[i];
+            if (backend.isEmpty()) {
+                continue;
+            }
+            if (mEvictionPolicy != EvictionPolicy.OLDEST_FIRST) {
+                return LANES[i];
             }
+            // on equal times the lower priority lane goes first
+            final long timestamp = backend.oldestTimestamp();
+            if (timestamp < oldest) {
+                oldest = timestamp;
+                victim = LANES[i];
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Returns whether a new record is kept while thinning, raising the thinning level each time.
+     */
+    private boolean sampled() {
+        if (mThinningLevel == 0) {
+            mThinningLevel = 1;
+            mThinningCounter = 0;
+        }
+        if ((++mThinningCounter & ((1 << mThinningLevel) - 1)) != 0) {
+            return false;
+        }
+        mThinningLevel = Math.min(mThinningLevel + 1, MAX_THINNING_LEVEL);
+        mThinningCounter = 0;
+        return true;
+    }
+
+    private void evictOldest(final Lane lane) {
+        final StoreBackend backend = lane(lane);
+        final long before = backend.bytes();
+        removeHead(lane, 1);
+        evictedRecord(before - backend.bytes());
+    }
+
+    private void dropped(final Lane lane, final long bytes) {
+        evictedRecord(bytes);
+        if (Acquisition.sharedInstance().isLoggingEnabled()) {
+            Log.w(Acquisition.TAG, "No room in lane " + lane + ", dropped a new record of " + bytes + " bytes");
+        }
+    }
+
+    private void evictedRecord(final long bytes) {
+        mEvictedRecords.incrementAndGet();
+        mEvictedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the number of bytes the connections of all lanes take in storage.
+     */
+    public synchronized long bytes() {
+        long bytes = 0;
+        for (StoreBackend backend : lanes()) {
+            bytes += backend.bytes();
         }
+        return bytes;
     }
 
     /**
-     * Removes a connection from the local store.
+     * Returns the number of connections and events evicted or dropped for lack of room since
+     * the store was opened.
+     */
+    public long getEvictedRecordCount() {
+        return mEvictedRecords.get();
+    }
+
+    /**
+     * Returns the number of bytes given up with the evicted connections and events.
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes.get();
+    }
+
+    /**
+     * Removes a connection from the {@link Lane#EVENTS} lane.
      * @param str the connection to be removed, ignored if null or empty,
      *            or if a matching connection cannot be found
      */
     public synchronized void removeConnection(final String str) {
-        if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
-            if (connections.remove(str)) {
-                mPreferences.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
-            }
+        if (str == null || str.length() == 0) {
+            return;
+        }
+        final StoreBackend backend = lane(Lane.EVENTS);
+        final List<String> head = backend.peek(1);
+        if (head.size() == 1 && head.get(0).equals(str)) {
+            removeHead(Lane.EVENTS, 1);
+        } else if (backend.remove(str)) {
+            mLaneGenerations[Lane.EVENTS.ordinal()]++;
         }
     }
 
+    /**
+     * Sets how many bytes of connections the lane keeps and what happens to new ones once it
+     * is full. Lanes that are already over a lowered capacity shrink as new connections arrive.
+     * @param capacity maximum number of bytes in the lane
+     * @param policy {@link OverflowPolicy#DROP_OLDEST} or {@link OverflowPolicy#DROP_NEWEST}
+     * @throws IllegalArgumentException if the capacity is not positive or the policy is BLOCK
+     */
+    public synchronized void setLaneLimit(final Lane lane, final long capacity, final OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (policy == null || policy == OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("lanes can only drop the oldest or the newest record");
+        }
+        mLaneCapacities[lane.ordinal()] = capacity;
+        mLanePolicies[lane.ordinal()] = policy;
+    }
+
+    /**
+     * Sets the byte budgets of the store.
+     * @param maxBytes bytes all lanes together may take on disk
+     * @param maxEventBytes bytes the stored events may take, they are loaded into memory
+     * @param policy what is given up once a budget is reached
+     * @throws IllegalArgumentException if a budget is not positive or the policy is null
+     */
+    public synchronized void setByteBudget(final long maxBytes, final int maxEventBytes, final EvictionPolicy policy) {
+        if (maxBytes < 1 || maxEventBytes < 1) {
+            throw new IllegalArgumentException("budgets must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("eviction policy is required");
+        }
+        mByteBudget = maxBytes;
+        mEventByteBudget = maxEventBytes;
+        mEvictionPolicy = policy;
+        mThinningLevel = 0;
+    }
+
+    /**
+     * Sets the metrics store writes are timed in, null to time none.
+     */
+    void setMetrics(final AcquisitionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * Retrieve a preference from local store.
      * @param key the preference key
      */
     public synchronized String getPreference(final String key) {
-        return mPreferences.getString(key, null);
+        return preferences().getString(key, null);
     }
 
     /**
@@ -221,18 +804,44 @@ public class AcquisitionStore {
      */
     public synchronized void setPreference(final String key, final String value) {
         if (value == null) {
-            mPreferences.edit().remove(key).commit();
+            preferences().edit().remove(key).commit();
         } else {
-            mPreferences.edit().putString(key, value).commit();
+            preferences().edit().putString(key, value).commit();
         }
     }
 
     // for unit testing
     synchronized void clear() {
-        final SharedPreferences.Editor prefsEditor = mPreferences.edit();
+        final SharedPreferences.Editor prefsEditor = preferences().edit();
         prefsEditor.remove(EVENTS_PREFERENCE);
         prefsEditor.remove(CONNECTIONS_PREFERENCE);
         prefsEditor.clear();
         prefsEditor.commit();
+        for (Lane lane : LANES) {
+            final StoreBackend backend = lane(lane);
+            mLaneHeads[lane.ordinal()] += backend.size();
+            backend.clear();
+        }
+    }
+
+    /**
+     * Position of a peeked connection in its lane, valid for acknowledging it until the lane
+     * is reordered.
+     */
+    static final class Position {
+        final long head;
+        final long generation;
+
+        Position(final long head, final long generation) {
+            this.head = head;
+            this.generation = generation;
+        }
+
+        /**
+         * Returns the position of the connection count places behind this one.
+         */
+        Position plus(final int count) {
+            return new Position(head + count, generation);
+        }
     }
 }
@@ -0,0 +1,71 @@
+package com.mingbikes.acquisition;
+
+import java.util.List;
+
+/**
+ * Request body layout used when several stored records are uploaded in one request.
+ */
+public enum BatchFormat {
+
+    /**
+     * Records are sent as the elements of a JSON array, each record must be valid JSON.
+     */
+    JSON_ARRAY("application/json"),
+
+    /**
+     * Records are sent one per line (newline-delimited JSON).
+     */
+    NEWLINE_DELIMITED("application/x-ndjson"),
+
+    /**
+     * Records are sent in the binary encoding of {@link CompactEventCodec}, several times
+     * smaller than JSON. The server must accept the content type, if it answers
+     * 415 Unsupported Media Type uploads fall back to {@link #JSON_ARRAY}.
+     */
+    COMPACT_BINARY("application/x-acquisition-compact");
+
+    private final String mContentType;
+
+    BatchFormat(final String contentType) {
+        mContentType = contentType;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * Returns true if request bodies in this format are not text.
+     */
+    public boolean isBinary() {
+        return this == COMPACT_BINARY;
+    }
+
+    /**
+     * Joins the records into a single request body of a text format.
+     * @param records records to join, oldest first
+     */
+    String join(final List<String> records) {
+        if (isBinary()) {
+            throw new IllegalStateException(name() + " is not a text format");
+        }
+        int length = 2;
+        for (String record : records) {
+            length += record.length() + 1;
+        }
+        final StringBuilder builder = new StringBuilder(length);
+        if (this == JSON_ARRAY) {
+            builder.append('[');
+        }
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                builder.append(this == JSON_ARRAY ? ',' : '\n');
+            }
+            builder.append(records.get(i));
+        }
+        if (this == JSON_ARRAY) {
+            builder.append(']');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,375 @@
+package com.mingbikes.acquisition;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of upload batches, sent as {@link BatchFormat#COMPACT_BINARY}.
+ *
+ * Every string is written once in a per-batch dictionary and referenced by index, so repeated
+ * event keys and segmentation keys and values cost a byte or two each. Integers are unsigned
+ * LEB128 varints, signed ones zigzag encoded first, and timestamps and sequence numbers are
+ * deltas to the previous event of the batch. Layout:
+ * <pre>
+ * 'M' 'A' version
+ * string count, each string as UTF-8 length and bytes
+ * metadata pair count, each pair as key index and value index
+ * record count, each record as its type and then
+ *   RECORD_RAW:    UTF-8 length and bytes of a record that is not an array of events, or
+ *                  holds timed events, whose durations the compact layout has no room for
+ *   RECORD_EVENTS: event count, each event as
+ *                  key index &lt;&lt; 2 | sum type
+ *                  zigzag count
+ *                  zigzag timestamp delta, in milliseconds
+ *                  zigzag sequence number delta, since version 2
+ *                  segmentation pair count, each pair as key index and value index + 1 (0 for null)
+ *                  sum: zigzag varint for SUM_INTEGRAL, 8 byte big endian IEEE 754 for SUM_DOUBLE
+ * </pre>
+ *
+ * A codec keeps parsing state and must not be shared between threads.
+ */
+final class CompactEventCodec {
+
+    static final int VERSION = 2;
+
+    private static final byte MAGIC_0 = 'M';
+    private static final byte MAGIC_1 = 'A';
+    private static final int RECORD_EVENTS = 0;
+    private static final int RECORD_RAW = 1;
+    private static final int SUM_ZERO = 0;
+    private static final int SUM_INTEGRAL = 1;
+    private static final int SUM_DOUBLE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final EventJsonReader mReader = new EventJsonReader();
+    private final HashMap<String, Integer> mIndexes = new HashMap<>();
+    private final List<String> mStrings = new ArrayList<>();
+
+    /**
+     * Encodes the stored records of one upload batch.
+     * @param records records in store order, arrays of events are encoded compactly and any
+     *                other record is embedded as text
+     * @param metadata string pairs describing the device or session, can be null
+     */
+    byte[] encode(final List<String> records, final Map<String, String> metadata) {
+        mIndexes.clear();
+        mStrings.clear();
+
+        final ByteWriter body = new ByteWriter(256);
+        if (metadata == null) {
+            body.writeVarint(0);
+        } else {
+            body.writeVarint(metadata.size());
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                body.writeVarint(intern(entry.getKey()));
+                body.writeVarint(intern(entry.getValue() != null ? entry.getValue() : ""));
+            }
+        }
+
+        body.writeVarint(records.size());
+        long previousTimestamp = 0;
+        long previousSeq = 0;
+        for (String record : records) {
+            final List<Event> events = mReader.readArray(record);
+            if (events == null || hasTimedEvent(events)) {
+                body.writeVarint(RECORD_RAW);
+                body.writeBytes(record.getBytes(UTF8));
+                continue;
+            }
+            body.writeVarint(RECORD_EVENTS);
+            body.writeVarint(events.size());
+            for (Event event : events) {
+                final double sum = event.sum;
+                final int sumType;
+                if (sum == 0 || Double.isNaN(sum) || Double.isInfinite(sum)) {
+                    // the JSON form leaves out non-finite sums, which then read back as zero
+                    sumType = SUM_ZERO;
+                } else if (sum == (double) (long) sum) {
+                    sumType = SUM_INTEGRAL;
+                } else {
+                    sumType = SUM_DOUBLE;
+                }
+                body.writeVarint(((long) intern(event.key) << 2) | sumType);
+                body.writeZigzag(event.count);
+                body.writeZigzag(event.timestamp - previousTimestamp);
+                previousTimestamp = event.timestamp;
+                body.writeZigzag(event.seq - previousSeq);
+                previousSeq = event.seq;
+
+                if (event.segmentation == null) {
+                    body.writeVarint(0);
+                } else if (event.segmentation instanceof Segmentation) {
+                    // no null names and no entry objects to walk
+                    final Segmentation segmentation = (Segmentation) event.segmentation;
+                    body.writeVarint(segmentation.size());
+                    for (int p = 0; p < segmentation.size(); p++) {
+                        body.writeVarint(intern(segmentation.nameAt(p)));
+                        body.writeVarint(segmentation.valueAt(p) != null ? intern(segmentation.valueAt(p)) + 1 : 0);
+                    }
+                } else {
+                    int pairs = 0;
+                    for (String key : event.segmentation.keySet()) {
+                        if (key != null) {
+                            pairs++;
+                        }
+                    }
+                    body.writeVarint(pairs);
+                    for (Map.Entry<String, String> entry : event.segmentation.entrySet()) {
+                        if (entry.getKey() == null) {
+                            continue;
+                        }
+                        body.writeVarint(intern(entry.getKey()));
+                        body.writeVarint(entry.getValue() != null ? intern(entry.getValue()) + 1 : 0);
+                    }
+                }
+
+                if (sumType == SUM_INTEGRAL) {
+                    body.writeZigzag((long) sum);
+                } else if (sumType == SUM_DOUBLE) {
+                    body.writeLong(Double.doubleToLongBits(sum));
+                }
+            }
+        }
+
+        final ByteWriter out = new ByteWriter(body.mLength + mStrings.size() * 8 + 8);
+        out.writeByte(MAGIC_0);
+        out.writeByte(MAGIC_1);
+        out.writeByte(VERSION);
+        out.writeVarint(mStrings.size());
+        for (String string : mStrings) {
+            out.writeBytes(string.getBytes(UTF8));
+        }
+        out.writeRaw(body.mBuffer, body.mLength);
+        return out.toByteArray();
+    }
+
+    private static boolean hasTimedEvent(final List<Event> events) {
+        for (int i = 0; i < events.size(); i++) {
+            if (events.get(i).isTimed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int intern(final String string) {
+        final Integer index = mIndexes.get(string);
+        if (index != null) {
+            return index;
+        }
+        final int added = mStrings.size();
+        mIndexes.put(string, added);
+        mStrings.add(string);
+        return added;
+    }
+
+    /**
+     * Decodes a batch back to its records, events in their JSON form.
+     * @param metadata receives the metadata pairs, can be null
+     * @throws IllegalArgumentException if the data is not a valid batch
+     */
+    static List<String> decode(final byte[] data, final Map<String, String> metadata) {
+        try {
+            return decodeBatch(data, metadata);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid string index", e);
+        }
+    }
+
+    private static List<String> decodeBatch(final byte[] data, final Map<String, String> metadata) {
+        final ByteReader in = new ByteReader(data);
+        if (in.readByte() != MAGIC_0 || in.readByte() != MAGIC_1) {
+            throw new IllegalArgumentException("not a compact batch");
+        }
+        final int version = in.readByte();
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("unsupported compact batch version " + version);
+        }
+        final String[] strings = new String[in.readCount()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+
+        final int metadataCount = in.readCount();
+        for (int i = 0; i < metadataCount; i++) {
+            final String key = strings[in.readCount()];
+            final String value = strings[in.readCount()];
+            if (metadata != null) {
+                metadata.put(key, value);
+            }
+        }
+
+        final int recordCount = in.readCount();
+        final List<String> records = new ArrayList<>(recordCount);
+        final StringBuilder json = new StringBuilder(256);
+        long timestamp = 0;
+        long seq = 0;
+        for (int r = 0; r < recordCount; r++) {
+            final int type = in.readCount();
+            if (type == RECORD_RAW) {
+                records.add(in.readString());
+                continue;
+            } else if (type != RECORD_EVENTS) {
+                throw new IllegalArgumentException("unknown record type " + type);
+            }
+            json.setLength(0);
+            json.append('[');
+            final int eventCount = in.readCount();
+            for (int e = 0; e < eventCount; e++) {
+                final long header = in.readVarint();
+                final Event event = new Event();
+                event.key = strings[(int) (header >>> 2)];
+                event.count = (int) in.readZigzag();
+                timestamp += in.readZigzag();
+                // version 1 was written while stored timestamps could still be in seconds
+                event.timestamp = version >= 2 ? timestamp : Event.toMillis(timestamp);
+                if (version >= 2) {
+                    seq += in.readZigzag();
+                    event.seq = seq;
+                }
+                final int pairs = in.readCount();
+                if (pairs > 0) {
+                    final String[] segmentation = new String[pairs * 2];
+                    for (int p = 0; p < pairs; p++) {
+                        segmentation[p * 2] = strings[in.readCount()];
+                        final int value = in.readCount();
+                        segmentation[p * 2 + 1] = value == 0 ? null : strings[value - 1];
+                    }
+                    event.segmentation = Segmentation.of(segmentation, segmentation.length);
+                }
+                final int sumType = (int) (header & 3);
+                if (sumType == SUM_INTEGRAL) {
+                    event.sum = in.readZigzag();
+                } else if (sumType == SUM_DOUBLE) {
+                    event.sum = Double.longBitsToDouble(in.readLong());
+                }
+                if (e > 0) {
+                    json.append(',');
+                }
+                EventJsonWriter.write(event, json);
+            }
+            records.add(json.append(']').toString());
+        }
+        return records;
+    }
+
+    private static final class ByteWriter {
+
+        byte[] mBuffer;
+        int mLength;
+
+        ByteWriter(final int capacity) {
+            mBuffer = new byte[Math.max(capacity, 16)];
+        }
+
+        void writeByte(final int value) {
+            ensure(1);
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) value;
+        }
+
+        void writeZigzag(final long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(final long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mBuffer[mLength++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(final byte[] bytes) {
+            writeVarint(bytes.length);
+            writeRaw(bytes, bytes.length);
+        }
+
+        void writeRaw(final byte[] bytes, final int length) {
+            ensure(length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, length);
+            mLength += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+
+        private void ensure(final int extra) {
+            if (mLength + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+            }
+        }
+    }
+
+    private static final class ByteReader {
+
+        private final byte[] mData;
+        private int mPosition;
+
+        ByteReader(final byte[] data) {
+            mData = data;
+        }
+
+        int readByte() {
+            if (mPosition >= mData.length) {
+                throw new IllegalArgumentException("truncated batch");
+            }
+            return mData[mPosition++];
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        int readCount() {
+            final long value = readVarint();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("invalid count " + value);
+            }
+            return (int) value;
+        }
+
+        long readZigzag() {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        String readString() {
+            final int length = readCount();
+            if (length > mData.length - mPosition) {
+                throw new IllegalArgumentException("truncated batch");
+            }
+            final String value = new String(mData, mPosition, length, UTF8);
+            mPosition += length;
+            return value;
+        }
+    }
+}
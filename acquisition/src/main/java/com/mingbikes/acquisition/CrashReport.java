@@ -1,7 +1,403 @@
 package com.mingbikes.acquisition;
 
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
 /**
+ * Crash reports, written to disk by the uncaught exception handler before the process dies.
+ *
+ * Enabling crash reporting only allocates the report buffer. The crash file is created at full
+ * size and its channel opened by {@link #open}, off the main thread, and the device part of
+ * the report is encoded ahead of time. A fatal crash then only
+ * encodes the stack trace into a preallocated buffer and writes it with one positional write,
+ * without a JSON library. If an allocation fails while doing so, for example on an
+ * OutOfMemoryError, the report is cut short instead of lost.
+ *
+ * A crash before the file is open is not written to it, the caller stores it like other records.
  *
+ * On the next start the written file is renamed to a pending file and a fresh one is created.
+ * The upload thread moves pending files into the {@link Lane#CRASH} lane, which is drained first.
+ * File layout: magic "ACR1", big endian record length, UTF-8 JSON record, zero padding.
  */
 public class CrashReport {
+
+    static final int FILE_SIZE = 64 * 1024;
+    static final String FILE_NAME = "acquisition_crash";
+    private static final String PENDING_PREFIX = FILE_NAME + "_";
+    private static final String PENDING_SUFFIX = ".pending";
+
+    private static final int MAGIC = 0x41435231;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_CAUSES = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+
+    private final File mDirectory;
+    // set once the crash file is allocated, null until then
+    private volatile FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(FILE_SIZE);
+    private final byte[] mDigits = new byte[20];
+    private volatile byte[] mDeviceJson;
+    private volatile DeviceSnapshot mSnapshot;
+    private volatile boolean mHasPending;
+    private int mLimit;
+
+    /**
+     * @param directory directory holding the crash files, see {@link #open}
+     */
+    CrashReport(final File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Moves a crash written by the previous process to a pending file and opens a fresh,
+     * fully allocated crash file. Writes and syncs the whole file, so call it off the main thread.
+     * @throws IOException if the crash file could not be created
+     */
+    synchronized void open() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+        final File file = new File(mDirectory, FILE_NAME);
+        if (readRecord(file) != null) {
+            final File pending = new File(mDirectory, PENDING_PREFIX + System.currentTimeMillis() + PENDING_SUFFIX);
+            if (!file.renameTo(pending)) {
+                throw new IOException("could not move crash file to " + pending);
+            }
+        }
+        mHasPending = pendingFiles().length > 0;
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        final FileChannel channel = raf.getChannel();
+        try {
+            if (raf.length() != FILE_SIZE) {
+                // write the zeros instead of only setting the length, so the blocks exist and the
+                // crash write cannot fail for lack of space
+                raf.setLength(0);
+                mBuffer.clear();
+                while (mBuffer.hasRemaining()) {
+                    channel.write(mBuffer);
+                }
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        mChannel = channel;
+    }
+
+    /**
+     * Encodes the static device fields for later reports and keeps the snapshot for the
+     * dynamic ones. Reads the device on first use, so call it off the main thread.
+     */
+    void prepare(final DeviceSnapshot snapshot) {
+        mDeviceJson = snapshot.getStaticJson().getBytes(UTF8);
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Writes the fatal crash to the crash file and forces it to disk.
+     * @return false if the crash file is not open yet or could not be written
+     */
+    synchronized boolean writeFatal(final Throwable throwable) {
+        final FileChannel channel = mChannel;
+        if (channel == null) {
+            return false;
+        }
+        mBuffer.clear();
+        mBuffer.position(HEADER_SIZE);
+        // keep room for the closing quote and brace whatever the trace length
+        mLimit = FILE_SIZE - 2;
+
+        put('{');
+        final byte[] device = mDeviceJson;
+        if (device != null && device.length + 64 < mLimit) {
+            mBuffer.put(device);
+            put(',');
+        }
+        putAscii("\"_nonfatal\":false,\"_timestamp\":");
+        putLong(System.currentTimeMillis());
+        putAscii(",\"_seq\":");
+        putLong(Event.nextSequence());
+        putDynamicFields();
+        putAscii(",\"_error\":\"");
+        try {
+            putThrowable(throwable);
+        } catch (Throwable ignored) {
+            // out of memory or a broken throwable, keep what was encoded
+        }
+        mLimit = FILE_SIZE;
+        put('"');
+        put('}');
+
+        final int length = mBuffer.position() - HEADER_SIZE;
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, length);
+        mBuffer.flip();
+        try {
+            long position = 0;
+            while (mBuffer.hasRemaining()) {
+                position += channel.write(mBuffer, position);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Could not write crash report", e);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void putDynamicFields() {
+        final DeviceSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return;
+        }
+        final int start = mBuffer.position();
+        try {
+            for (Map.Entry<String, String> field : snapshot.getDynamicFields().entrySet()) {
+                put(',');
+                put('"');
+                putEscaped(field.getKey());
+                putAscii("\":\"");
+                putEscaped(field.getValue());
+                put('"');
+            }
+        } catch (Throwable ignored) {
+            // the dynamic fields are optional, drop them rather than the report
+            mBuffer.position(start);
+        }
+    }
+
+    private void putThrowable(final Throwable throwable) {
+        Throwable cause = throwable;
+        for (int depth = 0; cause != null && depth < MAX_CAUSES; depth++) {
+            if (depth > 0) {
+                putAscii("\\nCaused by: ");
+            }
+            putEscaped(cause.getClass().getName());
+            final String message = cause.getLocalizedMessage();
+            if (message != null) {
+                putAscii(": ");
+                putEscaped(message);
+            }
+            for (StackTraceElement element : cause.getStackTrace()) {
+                putAscii("\\n\\tat ");
+                putEscaped(element.getClassName());
+                put('.');
+                putEscaped(element.getMethodName());
+                put('(');
+                if (element.isNativeMethod()) {
+                    putAscii("Native Method");
+                } else if (element.getFileName() == null) {
+                    putAscii("Unknown Source");
+                } else {
+                    putEscaped(element.getFileName());
+                    if (element.getLineNumber() >= 0) {
+                        put(':');
+                        putLong(element.getLineNumber());
+                    }
+                }
+                put(')');
+                if (mBuffer.position() >= mLimit) {
+                    return;
+                }
+            }
+            final Throwable next = cause.getCause();
+            cause = next != cause ? next : null;
+        }
+    }
+
+    private void put(final char c) {
+        if (mBuffer.position() < mLimit) {
+            mBuffer.put((byte) c);
+        }
+    }
+
+    private void putAscii(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int i = mDigits.length;
+        do {
+            mDigits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (i < mDigits.length) {
+            put((char) mDigits[i++]);
+        }
+    }
+
+    /**
+     * Writes the string as UTF-8 with JSON escapes, dropping a character that does not fit.
+     */
+    private void putEscaped(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            final int room = mLimit - mBuffer.position();
+            if (c == '"' || c == '\\') {
+                if (room < 2) {
+                    return;
+                }
+                mBuffer.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                if (room < 6) {
+                    return;
+                }
+                mBuffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+                        .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                if (room < 1) {
+                    return;
+                }
+                mBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                if (room < 2) {
+                    return;
+                }
+                mBuffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (room < 4) {
+                    return;
+                }
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                mBuffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, not valid UTF-8
+                if (room < 1) {
+                    return;
+                }
+                mBuffer.put((byte) '?');
+            } else {
+                if (room < 3) {
+                    return;
+                }
+                mBuffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F))
+                        .put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Returns whether crash files from earlier processes are waiting for upload.
+     */
+    boolean hasPending() {
+        return mHasPending;
+    }
+
+    /**
+     * Marks the pending files as uploaded, new ones only appear when the next process starts.
+     */
+    void clearPending() {
+        mHasPending = false;
+    }
+
+    /**
+     * Returns the pending crash files, oldest first.
+     */
+    File[] pendingFiles() {
+        final File[] files = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                final String name = file.getName();
+                return name.startsWith(PENDING_PREFIX) && name.endsWith(PENDING_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            mHasPending = false;
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File f1, final File f2) {
+                return f1.getName().length() != f2.getName().length()
+                        ? f1.getName().length() - f2.getName().length() : f1.getName().compareTo(f2.getName());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Returns the record held by the crash file, or null if it holds none or is damaged.
+     */
+    static String readRecord(final File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final int magic = raf.readInt();
+            final int length = raf.readInt();
+            if (magic != MAGIC || length <= 0 || length > raf.length() - HEADER_SIZE) {
+                return null;
+            }
+            final byte[] record = new byte[length];
+            raf.readFully(record);
+            return new String(record, UTF8);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a crash record for the regular store, used for handled exceptions.
+     * @param context session context to refer to instead of the static device fields, null to
+     *                include them
+     */
+    static String buildRecord(final String error, final boolean nonfatal, final DeviceSnapshot snapshot,
+                              final SessionContext context) {
+        final StringBuilder json = new StringBuilder(error.length() + 512);
+        json.append('{');
+        if (context != null) {
+            EventJsonWriter.writeString(SessionContext.FIELD, json);
+            json.append(':');
+            EventJsonWriter.writeString(context.getId(), json);
+        } else {
+            json.append(snapshot.getStaticJson());
+        }
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        json.append("\"_nonfatal\":").append(nonfatal).append(",\"_timestamp\":").append(System.currentTimeMillis())
+                .append(",\"_seq\":").append(Event.nextSequence());
+        for (Map.Entry<String, String> field : snapshot.getDynamicFields().entrySet()) {
+            json.append(',');
+            EventJsonWriter.writeString(field.getKey(), json);
+            json.append(':');
+            EventJsonWriter.writeString(field.getValue(), json);
+        }
+        json.append(",\"_error\":");
+        EventJsonWriter.writeString(error, json);
+        return json.append('}').toString();
+    }
 }
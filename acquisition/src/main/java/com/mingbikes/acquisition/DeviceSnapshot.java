@@ -0,0 +1,227 @@
+package com.mingbikes.acquisition;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import utils.DeviceInfo;
+
+/**
+ * Device metadata for crash and event payloads, gathered without probing the system on
+ * every report.
+ *
+ * Fields that cannot change while the process runs are read once and kept as a map and as a
+ * pre-serialized JSON fragment. Battery, connectivity and ringer state are updated from
+ * broadcasts, disk and memory usage are re-read after a short TTL, and orientation is read
+ * from the current configuration, which costs no IPC.
+ */
+public final class DeviceSnapshot {
+
+    static final long DEFAULT_DISK_TTL_MILLIS = 5 * 60 * 1000;
+    static final long DEFAULT_RAM_TTL_MILLIS = 30 * 1000;
+
+    private static volatile DeviceSnapshot sInstance;
+
+    private final Context mContext;
+    private final Map<String, String> mStaticFields;
+    private final String mStaticJson;
+
+    private volatile String mBatteryLevel;
+    private volatile String mOnline;
+    private volatile String mMetered;
+    private final List<Runnable> mNetworkListeners = new CopyOnWriteArrayList<>();
+    private volatile String mMuted;
+    private volatile String mDiskCurrent;
+    private volatile String mDiskTotal;
+    private volatile long mDiskExpiresAt;
+    private volatile String mRamCurrent;
+    private volatile long mRamExpiresAt;
+
+    /**
+     * Returns the process wide snapshot, creating it on first use. The first call reads the
+     * static fields and registers the broadcast receivers, so avoid making it on the main thread.
+     */
+    public static DeviceSnapshot get(final Context context) {
+        DeviceSnapshot snapshot = sInstance;
+        if (snapshot == null) {
+            synchronized (DeviceSnapshot.class) {
+                snapshot = sInstance;
+                if (snapshot == null) {
+                    final Context applicationContext = context.getApplicationContext();
+                    snapshot = new DeviceSnapshot(applicationContext != null ? applicationContext : context);
+                    sInstance = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private DeviceSnapshot(final Context context) {
+        mContext = context;
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+        putIfNotEmpty(fields, "_device", DeviceInfo.getDevice());
+        putIfNotEmpty(fields, "_os", DeviceInfo.getOS());
+        putIfNotEmpty(fields, "_os_version", DeviceInfo.getOSVersion());
+        putIfNotEmpty(fields, "_app_version", DeviceInfo.getAppVersion(context));
+        putIfNotEmpty(fields, "_manufacturer", DeviceInfo.getManufacturer());
+        putIfNotEmpty(fields, "_cpu", DeviceInfo.getCpu());
+        putIfNotEmpty(fields, "_opengl", DeviceInfo.getOpenGL(context));
+        putIfNotEmpty(fields, "_density", DeviceInfo.getDensity(context));
+        putIfNotEmpty(fields, "_ram_total", DeviceInfo.getRamTotal(context));
+        putIfNotEmpty(fields, "_root", DeviceInfo.isRooted());
+        mStaticFields = Collections.unmodifiableMap(fields);
+
+        final StringBuilder json = new StringBuilder(256);
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (json.length() > 0) {
+                json.append(',');
+            }
+            EventJsonWriter.writeString(field.getKey(), json);
+            json.append(':');
+            EventJsonWriter.writeString(field.getValue(), json);
+        }
+        mStaticJson = json.toString();
+
+        registerReceivers();
+    }
+
+    private void registerReceivers() {
+        try {
+            // the battery broadcast is sticky, so registering returns the current level right away
+            final Intent battery = mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(final Context context, final Intent intent) {
+                    mBatteryLevel = DeviceInfo.getBatteryLevel(intent);
+                }
+            }, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            mBatteryLevel = DeviceInfo.getBatteryLevel(battery);
+
+            mOnline = DeviceInfo.isOnline(mContext);
+            mMetered = DeviceInfo.isMetered(mContext);
+            mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(final Context context, final Intent intent) {
+                    mOnline = DeviceInfo.isOnline(context);
+                    mMetered = DeviceInfo.isMetered(context);
+                    for (Runnable listener : mNetworkListeners) {
+                        listener.run();
+                    }
+                }
+            }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+            mMuted = DeviceInfo.isMuted(mContext);
+            mContext.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(final Context context, final Intent intent) {
+                    mMuted = DeviceInfo.isMuted(context);
+                }
+            }, new IntentFilter(AudioManager.RINGER_MODE_CHANGED_ACTION));
+        } catch (RuntimeException e) {
+            // some contexts, such as receiver restricted ones, refuse registrations
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Could not register device state receivers", e);
+            }
+        }
+    }
+
+    /**
+     * Returns false only if the device is known to have no network connection.
+     */
+    public boolean isOnline() {
+        return !"false".equals(mOnline);
+    }
+
+    /**
+     * Returns true if the active network is known to be metered.
+     */
+    public boolean isMetered() {
+        return "true".equals(mMetered);
+    }
+
+    /**
+     * Adds a listener run on the main thread after each connectivity change.
+     */
+    void addNetworkListener(final Runnable listener) {
+        mNetworkListeners.add(listener);
+    }
+
+    void removeNetworkListener(final Runnable listener) {
+        mNetworkListeners.remove(listener);
+    }
+
+    /**
+     * Returns the fields that do not change while the process runs.
+     */
+    public Map<String, String> getStaticFields() {
+        return mStaticFields;
+    }
+
+    /**
+     * Returns the static fields as JSON object members without the enclosing braces, ready to
+     * be appended to a payload.
+     */
+    public String getStaticJson() {
+        return mStaticJson;
+    }
+
+    /**
+     * Returns the current values of the fields that change over time, leaving out unknown ones.
+     */
+    public Map<String, String> getDynamicFields() {
+        final long now = System.currentTimeMillis();
+        if (now >= mDiskExpiresAt) {
+            mDiskCurrent = DeviceInfo.getDiskCurrent();
+            mDiskTotal = DeviceInfo.getDiskTotal();
+            mDiskExpiresAt = now + DEFAULT_DISK_TTL_MILLIS;
+        }
+        if (now >= mRamExpiresAt) {
+            mRamCurrent = DeviceInfo.getRamCurrent(mContext);
+            mRamExpiresAt = now + DEFAULT_RAM_TTL_MILLIS;
+        }
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+        putIfNotEmpty(fields, "_battery", mBatteryLevel);
+        putIfNotEmpty(fields, "_online", mOnline);
+        putIfNotEmpty(fields, "_muted", mMuted);
+        putIfNotEmpty(fields, "_orientation", DeviceInfo.getOrientation(mContext));
+        putIfNotEmpty(fields, "_disk_current", mDiskCurrent);
+        putIfNotEmpty(fields, "_disk_total", mDiskTotal);
+        putIfNotEmpty(fields, "_ram_current", mRamCurrent);
+        putIfNotEmpty(fields, "_run", DeviceInfo.getRunningTime());
+        return fields;
+    }
+
+    /**
+     * Returns all fields as a JSON object, the static part copied from the cached fragment.
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder(mStaticJson.length() + 256);
+        json.append('{').append(mStaticJson);
+        for (Map.Entry<String, String> field : getDynamicFields().entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            EventJsonWriter.writeString(field.getKey(), json);
+            json.append(':');
+            EventJsonWriter.writeString(field.getValue(), json);
+        }
+        return json.append('}').toString();
+    }
+
+    private static void putIfNotEmpty(final Map<String, String> map, final String key, final String value) {
+        if (value != null && value.length() > 0) {
+            map.put(key, value);
+        }
+    }
+}
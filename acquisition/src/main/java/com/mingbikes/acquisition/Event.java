@@ -5,11 +5,12 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import utils.TimeUtils;
+import utils.CoarseClock;
 
 /**
  *
@@ -20,18 +21,74 @@ public class Event{
     private static final String COUNT_KEY = "count";
     private static final String SUM_KEY = "sum";
     private static final String TIMESTAMP_KEY = "timestamp";
+    private static final String SEQ_KEY = "seq";
+    private static final String MIN_KEY = "min";
+    private static final String MAX_KEY = "max";
+    private static final String START_KEY = "start";
 
     public String key;
     public Map<String, String> segmentation;
     public int count;
     public double sum;
-    public int timestamp;
+    /**
+     * Wall clock time in milliseconds the event was recorded, read from {@link CoarseClock}
+     * so it follows changes of the system time within {@link CoarseClock#SYNC_MILLIS}.
+     */
+    public long timestamp;
+    /**
+     * Number of the event within this process, increasing in recording order, so events of the
+     * same millisecond keep their order and no two recorded events are equal.
+     */
+    public long seq;
+    /**
+     * Shortest and longest duration in milliseconds of a timed event, see
+     * {@link Acquisition#startEvent}; NaN for events that are not timed. The sum holds the
+     * total duration.
+     */
+    public double min = Double.NaN;
+    public double max = Double.NaN;
+    /**
+     * Wall clock time in milliseconds the earliest of the durations started, 0 if not timed.
+     */
+    public long start;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    // stored events written before timestamps had millisecond resolution hold seconds
+    private static final long MIN_MILLIS_TIMESTAMP = 100000000000L;
+
+    /**
+     * Orders events by timestamp and then by sequence number.
+     */
+    static final Comparator<Event> ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(final Event a, final Event b) {
+            if (a.timestamp != b.timestamp) {
+                return a.timestamp < b.timestamp ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+        }
+    };
 
     Event () {}
 
     public Event (String key) {
         this.key = key;
-        this.timestamp = TimeUtils.currentTimestamp();
+        this.timestamp = CoarseClock.millis();
+        this.seq = nextSequence();
+    }
+
+    /**
+     * Returns the next sequence number of this process, for events and other records.
+     */
+    static long nextSequence() {
+        return SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * Returns a stored timestamp in milliseconds, converting one stored in seconds.
+     */
+    static long toMillis(final long timestamp) {
+        return timestamp > 0 && timestamp < MIN_MILLIS_TIMESTAMP ? timestamp * 1000 : timestamp;
     }
 
     /**
@@ -45,11 +102,18 @@ public class Event{
             json.put(KEY_KEY, key);
             json.put(COUNT_KEY, count);
             json.put(TIMESTAMP_KEY, timestamp);
+            json.put(SEQ_KEY, seq);
 
             if (segmentation != null) {
                 json.put(SEGMENTATION_KEY, new JSONObject(segmentation));
             }
 
+            if (isTimed()) {
+                json.put(MIN_KEY, min);
+                json.put(MAX_KEY, max);
+                json.put(START_KEY, start);
+            }
+
             // we put in the sum last, the only reason that a JSONException would be thrown
             // would be if sum is NaN or infinite, so in that case, at least we will return
             // a JSON object with the rest of the fields populated
@@ -75,24 +139,31 @@ public class Event{
         Event event = new Event();
 
         try {
+            final SymbolTable symbols = SymbolTable.shared();
             if (!json.isNull(KEY_KEY)) {
-                event.key = json.getString(KEY_KEY);
+                event.key = symbols.intern(json.getString(KEY_KEY));
             }
             event.count = json.optInt(COUNT_KEY);
             event.sum = json.optDouble(SUM_KEY, 0.0d);
-            event.timestamp = json.optInt(TIMESTAMP_KEY);
+            event.timestamp = toMillis(json.optLong(TIMESTAMP_KEY));
+            event.seq = json.optLong(SEQ_KEY);
+            event.min = json.optDouble(MIN_KEY, Double.NaN);
+            event.max = json.optDouble(MAX_KEY, Double.NaN);
+            event.start = json.optLong(START_KEY);
 
             if (!json.isNull(SEGMENTATION_KEY)) {
                 final JSONObject segm = json.getJSONObject(SEGMENTATION_KEY);
-                final HashMap<String, String> segmentation = new HashMap<>(segm.length());
+                final String[] pairs = new String[segm.length() * 2];
+                int length = 0;
                 final Iterator nameItr = segm.keys();
                 while (nameItr.hasNext()) {
                     final String key = (String) nameItr.next();
                     if (!segm.isNull(key)) {
-                        segmentation.put(key, segm.getString(key));
+                        pairs[length++] = symbols.intern(key);
+                        pairs[length++] = symbols.intern(segm.getString(key));
                     }
                 }
-                event.segmentation = segmentation;
+                event.segmentation = Segmentation.of(pairs, length);
             }
         }
         catch (JSONException e) {
@@ -105,6 +176,13 @@ public class Event{
         return (event != null && event.key != null && event.key.length() > 0) ? event : null;
     }
 
+    /**
+     * Returns true if the event holds durations.
+     */
+    boolean isTimed() {
+        return !Double.isNaN(min);
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (o == null || !(o instanceof Event)) {
@@ -113,15 +191,20 @@ public class Event{
 
         final Event e = (Event) o;
 
-        return (key == null ? e.key == null : key.equals(e.key)) &&
-                timestamp == e.timestamp &&
-                (segmentation == null ? e.segmentation == null : segmentation.equals(e.segmentation));
+        // keys and segmentations read from the store are interned, identity usually decides
+        return timestamp == e.timestamp && seq == e.seq &&
+                (key == e.key || (key != null && key.equals(e.key))) &&
+                (segmentation == e.segmentation || (segmentation != null && segmentation.equals(e.segmentation)));
     }
 
+    /**
+     * Cheap for events read from the store: String and {@link Segmentation} hash once.
+     */
     @Override
     public int hashCode() {
         return (key != null ? key.hashCode() : 1) ^
                 (segmentation != null ? segmentation.hashCode() : 1) ^
-                (timestamp != 0 ? (int)timestamp : 1);
+                (timestamp != 0 ? (int) (timestamp ^ (timestamp >>> 32)) : 1) ^
+                (int) seq;
     }
 }
@@ -0,0 +1,213 @@
+package com.mingbikes.acquisition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory buffer that coalesces events with the same key and segmentation by adding up
+ * their count and sum. Buckets are written to the store as one record each when the number
+ * of buckets or the time since the last flush reaches its limit.
+ *
+ * Buckets are spread over lock stripes by event key, so concurrent callers recording
+ * different keys do not contend, and recording into an existing bucket does not allocate.
+ * A new bucket interns its key and copies the segmentation into a compact {@link Segmentation},
+ * so buckets hash and compare cheaply and share their strings with stored events.
+ */
+class EventAggregator {
+
+    static final int DEFAULT_MAX_BUCKETS = 50;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60 * 1000;
+    private static final int STRIPES = 16;
+
+    private final AcquisitionStore mStore;
+    private final EventSampler mSampler;
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+    private final SymbolTable mSymbols = SymbolTable.shared();
+    private final AtomicInteger mBuckets = new AtomicInteger();
+
+    private volatile int mMaxBuckets = DEFAULT_MAX_BUCKETS;
+    private volatile long mFlushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private volatile long mLastFlushMillis = System.currentTimeMillis();
+    private volatile Runnable mBucketListener;
+
+    private static class Stripe {
+        // event key -> segmentation -> bucket, a null segmentation is a valid key
+        HashMap<String, HashMap<Map<String, String>, Event>> buckets = new HashMap<>();
+    }
+
+    /**
+     * @param sampler policies applied at {@link SamplingStage#TAIL} when buckets are flushed, may be null
+     */
+    EventAggregator(final AcquisitionStore store, final EventSampler sampler) {
+        if (store == null) {
+            throw new IllegalArgumentException("must provide valid store");
+        }
+        mStore = store;
+        mSampler = sampler;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Sets when buffered buckets are written to the store.
+     * @param maxBuckets number of distinct buckets that triggers a flush
+     * @param flushIntervalMillis maximum age of the buffer before it is flushed
+     */
+    void setFlushPolicy(final int maxBuckets, final long flushIntervalMillis) {
+        mMaxBuckets = maxBuckets;
+        mFlushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Sets what is run when a bucket is created in an empty buffer, from then on the buffer
+     * is flushed once the flush interval has passed.
+     */
+    void setBucketListener(final Runnable listener) {
+        mBucketListener = listener;
+    }
+
+    /**
+     * Adds the event to its bucket, flushing the buffer if a limit has been reached.
+     * @param key name of the event, must not be null or empty
+     * @param segmentation segmentation of the event, may be null, must not be modified afterwards
+     * @return true if the buffer was flushed to the store
+     */
+    boolean add(final String key, final Map<String, String> segmentation, final int count, final double sum) {
+        return add(key, segmentation, count, sum, Double.NaN, 0);
+    }
+
+    /**
+     * Adds a duration to its bucket, which also keeps the shortest and longest duration and the
+     * earliest start, flushing the buffer if a limit has been reached.
+     * @param count count to add, more than 1 if the duration stands for skipped ones as well
+     * @param sum total duration to add in milliseconds
+     * @param durationMillis the measured duration
+     * @param startMillis wall clock time the duration started
+     * @return true if the buffer was flushed to the store
+     */
+    boolean addDuration(final String key, final Map<String, String> segmentation, final int count, final double sum,
+                        final double durationMillis, final long startMillis) {
+        return add(key, segmentation, count, sum, durationMillis, startMillis);
+    }
+
+    private boolean add(final String key, final Map<String, String> segmentation, final int count, final double sum,
+                        final double durationMillis, final long startMillis) {
+        final Stripe stripe = mStripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+        boolean created = false;
+        synchronized (stripe) {
+            HashMap<Map<String, String>, Event> segments = stripe.buckets.get(key);
+            if (segments == null) {
+                segments = new HashMap<>(4);
+                stripe.buckets.put(mSymbols.intern(key), segments);
+            }
+            Event event = segments.get(segmentation);
+            if (event == null) {
+                // a map the bucket is not equal to, one with a null name for example, can still
+                // belong to an existing bucket once its pairs are normalized
+                final Segmentation normalized = Segmentation.of(segmentation, mSymbols);
+                event = segments.get(normalized);
+                if (event == null) {
+                    event = new Event(mSymbols.intern(key));
+                    event.segmentation = normalized;
+                    segments.put(normalized, event);
+                    created = true;
+                }
+            }
+            event.count += count;
+            event.sum += sum;
+            if (!Double.isNaN(durationMillis)) {
+                if (!event.isTimed()) {
+                    event.min = durationMillis;
+                    event.max = durationMillis;
+                    event.start = startMillis;
+                } else {
+                    event.min = Math.min(event.min, durationMillis);
+                    event.max = Math.max(event.max, durationMillis);
+                    event.start = Math.min(event.start, startMillis);
+                }
+            }
+        }
+
+        final int buckets = created ? mBuckets.incrementAndGet() : mBuckets.get();
+        if (buckets >= mMaxBuckets || System.currentTimeMillis() - mLastFlushMillis >= mFlushIntervalMillis) {
+            flush();
+            return true;
+        }
+        final Runnable listener = mBucketListener;
+        if (created && buckets == 1 && listener != null) {
+            listener.run();
+        }
+        return false;
+    }
+
+    /**
+     * Flushes the buffer if it holds buckets older than the flush interval.
+     * @return true if the buffer was flushed to the store
+     */
+    boolean flushIfDue() {
+        if (mBuckets.get() > 0 && System.currentTimeMillis() - mLastFlushMillis >= mFlushIntervalMillis) {
+            flush();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time in nanoseconds until the buffer is due to be flushed, at least 1, or -1
+     * if it holds no buckets.
+     */
+    long nanosUntilFlush() {
+        if (mBuckets.get() == 0) {
+            return -1;
+        }
+        final long millis = mLastFlushMillis + mFlushIntervalMillis - System.currentTimeMillis();
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(millis), 1);
+    }
+
+    /**
+     * Writes one record per bucket kept by the sampling policies to the store in a single
+     * commit and empties the buffer.
+     * @return number of records written
+     */
+    int flush() {
+        mLastFlushMillis = System.currentTimeMillis();
+        final List<Event> events = new ArrayList<>();
+        int removed = 0;
+        for (Stripe stripe : mStripes) {
+            final HashMap<String, HashMap<Map<String, String>, Event>> buckets;
+            synchronized (stripe) {
+                if (stripe.buckets.isEmpty()) {
+                    continue;
+                }
+                buckets = stripe.buckets;
+                stripe.buckets = new HashMap<>();
+            }
+            for (HashMap<Map<String, String>, Event> segments : buckets.values()) {
+                for (Event event : segments.values()) {
+                    removed++;
+                    if (mSampler == null || mSampler.sample(event, SamplingStage.TAIL)) {
+                        events.add(event);
+                    }
+                }
+            }
+        }
+        mBuckets.addAndGet(-removed);
+        if (events.isEmpty()) {
+            return 0;
+        }
+        mStore.addEvents(events);
+        return events.size();
+    }
+
+    /**
+     * Returns the number of buckets currently buffered.
+     */
+    int size() {
+        return mBuckets.get();
+    }
+}
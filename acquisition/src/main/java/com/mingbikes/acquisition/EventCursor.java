@@ -0,0 +1,54 @@
+package com.mingbikes.acquisition;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the events of a delimited string as written by {@link AcquisitionStore},
+ * decoding each event only when it is reached. Records that cannot be decoded are skipped.
+ *
+ * A cursor works on the string it was created with and must not be shared between threads.
+ */
+final class EventCursor implements Iterator<Event> {
+
+    private final String mJoined;
+    private final String mDelimiter;
+    private final EventJsonReader mReader = new EventJsonReader();
+    private int mPosition;
+    private Event mNext;
+
+    EventCursor(final String joined, final String delimiter) {
+        mJoined = joined;
+        mDelimiter = delimiter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mNext == null && mPosition < mJoined.length()) {
+            int end = mJoined.indexOf(mDelimiter, mPosition);
+            if (end < 0) {
+                end = mJoined.length();
+            }
+            if (end > mPosition) {
+                mNext = mReader.read(mJoined, mPosition, end);
+            }
+            mPosition = end + mDelimiter.length();
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Event event = mNext;
+        mNext = null;
+        return event;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
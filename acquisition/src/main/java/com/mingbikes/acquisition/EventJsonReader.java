@@ -0,0 +1,477 @@
+package com.mingbikes.acquisition;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses events from their JSON representation with a char buffer tokenizer instead of
+ * org.json, reading the same fields and applying the same coercions as {@link Event#fromJSON}.
+ * Field names are matched in place, keys and segmentation are interned in the
+ * {@link SymbolTable} straight from the buffer, so only strings not seen before are allocated.
+ *
+ * A reader reuses its buffer between calls and must not be shared between threads.
+ */
+final class EventJsonReader {
+
+    private static final int FIELD_UNKNOWN = 0;
+    private static final int FIELD_KEY = 1;
+    private static final int FIELD_COUNT = 2;
+    private static final int FIELD_SUM = 3;
+    private static final int FIELD_TIMESTAMP = 4;
+    private static final int FIELD_SEGMENTATION = 5;
+    private static final int FIELD_MIN = 6;
+    private static final int FIELD_MAX = 7;
+    private static final int FIELD_START = 8;
+    private static final int FIELD_SEQ = 9;
+
+    private final SymbolTable mSymbols = SymbolTable.shared();
+    private char[] mBuffer = new char[256];
+    // names and values of the segmentation being read
+    private String[] mPairs = new String[16];
+    private int mPosition;
+    private int mLimit;
+
+    private static class MalformedJsonException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parses the event held in json between start (inclusive) and end (exclusive).
+     * @return the event, or null if the JSON is malformed or has no "key" value
+     */
+    Event read(final String json, final int start, final int end) {
+        final int length = end - start;
+        if (mBuffer.length < length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        json.getChars(start, end, mBuffer, 0);
+        mPosition = 0;
+        mLimit = length;
+
+        try {
+            final Event event = readEvent();
+            return (event.key != null && event.key.length() > 0) ? event : null;
+        } catch (MalformedJsonException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception converting JSON to an Event", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Parses a JSON array of events, as stored for upload by {@link Acquisition#sendEvents}.
+     * @return the events, or null if the JSON is not an array of events that all have a key
+     */
+    List<Event> readArray(final String json) {
+        final int length = json.length();
+        if (mBuffer.length < length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        json.getChars(0, length, mBuffer, 0);
+        mPosition = 0;
+        mLimit = length;
+
+        final List<Event> events = new ArrayList<>();
+        try {
+            expect('[');
+            if (peek() == ']') {
+                mPosition++;
+            } else {
+                do {
+                    final Event event = readEvent();
+                    if (event.key == null || event.key.length() == 0) {
+                        return null;
+                    }
+                    events.add(event);
+                } while (nextMember(']'));
+            }
+            // nothing but whitespace may follow the array
+            while (mPosition < mLimit && mBuffer[mPosition] <= ' ') {
+                mPosition++;
+            }
+            return mPosition == mLimit ? events : null;
+        } catch (MalformedJsonException e) {
+            return null;
+        }
+    }
+
+    private Event readEvent() throws MalformedJsonException {
+        final Event event = new Event();
+        expect('{');
+        if (peek() == '}') {
+            mPosition++;
+            return event;
+        }
+        do {
+            final int field = readField();
+            expect(':');
+            final char next = peek();
+            switch (field) {
+                case FIELD_KEY:
+                    event.key = next == 'n' ? readNull() : readSymbol();
+                    break;
+                case FIELD_COUNT:
+                    event.count = (int) readNumber(0);
+                    break;
+                case FIELD_SUM:
+                    event.sum = readNumber(0.0d);
+                    break;
+                case FIELD_TIMESTAMP:
+                    event.timestamp = Event.toMillis((long) readNumber(0));
+                    break;
+                case FIELD_SEQ:
+                    event.seq = (long) readNumber(0);
+                    break;
+                case FIELD_MIN:
+                    event.min = readNumber(Double.NaN);
+                    break;
+                case FIELD_MAX:
+                    event.max = readNumber(Double.NaN);
+                    break;
+                case FIELD_START:
+                    event.start = (long) readNumber(0);
+                    break;
+                case FIELD_SEGMENTATION:
+                    if (next == 'n') {
+                        readNull();
+                    } else {
+                        event.segmentation = readSegmentation();
+                    }
+                    break;
+                default:
+                    skipValue();
+                    break;
+            }
+        } while (nextMember('}'));
+        return event;
+    }
+
+    private Segmentation readSegmentation() throws MalformedJsonException {
+        expect('{');
+        if (peek() == '}') {
+            mPosition++;
+            return Segmentation.EMPTY;
+        }
+        int length = 0;
+        do {
+            if (peek() != '"') {
+                throw new MalformedJsonException("expected name at " + mPosition);
+            }
+            final String name = readSymbol();
+            expect(':');
+            final char next = peek();
+            if (next == 'n') {
+                readNull();
+            } else if (next == '{' || next == '[') {
+                skipValue();
+            } else {
+                if (length == mPairs.length) {
+                    final String[] pairs = new String[length * 2];
+                    System.arraycopy(mPairs, 0, pairs, 0, length);
+                    mPairs = pairs;
+                }
+                mPairs[length++] = name;
+                mPairs[length++] = readSymbol();
+            }
+        } while (nextMember('}'));
+        final Segmentation segmentation = Segmentation.of(mPairs, length);
+        Arrays.fill(mPairs, 0, length, null);
+        return segmentation;
+    }
+
+    /**
+     * Reads a string, number or boolean value as a string, like JSONObject.getString does,
+     * and interns it. Unescaped values are looked up without creating a String first.
+     */
+    private String readSymbol() throws MalformedJsonException {
+        if (peek() != '"') {
+            final int start = mPosition;
+            final int end = literalEnd();
+            if (end == start) {
+                throw new MalformedJsonException("expected value at " + mPosition);
+            }
+            mPosition = end;
+            return mSymbols.intern(mBuffer, start, end - start);
+        }
+        final int start = mPosition + 1;
+        int end = start;
+        while (end < mLimit && mBuffer[end] != '"' && mBuffer[end] != '\\') {
+            end++;
+        }
+        if (end < mLimit && mBuffer[end] == '"') {
+            mPosition = end + 1;
+            return mSymbols.intern(mBuffer, start, end - start);
+        }
+        return mSymbols.intern(readString());
+    }
+
+    /**
+     * Reads a member name and maps it to one of the known Event fields.
+     */
+    private int readField() throws MalformedJsonException {
+        if (peek() != '"') {
+            throw new MalformedJsonException("expected name at " + mPosition);
+        }
+        final int start = mPosition + 1;
+        int end = start;
+        while (end < mLimit && mBuffer[end] != '"') {
+            if (mBuffer[end] == '\\') {
+                // escaped names are never written by us, take the slow path
+                return fieldFor(readString());
+            }
+            end++;
+        }
+        if (end >= mLimit) {
+            throw new MalformedJsonException("unterminated name");
+        }
+        mPosition = end + 1;
+        return fieldFor(mBuffer, start, end - start);
+    }
+
+    private static int fieldFor(final String name) {
+        return fieldFor(name.toCharArray(), 0, name.length());
+    }
+
+    private static int fieldFor(final char[] chars, final int offset, final int length) {
+        if (matches(chars, offset, length, "key")) {
+            return FIELD_KEY;
+        } else if (matches(chars, offset, length, "count")) {
+            return FIELD_COUNT;
+        } else if (matches(chars, offset, length, "sum")) {
+            return FIELD_SUM;
+        } else if (matches(chars, offset, length, "timestamp")) {
+            return FIELD_TIMESTAMP;
+        } else if (matches(chars, offset, length, "segmentation")) {
+            return FIELD_SEGMENTATION;
+        } else if (matches(chars, offset, length, "min")) {
+            return FIELD_MIN;
+        } else if (matches(chars, offset, length, "max")) {
+            return FIELD_MAX;
+        } else if (matches(chars, offset, length, "start")) {
+            return FIELD_START;
+        } else if (matches(chars, offset, length, "seq")) {
+            return FIELD_SEQ;
+        }
+        return FIELD_UNKNOWN;
+    }
+
+    private static boolean matches(final char[] chars, final int offset, final int length, final String name) {
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[offset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number, or a string holding a number, returning the default for any other value,
+     * like JSONObject.optDouble does.
+     */
+    private double readNumber(final double defaultValue) throws MalformedJsonException {
+        final char next = peek();
+        if (next == '"') {
+            try {
+                return Double.parseDouble(readString());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        if (next != '-' && (next < '0' || next > '9')) {
+            skipValue();
+            return defaultValue;
+        }
+
+        final int start = mPosition;
+        final int end = literalEnd();
+        mPosition = end;
+
+        // fast path for plain integers, which covers counts, timestamps and most sums
+        int i = start;
+        final boolean negative = mBuffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (end - i > 0 && end - i <= 18) {
+            long value = 0;
+            for (; i < end; i++) {
+                final char c = mBuffer[i];
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (i == end) {
+                return negative ? -value : value;
+            }
+        }
+        try {
+            return Double.parseDouble(new String(mBuffer, start, end - start));
+        } catch (NumberFormatException e) {
+            throw new MalformedJsonException("invalid number at " + start);
+        }
+    }
+
+    private String readString() throws MalformedJsonException {
+        expect('"');
+        final int start = mPosition;
+        // common case: no escapes, a single copy out of the buffer
+        while (mPosition < mLimit) {
+            final char c = mBuffer[mPosition];
+            if (c == '"') {
+                return new String(mBuffer, start, mPosition++ - start);
+            }
+            if (c == '\\') {
+                break;
+            }
+            mPosition++;
+        }
+
+        final StringBuilder builder = new StringBuilder(mPosition - start + 16);
+        builder.append(mBuffer, start, mPosition - start);
+        while (mPosition < mLimit) {
+            final char c = mBuffer[mPosition++];
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPosition >= mLimit) {
+                break;
+            }
+            final char escaped = mBuffer[mPosition++];
+            switch (escaped) {
+                case 'u':
+                    if (mPosition + 4 > mLimit) {
+                        throw new MalformedJsonException("unterminated escape");
+                    }
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int digit = Character.digit(mBuffer[mPosition++], 16);
+                        if (digit < 0) {
+                            throw new MalformedJsonException("invalid escape");
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    builder.append((char) value);
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                default:
+                    builder.append(escaped);
+                    break;
+            }
+        }
+        throw new MalformedJsonException("unterminated string");
+    }
+
+    private String readNull() throws MalformedJsonException {
+        final int end = literalEnd();
+        if (!matches(mBuffer, mPosition, end - mPosition, "null")) {
+            throw new MalformedJsonException("expected null at " + mPosition);
+        }
+        mPosition = end;
+        return null;
+    }
+
+    private void skipValue() throws MalformedJsonException {
+        final char next = peek();
+        if (next == '"') {
+            readString();
+        } else if (next == '{' || next == '[') {
+            final char close = next == '{' ? '}' : ']';
+            mPosition++;
+            if (peek() == close) {
+                mPosition++;
+                return;
+            }
+            do {
+                if (close == '}') {
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+            } while (nextMember(close));
+        } else {
+            final int end = literalEnd();
+            if (end == mPosition) {
+                throw new MalformedJsonException("expected value at " + mPosition);
+            }
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Consumes the separator after a member or element.
+     * @return true if another member follows, false if the closing character was consumed
+     */
+    private boolean nextMember(final char close) throws MalformedJsonException {
+        final char c = peek();
+        mPosition++;
+        if (c == ',') {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw new MalformedJsonException("expected ',' or '" + close + "' at " + (mPosition - 1));
+    }
+
+    private int literalEnd() {
+        int end = mPosition;
+        while (end < mLimit) {
+            final char c = mBuffer[end];
+            if (c == ',' || c == '}' || c == ']' || c == ':' || c == '"' || c <= ' ') {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private void expect(final char expected) throws MalformedJsonException {
+        if (peek() != expected) {
+            throw new MalformedJsonException("expected '" + expected + "' at " + mPosition);
+        }
+        mPosition++;
+    }
+
+    /**
+     * Skips whitespace and returns the next character without consuming it.
+     */
+    private char peek() throws MalformedJsonException {
+        while (mPosition < mLimit && mBuffer[mPosition] <= ' ') {
+            mPosition++;
+        }
+        if (mPosition >= mLimit) {
+            throw new MalformedJsonException("unexpected end of input");
+        }
+        return mBuffer[mPosition];
+    }
+}
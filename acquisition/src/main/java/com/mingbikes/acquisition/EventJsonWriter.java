@@ -0,0 +1,142 @@
+package com.mingbikes.acquisition;
+
+import java.util.Map;
+
+/**
+ * Writes events as JSON straight into a caller supplied StringBuilder, without building
+ * org.json object trees. The output is identical to {@code Event.toJSON().toString()}:
+ * same field order, number formatting and string escaping.
+ */
+final class EventJsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private EventJsonWriter() {}
+
+    /**
+     * Appends the JSON representation of the event.
+     * @param event event to write, must not be null
+     * @param out builder to append to, usually reused across events
+     * @return the builder
+     */
+    static StringBuilder write(final Event event, final StringBuilder out) {
+        out.append('{');
+        if (event.key != null) {
+            out.append("\"key\":");
+            writeString(event.key, out);
+            out.append(',');
+        }
+        out.append("\"count\":").append(event.count);
+        out.append(",\"timestamp\":").append(event.timestamp);
+        out.append(",\"seq\":").append(event.seq);
+
+        if (event.segmentation instanceof Segmentation) {
+            out.append(",\"segmentation\":{");
+            final Segmentation segmentation = (Segmentation) event.segmentation;
+            for (int i = 0; i < segmentation.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeString(segmentation.nameAt(i), out);
+                out.append(':');
+                writeValue(segmentation.valueAt(i), out);
+            }
+            out.append('}');
+        } else if (event.segmentation != null) {
+            out.append(",\"segmentation\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> entry : event.segmentation.entrySet()) {
+                if (entry.getKey() == null) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(entry.getKey(), out);
+                out.append(':');
+                writeValue(entry.getValue(), out);
+            }
+            out.append('}');
+        }
+
+        if (event.isTimed()) {
+            out.append(",\"min\":");
+            writeNumber(event.min, out);
+            out.append(",\"max\":");
+            writeNumber(event.max, out);
+            out.append(",\"start\":").append(event.start);
+        }
+
+        // org.json refuses NaN and infinite values, so the sum is left out for those
+        if (!Double.isNaN(event.sum) && !Double.isInfinite(event.sum)) {
+            out.append(",\"sum\":");
+            writeNumber(event.sum, out);
+        }
+        return out.append('}');
+    }
+
+    private static void writeValue(final String value, final StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else {
+            writeString(value, out);
+        }
+    }
+
+    /**
+     * Appends a double the way org.json formats numbers: integral values without a fraction.
+     */
+    static void writeNumber(final double value, final StringBuilder out) {
+        if (value == 0 && 1 / value < 0) {
+            out.append("-0");
+            return;
+        }
+        final long longValue = (long) value;
+        if (value == (double) longValue) {
+            out.append(longValue);
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * Appends a quoted string using the org.json escaping rules.
+     */
+    static void writeString(final String value, final StringBuilder out) {
+        out.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,203 @@
+package com.mingbikes.acquisition;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue of recorded events between the recording threads and the
+ * single event writer thread.
+ *
+ * Each slot carries a sequence number telling producers and the consumer whose turn it is,
+ * so claiming a slot is a single CAS on the tail or head counter. Producers may also take
+ * from the head to apply {@link OverflowPolicy#DROP_OLDEST}, which this scheme allows.
+ */
+class EventRingBuffer {
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<Event> mItems;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final OverflowPolicy mPolicy;
+    private final long mBlockTimeoutNanos;
+
+    private volatile Thread mConsumer;
+    private volatile boolean mConsumerWaiting;
+
+    /**
+     * @param capacity maximum number of buffered events, rounded up to a power of two of at
+     *                 least 2
+     * @param policy what to do when the buffer is full
+     * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits for room
+     */
+    EventRingBuffer(final int capacity, final OverflowPolicy policy, final long blockTimeoutMillis) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("invalid buffer capacity");
+        }
+        // with a single slot a written sequence would also mark the slot free for the next lap
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mItems = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+        mPolicy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+        mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    /**
+     * Adds the event, applying the overflow policy if the buffer is full.
+     * @return true if the event was buffered, false if it was dropped
+     */
+    boolean publish(final Event event) {
+        if (offer(event)) {
+            return true;
+        }
+
+        switch (mPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if (poll() != null) {
+                        mDropped.incrementAndGet();
+                    }
+                } while (!offer(event));
+                return true;
+            case BLOCK:
+                final long deadline = System.nanoTime() + mBlockTimeoutNanos;
+                do {
+                    wakeConsumer();
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (offer(event)) {
+                        return true;
+                    }
+                } while (System.nanoTime() - deadline < 0);
+                mDropped.incrementAndGet();
+                return false;
+            default:
+                mDropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Adds the event if there is room.
+     * @return false if the buffer is full
+     */
+    boolean offer(final Event event) {
+        long position = mTail.get();
+        while (true) {
+            final int index = (int) position & mMask;
+            final long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mItems.lazySet(index, event);
+                    mSequences.set(index, position + 1);
+                    if (mConsumerWaiting) {
+                        wakeConsumer();
+                    }
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the oldest event, or null if the buffer is empty.
+     */
+    Event poll() {
+        long position = mHead.get();
+        while (true) {
+            final int index = (int) position & mMask;
+            final long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    final Event event = mItems.get(index);
+                    mItems.lazySet(index, null);
+                    mSequences.set(index, position + mMask + 1);
+                    return event;
+                }
+                position = mHead.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = mHead.get();
+            }
+        }
+    }
+
+    /**
+     * Moves up to maxEvents of the oldest events into the list.
+     * @return number of events moved
+     */
+    int drainTo(final List<Event> events, final int maxEvents) {
+        int drained = 0;
+        Event event;
+        while (drained < maxEvents && (event = poll()) != null) {
+            events.add(event);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Parks the calling consumer thread until an event is published, the timeout elapses or
+     * the thread is unparked.
+     * @param timeoutNanos maximum time to wait, negative to wait for an event only
+     */
+    void awaitEvents(final long timeoutNanos) {
+        mConsumer = Thread.currentThread();
+        mConsumerWaiting = true;
+        try {
+            if (isEmpty()) {
+                if (timeoutNanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, timeoutNanos);
+                }
+            }
+        } finally {
+            mConsumerWaiting = false;
+        }
+    }
+
+    boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    /**
+     * Returns the approximate number of buffered events.
+     */
+    int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     */
+    long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void wakeConsumer() {
+        final Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.mingbikes.acquisition;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-key sampling and rate limits for high-volume events.
+ *
+ * A policy keeps one in every n events of its key and at most a number of events per second,
+ * with bursts allowed by a token bucket. Events that are not kept are not lost from the totals:
+ * their count and sum are carried over to the next event that is kept, so that event stands for
+ * the ones skipped before it and server-side totals stay unbiased.
+ *
+ * The policies are replaced as a whole, so looking one up is a read of a volatile field and a
+ * hash lookup, and deciding is a few atomic operations, neither locks nor allocates.
+ */
+final class EventSampler {
+
+    private volatile Map<String, Policy> mPolicies = Collections.emptyMap();
+
+    /**
+     * Returns the policy of the key applied at the stage, or null if its events are all kept.
+     */
+    Policy policy(final String key, final SamplingStage stage) {
+        final Map<String, Policy> policies = mPolicies;
+        if (policies.isEmpty()) {
+            return null;
+        }
+        final Policy policy = policies.get(key);
+        return policy != null && policy.mStage == stage ? policy : null;
+    }
+
+    /**
+     * Applies the policy of the event's key at the stage to an event that is already built.
+     * @return true if the event is kept, its count and sum then include the skipped events
+     */
+    boolean sample(final Event event, final SamplingStage stage) {
+        final Policy policy = policy(event.key, stage);
+        if (policy == null) {
+            return true;
+        }
+        if (!policy.admit(event.count, event.sum)) {
+            return false;
+        }
+        event.count = policy.weighCount(event.count);
+        event.sum = policy.weighSum(event.sum);
+        return true;
+    }
+
+    /**
+     * Replaces all policies. Events skipped under a previous policy of the same key are carried
+     * over to the new one.
+     * @param config JSON object of policies by event key, for example
+     *               <code>{"scroll": {"sample": 0.1, "limit": 20, "burst": 50, "stage": "tail"}}</code>.
+     *               sample is the share of events kept, 1 by default; limit the events kept per
+     *               second, unlimited if 0 or missing; burst the events kept at once before the
+     *               limit applies, the limit rounded up by default; stage HEAD or TAIL, see
+     *               {@link SamplingStage}, HEAD by default. Null or empty removes all policies.
+     * @throws IllegalArgumentException if the config is not valid
+     */
+    void update(final String config) {
+        final Map<String, Policy> policies = parse(config);
+        final Map<String, Policy> previous = mPolicies;
+        for (Map.Entry<String, Policy> entry : policies.entrySet()) {
+            final Policy old = previous.get(entry.getKey());
+            if (old != null) {
+                entry.getValue().inherit(old);
+            }
+        }
+        mPolicies = policies;
+    }
+
+    static Map<String, Policy> parse(final String config) {
+        if (config == null || config.trim().length() == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Policy> policies = new HashMap<>();
+        try {
+            final JSONObject json = new JSONObject(config);
+            final Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final JSONObject policy = json.getJSONObject(key);
+                final double sample = policy.optDouble("sample", 1);
+                final double limit = policy.optDouble("limit", 0);
+                final int burst = policy.optInt("burst", (int) Math.max(1, Math.ceil(limit)));
+                final String stage = policy.optString("stage", SamplingStage.HEAD.name());
+                if (!(sample > 0 && sample <= 1)) {
+                    throw new IllegalArgumentException("sample of " + key + " must be above 0 and at most 1");
+                }
+                if (!(limit >= 0) || burst < 1) {
+                    throw new IllegalArgumentException("limit of " + key + " must not be negative, burst must be positive");
+                }
+                policies.put(key, new Policy(SamplingStage.valueOf(stage.toUpperCase(Locale.US)),
+                        (int) Math.round(1 / sample), limit, burst));
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("sampling config is not valid JSON", e);
+        }
+        return Collections.unmodifiableMap(policies);
+    }
+
+    /**
+     * Sampling state of one event key.
+     */
+    static final class Policy {
+
+        private final SamplingStage mStage;
+        private final int mOneIn;
+        // token bucket as generic cell rate algorithm: the time the bucket is full again
+        private final long mIntervalNanos;
+        private final long mToleranceNanos;
+        private final AtomicLong mFullAt = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLong mSeen = new AtomicLong();
+        // count and sum of the skipped events, the sum as double bits
+        private final AtomicLong mSkippedCount = new AtomicLong();
+        private final AtomicLong mSkippedSum = new AtomicLong();
+
+        /**
+         * @param oneIn keep one in that many events
+         * @param limit events kept per second, 0 for no limit
+         * @param burst events kept at once before the limit applies
+         */
+        Policy(final SamplingStage stage, final int oneIn, final double limit, final int burst) {
+            mStage = stage;
+            mOneIn = Math.max(oneIn, 1);
+            mIntervalNanos = limit > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / limit) : 0;
+            mToleranceNanos = mIntervalNanos * (burst - 1);
+        }
+
+        /**
+         * Decides whether the event is kept, carrying its count and sum over if it is not.
+         */
+        boolean admit(final int count, final double sum) {
+            if ((mOneIn > 1 && mSeen.getAndIncrement() % mOneIn != 0) || !acquireToken()) {
+                mSkippedCount.addAndGet(count);
+                addSum(sum);
+                return false;
+            }
+            return true;
+        }
+
+        private boolean acquireToken() {
+            if (mIntervalNanos == 0) {
+                return true;
+            }
+            while (true) {
+                final long now = System.nanoTime();
+                final long fullAt = mFullAt.get();
+                final long next = Math.max(fullAt, now) + mIntervalNanos;
+                if (next - now > mToleranceNanos + mIntervalNanos) {
+                    return false;
+                }
+                if (mFullAt.compareAndSet(fullAt, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Returns the count of a kept event plus the count of the events skipped before it.
+         */
+        int weighCount(final int count) {
+            final long skipped = mSkippedCount.getAndSet(0);
+            if (skipped == 0) {
+                return count;
+            }
+            final long weighed = count + skipped;
+            if (weighed > Integer.MAX_VALUE) {
+                mSkippedCount.addAndGet(weighed - Integer.MAX_VALUE);
+                return Integer.MAX_VALUE;
+            }
+            return (int) weighed;
+        }
+
+        /**
+         * Returns the sum of a kept event plus the sum of the events skipped before it.
+         */
+        double weighSum(final double sum) {
+            return sum + Double.longBitsToDouble(mSkippedSum.getAndSet(0));
+        }
+
+        private void addSum(final double sum) {
+            if (sum == 0) {
+                return;
+            }
+            while (true) {
+                final long bits = mSkippedSum.get();
+                if (mSkippedSum.compareAndSet(bits, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + sum))) {
+                    return;
+                }
+            }
+        }
+
+        private void inherit(final Policy old) {
+            mSkippedCount.addAndGet(old.mSkippedCount.getAndSet(0));
+            addSum(Double.longBitsToDouble(old.mSkippedSum.getAndSet(0)));
+        }
+    }
+}
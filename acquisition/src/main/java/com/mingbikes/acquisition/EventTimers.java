@@ -0,0 +1,57 @@
+package com.mingbikes.acquisition;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running timers of {@link Acquisition#startEvent}, one per event key.
+ *
+ * A key's timer is created by its first start and reused afterwards, starting and ending it is
+ * a lookup in a concurrent map and a single atomic swap, without locks or allocation. Times are
+ * read from the monotonic {@link System#nanoTime}, so changes of the wall clock do not distort
+ * durations. SystemClock.elapsedRealtimeNanos would also count deep sleep but needs API 17.
+ */
+final class EventTimers {
+
+    private static final long NOT_RUNNING = Long.MIN_VALUE;
+
+    private final ConcurrentHashMap<String, AtomicLong> mStarts = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the timer of the key.
+     * @return false if it is already running, it then keeps its start time
+     */
+    boolean start(final String key) {
+        AtomicLong start = mStarts.get(key);
+        if (start == null) {
+            final AtomicLong created = new AtomicLong(NOT_RUNNING);
+            start = mStarts.putIfAbsent(key, created);
+            if (start == null) {
+                start = created;
+            }
+        }
+        return start.compareAndSet(NOT_RUNNING, System.nanoTime());
+    }
+
+    /**
+     * Stops the timer of the key.
+     * @return the time since it was started in nanoseconds, or -1 if it was not running
+     */
+    long end(final String key) {
+        final AtomicLong start = mStarts.get(key);
+        if (start == null) {
+            return -1;
+        }
+        final long now = System.nanoTime();
+        final long started = start.getAndSet(NOT_RUNNING);
+        return started == NOT_RUNNING ? -1 : Math.max(now - started, 0);
+    }
+
+    /**
+     * Stops the timer of the key without a duration.
+     * @return false if it was not running
+     */
+    boolean cancel(final String key) {
+        return end(key) >= 0;
+    }
+}
@@ -0,0 +1,151 @@
+package com.mingbikes.acquisition;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background loop draining the event ring buffer into the aggregator, so the recording
+ * threads never serialize events or touch the store themselves.
+ *
+ * The thread sleeps until an event is published, or until the aggregator's buckets are due to
+ * be flushed if it holds any, so an idle app is not woken up by it.
+ */
+class EventWriter implements Runnable {
+
+    private static final String THREAD_NAME = "acquisition-event-writer";
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    private final EventRingBuffer mBuffer;
+    private final EventAggregator mAggregator;
+    private final Runnable mFlushListener;
+
+    // the running writer thread, null once stopped
+    private volatile Thread mThread;
+
+    /**
+     * @param flushListener run after the aggregator was flushed to the store
+     */
+    EventWriter(final EventRingBuffer buffer, final EventAggregator aggregator, final Runnable flushListener) {
+        mBuffer = buffer;
+        mAggregator = aggregator;
+        mFlushListener = flushListener;
+    }
+
+    /**
+     * Starts the writer thread unless it is running.
+     */
+    synchronized void start() {
+        if (mThread == null) {
+            final Thread thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+            mThread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Ends the writer thread after it has moved the buffered events into the aggregator.
+     * Events recorded afterwards wait in the buffer until {@link #start} or {@link #drain}.
+     * @param timeoutMillis maximum time to wait for the thread
+     * @return true if the thread has ended
+     */
+    boolean stop(final long timeoutMillis) {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null || thread == Thread.currentThread()) {
+            return true;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    /**
+     * Wakes the writer thread so it waits for the aggregator's next flush.
+     */
+    void wake() {
+        final Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Moves all buffered events into the aggregator on the calling thread.
+     */
+    void drain() {
+        final List<Event> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+        boolean flushed = false;
+        while (mBuffer.drainTo(batch, DRAIN_BATCH_SIZE) > 0) {
+            flushed |= add(batch);
+        }
+        if (flushed) {
+            mFlushListener.run();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final Thread self = Thread.currentThread();
+        final List<Event> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+        while (mThread == self) {
+            try {
+                boolean flushed = false;
+                if (mBuffer.drainTo(batch, DRAIN_BATCH_SIZE) == 0) {
+                    flushed = mAggregator.flushIfDue();
+                    if (!flushed) {
+                        mBuffer.awaitEvents(mAggregator.nanosUntilFlush());
+                    }
+                } else {
+                    flushed = add(batch);
+                }
+                if (flushed) {
+                    mFlushListener.run();
+                }
+            } catch (RuntimeException e) {
+                batch.clear();
+                if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Acquisition.TAG, "Got exception writing recorded events", e);
+                }
+            }
+        }
+        try {
+            // events published before the stop are not left in the buffer
+            drain();
+        } catch (RuntimeException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception writing recorded events", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the events to the aggregator and clears the batch.
+     * @return true if the aggregator was flushed to the store
+     */
+    private boolean add(final List<Event> batch) {
+        boolean flushed = false;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                final Event event = batch.get(i);
+                flushed |= mAggregator.add(event.key, event.segmentation, event.count, event.sum);
+            }
+        } finally {
+            batch.clear();
+        }
+        return flushed;
+    }
+}
@@ -0,0 +1,29 @@
+package com.mingbikes.acquisition;
+
+/**
+ * Which records {@link AcquisitionStore} gives up once it reaches its byte budget.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Drop the oldest record across the lane receiving the new record and the lanes below it,
+     * like a plain FIFO, and the oldest stored events. A more important lane is never evicted
+     * for a new record.
+     */
+    OLDEST_FIRST,
+
+    /**
+     * Drop the oldest records of the lowest priority lane, never a lane above the one receiving
+     * the new record, and the oldest stored events. A new record that could only fit by evicting
+     * a more important one is dropped instead.
+     */
+    LOWEST_PRIORITY_FIRST,
+
+    /**
+     * Thin the data out instead of cutting it off: over the budget only one in 2, then 4, 8 and
+     * up to 16 new event records is kept, each still evicting like {@link #LOWEST_PRIORITY_FIRST},
+     * until uploads bring the store back under three quarters of its budget. Crash records are
+     * never sampled. Stored events lose every other one of their oldest half.
+     */
+    SAMPLE
+}
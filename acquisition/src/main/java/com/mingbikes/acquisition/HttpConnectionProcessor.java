@@ -1,95 +1,447 @@
 package com.mingbikes.acquisition;
 
-import android.os.Build;
 import android.util.Log;
 
-import java.net.HttpURLConnection;
-import java.net.URLConnection;
-
-import utils.HttpConnectionUtils;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
  */
 public class HttpConnectionProcessor implements Runnable {
 
-    private String mServerURL;
+    static final String UPLOAD_PATH = "/developer_server/log";
+    private static final int HTTP_ENTITY_TOO_LARGE = 413;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final Lane[] LANES = Lane.values();
+
     private AcquisitionStore mAcquisitionStore;
+    private final Transport mTransport;
+    private final ExecutorService mInFlightExecutor;
+    private final RetryScheduler mRetryScheduler;
+    private final boolean mBatching;
+    private final int mMaxBatchBytes;
+    private final AtomicBoolean mCompactRejected;
+    private final SessionContext mSessionContext;
+    private final CrashReport mCrashReport;
+    private final AcquisitionMetrics mMetrics;
+    // the context is registered again at most once per run when the server has forgotten it
+    private boolean mContextResent;
+    // falls back to JSON when the server refuses the compact format
+    private volatile BatchFormat mBatchFormat;
+    private final int mCompressionThreshold;
+    private final int mInFlightWindow;
+    // lowered for the rest of this run when the server rejects a batch as too large
+    private int mMaxBatchRecords;
+    private final int[] mLaneWeights;
+    private final int[] mLaneCredits = new int[LANES.length];
 
     public HttpConnectionProcessor(String serverUrl, AcquisitionStore acquisitionStore){
+        this(acquisitionStore, transportFor(serverUrl), new UploadSettings(), null, null);
+    }
+
+    /**
+     * @param transport transport the requests are sent with
+     * @param settings batching, compression and in-flight window to use for this run
+     * @param inFlightExecutor executor for concurrent requests, only used when the window is above 1
+     * @param retryScheduler backoff for failed uploads, null to leave retrying to the next run
+     */
+    HttpConnectionProcessor(AcquisitionStore acquisitionStore, Transport transport, UploadSettings settings,
+                            ExecutorService inFlightExecutor, RetryScheduler retryScheduler){
 
-        mServerURL = serverUrl;
         mAcquisitionStore = acquisitionStore;
+        mTransport = transport;
+        mBatching = settings.maxBatchRecords > 1;
+        mMaxBatchRecords = Math.max(settings.maxBatchRecords, 1);
+        mMaxBatchBytes = settings.maxBatchBytes;
+        mCompactRejected = settings.compactRejected;
+        mSessionContext = settings.sessionContext;
+        mCrashReport = settings.crashReport;
+        mMetrics = settings.metrics;
+        mLaneWeights = settings.laneWeights;
+        mBatchFormat = settings.batchFormat == null
+                || (settings.batchFormat == BatchFormat.COMPACT_BINARY && mCompactRejected.get())
+                ? BatchFormat.JSON_ARRAY : settings.batchFormat;
+        mCompressionThreshold = settings.compressionThreshold;
+        mInFlightWindow = inFlightExecutor != null ? Math.max(settings.inFlightWindow, 1) : 1;
+        mInFlightExecutor = inFlightExecutor;
+        mRetryScheduler = retryScheduler;
+    }
 
-        // HTTP connection reuse which was buggy pre-froyo
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-            System.setProperty("http.keepAlive", "false");
+    static Transport transportFor(final String serverUrl) {
+        return transportFor(serverUrl, PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS,
+                PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Returns the default transport for the server's upload endpoint.
+     */
+    static Transport transportFor(final String serverUrl, final int connectTimeoutMillis,
+                                  final int readTimeoutMillis) {
+        try {
+            return new PooledHttpTransport(serverUrl + UPLOAD_PATH, connectTimeoutMillis, readTimeoutMillis,
+                    PooledHttpTransport.DEFAULT_MAX_IDLE_CONNECTIONS);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("server URL is not valid: " + serverUrl, e);
         }
     }
 
     @Override
     public void run() {
 
+        if (mRetryScheduler != null && !mRetryScheduler.canAttempt()) {
+            // backing off, the scheduler runs us again once the delay has passed
+            return;
+        }
+
+        if (mSessionContext != null && mSessionContext.isActive() && !mSessionContext.isRegistered()
+                && !registerContext()) {
+            return;
+        }
+
+        if (mCrashReport != null && mCrashReport.hasPending()) {
+            movePendingCrashes();
+        }
+
         while (true) {
 
-            final String[] storedEvents = mAcquisitionStore.connections();
-            if (storedEvents == null || storedEvents.length == 0) {
+            final Lane lane = nextLane();
+            if (lane == null) {
                 // currently no data to send, we are done for now
                 break;
             }
 
-            //continue with sending the request to the server
-            URLConnection conn = null;
-            String eventData = null;
+            // a circuit that just reopened only gets a single probe request
+            final int window = mRetryScheduler != null && mRetryScheduler.isCircuitOpen() ? 1 : mInFlightWindow;
+            final List<String> records = new ArrayList<>();
+            final AcquisitionStore.Position position = mAcquisitionStore.peekConnections(lane, mMaxBatchRecords * window, records);
+            final List<List<String>> batches = split(records, window);
+            final boolean submitted = batches.size() == 1
+                    ? submit(lane, position, batches.get(0)) : submitConcurrently(lane, position, batches);
+            if (!submitted) {
+                // warning was logged, stop processing, the retry scheduler or next tick retries
+                break;
+            }
+        }
+    }
+
+    /**
+     * Moves the crash files left by earlier processes into the crash lane, which is drained first.
+     */
+    private void movePendingCrashes() {
+        for (File file : mCrashReport.pendingFiles()) {
+            final String record = CrashReport.readRecord(file);
+            if (record != null) {
+                mAcquisitionStore.addConnection(Lane.CRASH, record);
+            }
+            if (!file.delete() && Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Could not delete crash file " + file);
+            }
+        }
+        mCrashReport.clearPending();
+    }
+
+    /**
+     * Picks the lane of the next request by smooth weighted round robin over the lanes that
+     * hold records, so heavier lanes go first without starving the others.
+     * @return the lane, or null if all lanes are empty
+     */
+    private Lane nextLane() {
+        Lane next = null;
+        int total = 0;
+        for (Lane lane : LANES) {
+            if (mAcquisitionStore.isEmptyConnections(lane)) {
+                continue;
+            }
+            final int i = lane.ordinal();
+            mLaneCredits[i] += mLaneWeights[i];
+            total += mLaneWeights[i];
+            if (next == null || mLaneCredits[i] > mLaneCredits[next.ordinal()]) {
+                next = lane;
+            }
+        }
+        if (next != null) {
+            mLaneCredits[next.ordinal()] -= total;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the records split into at most window requests.
+     */
+    private List<List<String>> split(final List<String> records, final int window) {
+        final List<List<String>> batches = new ArrayList<>(window);
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < records.size() && batches.size() < window; i++) {
+            bytes += utf8Length(records.get(i)) + 1;
+            if (i > start && (bytes > mMaxBatchBytes || i - start == mMaxBatchRecords)) {
+                batches.add(records.subList(start, i));
+                start = i;
+                bytes = utf8Length(records.get(i)) + 1;
+            }
+        }
+        if (start < records.size() && batches.size() < window) {
+            batches.add(records.subList(start, records.size()));
+        }
+        return batches;
+    }
+
+    /**
+     * Uploads the records and removes them from the store once the server has handled them.
+     * @param position position of the first record in the lane, see {@link AcquisitionStore#ackConnections(Lane, AcquisitionStore.Position, List)}
+     * @return false if the upload failed and should be retried later
+     */
+    private boolean submit(final Lane lane, final AcquisitionStore.Position position, final List<String> records) {
+        return handle(lane, position, records, post(records));
+    }
+
+    /**
+     * Sends the batches at the same time and then handles the responses in store order, since
+     * records can only be acknowledged from the head of the store. Batches behind a failed one
+     * are sent again on the next run even if they were delivered.
+     */
+    private boolean submitConcurrently(final Lane lane, final AcquisitionStore.Position position, final List<List<String>> batches) {
+        final List<Future<Transport.Response>> responses = new ArrayList<>(batches.size());
+        for (final List<String> records : batches) {
+            Future<Transport.Response> response;
             try {
-                // initialize and open connection
-                conn = HttpConnectionUtils.urlConnectionForEventData(mServerURL, eventData);
-                conn.connect();
-
-                // response code has to be 2xx to be considered a success
-                boolean success = true;
-                final int responseCode;
-                if (conn instanceof HttpURLConnection) {
-                    final HttpURLConnection httpConn = (HttpURLConnection) conn;
-                    responseCode = httpConn.getResponseCode();
-                    success = responseCode >= 200 && responseCode < 300;
-                    if (!success && Acquisition.sharedInstance().isLoggingEnabled()) {
-                        Log.w(Acquisition.TAG, "HTTP error response code was " + responseCode + " from submitting event data: " + eventData);
-                    }
-                } else {
-                    responseCode = 0;
-                }
-
-                // HTTP response code was ok, check response JSON contains {"result":"Success"}
-                if (success) {
-                    if (Acquisition.sharedInstance().isLoggingEnabled()) {
-                        Log.d(Acquisition.TAG, "ok ->" + eventData);
+                response = mInFlightExecutor.submit(new Callable<Transport.Response>() {
+                    @Override
+                    public Transport.Response call() {
+                        return post(records);
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                // uploads were stopped during the run, the batch is sent again next time
+                response = null;
+            }
+            responses.add(response);
+        }
 
-                    // successfully submitted event data to Count.ly server, so remove
-                    // this one from the stored events collection
-                    mAcquisitionStore.removeConnection(storedEvents[0]);
-                } else if (responseCode >= 400 && responseCode < 500) {
-                    if (Acquisition.sharedInstance().isLoggingEnabled()) {
-                        Log.d(Acquisition.TAG, "fail " + responseCode + " ->" + eventData);
-                    }
-                    mAcquisitionStore.removeConnection(storedEvents[0]);
-                } else {
-                    // warning was logged above, stop processing, let next tick take care of retrying
-                    break;
-                }
-            } catch (Exception e) {
-                if (Acquisition.sharedInstance().isLoggingEnabled()) {
-                    Log.w(Acquisition.TAG, "Got exception while trying to submit event data: " + eventData, e);
-                }
-                // if exception occurred, stop processing, let next tick take care of retrying
-                break;
-            } finally {
-                // free connection resources
-                if (conn != null && conn instanceof HttpURLConnection) {
-                    ((HttpURLConnection) conn).disconnect();
-                }
+        boolean submitted = true;
+        AcquisitionStore.Position batchPosition = position;
+        for (int i = 0; i < batches.size(); i++) {
+            Transport.Response response;
+            try {
+                response = responses.get(i) != null ? responses.get(i).get() : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = null;
+            } catch (ExecutionException e) {
+                response = null;
+            }
+            // keep waiting for the rest so no request outlives this run
+            submitted = submitted && handle(lane, batchPosition, batches.get(i), response);
+            batchPosition = batchPosition.plus(batches.get(i).size());
+        }
+        return submitted;
+    }
+
+    /**
+     * Acts on the server response for the records.
+     * @param response the response, null if the request failed
+     * @return false if the upload failed and should be retried later
+     */
+    private boolean handle(final Lane lane, final AcquisitionStore.Position position, final List<String> records,
+                           final Transport.Response response) {
+        final int responseCode = response != null ? response.getCode() : -1;
+        // response code has to be 2xx to be considered a success
+        if (responseCode == 0 || (responseCode >= 200 && responseCode < 300)) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.d(Acquisition.TAG, "ok -> " + records.size() + " records");
+            }
+
+            // successfully submitted event data to server, so remove
+            // the whole batch from the stored events collection
+            mAcquisitionStore.ackConnections(lane, position, records);
+            if (mMetrics != null) {
+                mMetrics.recordDelivered(records.size());
+            }
+            onReachable();
+            return true;
+        } else if (canResend(responseCode)) {
+            return prepareResend(responseCode) && submit(lane, position, records);
+        } else if (responseCode == HTTP_ENTITY_TOO_LARGE && records.size() > 1) {
+            // server refused the batch size, send it again in halves
+            final int half = records.size() / 2;
+            mMaxBatchRecords = half;
+            return submit(lane, position, records.subList(0, half))
+                    && submit(lane, position.plus(half), records.subList(half, records.size()));
+        } else if (responseCode >= 400 && responseCode < 500 && responseCode != HTTP_TOO_MANY_REQUESTS) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.d(Acquisition.TAG, "fail " + responseCode + " -> " + records.size() + " records");
+            }
+            mAcquisitionStore.ackConnections(lane, position, records);
+            if (mMetrics != null) {
+                mMetrics.recordRejected(records.size());
+            }
+            onReachable();
+            return true;
+        }
+
+        onFailure(response);
+        return false;
+    }
+
+    /**
+     * Returns whether the request can be sent again in a form the server accepts, after a 415
+     * for the compact format or a 428 for a session context the server has forgotten.
+     */
+    private boolean canResend(final int responseCode) {
+        return (responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE && mBatchFormat.isBinary())
+                || (responseCode == SessionContext.HTTP_PRECONDITION_REQUIRED && mSessionContext != null
+                && mSessionContext.isActive() && !mContextResent);
+    }
+
+    /**
+     * Switches to JSON or registers the session context again, whichever the response asked for.
+     * @return false if the server could not be reached and uploads should be retried later
+     */
+    private boolean prepareResend(final int responseCode) {
+        if (responseCode == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Server does not accept " + mBatchFormat + ", falling back to JSON");
+            }
+            mCompactRejected.set(true);
+            mBatchFormat = BatchFormat.JSON_ARRAY;
+            return true;
+        }
+        mContextResent = true;
+        mSessionContext.setRegistered(false);
+        return registerContext();
+    }
+
+    /**
+     * Sends the session context so later requests can refer to it by id.
+     * @return false if the server could not be reached and uploads should be retried later
+     */
+    private boolean registerContext() {
+        final Transport.Request request = new Transport.Request(mSessionContext.getJson(), SessionContext.CONTENT_TYPE,
+                false).addHeader(SessionContext.HEADER, mSessionContext.getId());
+        final long start = System.nanoTime();
+        Transport.Response response;
+        try {
+            response = mTransport.send(request);
+        } catch (Exception e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception while trying to register the session context", e);
+            }
+            response = null;
+        }
+        recordUpload(request, response, start);
+
+        final int responseCode = response != null ? response.getCode() : -1;
+        if (responseCode >= 200 && responseCode < 300) {
+            mSessionContext.setRegistered(true);
+            return true;
+        } else if (responseCode >= 400 && responseCode < 500 && responseCode != HTTP_TOO_MANY_REQUESTS) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Server does not accept session contexts (" + responseCode
+                        + "), sending records without one");
+            }
+            mSessionContext.setUnsupported();
+            return true;
+        }
+
+        onFailure(response);
+        return false;
+    }
+
+    private void onFailure(final Transport.Response response) {
+        if (mRetryScheduler != null) {
+            mRetryScheduler.onFailure(response != null
+                    ? RetryScheduler.parseRetryAfter(response.getHeader("Retry-After")) : 0);
+            if (mMetrics != null) {
+                mMetrics.recordRetry();
+            }
+        }
+    }
+
+    private void onReachable() {
+        if (mRetryScheduler != null) {
+            mRetryScheduler.onSuccess();
+        }
+    }
+
+    /**
+     * Posts the records to the server.
+     * @return the response, or null if an exception occurred
+     */
+    private Transport.Response post(final List<String> records) {
+        final long serializationStart = System.nanoTime();
+        final BatchFormat format = mBatchFormat;
+        final Transport.Request request;
+        final String eventData;
+        if (format.isBinary()) {
+            final byte[] body = new CompactEventCodec().encode(records, null);
+            request = new Transport.Request(body, format.getContentType(),
+                    mCompressionThreshold >= 0 && body.length >= mCompressionThreshold);
+            eventData = records.size() + " records, " + body.length + " bytes";
+        } else {
+            eventData = mBatching ? format.join(records) : records.get(0);
+            request = new Transport.Request(eventData, mBatching ? format.getContentType() : null,
+                    mCompressionThreshold >= 0 && eventData.length() >= mCompressionThreshold);
+        }
+        final SessionContext context = mSessionContext;
+        if (context != null && context.isActive()) {
+            request.addHeader(SessionContext.HEADER, context.getId());
+        }
+        final long start = System.nanoTime();
+        if (mMetrics != null) {
+            mMetrics.recordSerialization(start - serializationStart);
+        }
+        Transport.Response response;
+        try {
+            response = mTransport.send(request);
+            if (!response.isSuccessful() && Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "HTTP error response code was " + response.getCode() + " from submitting event data: " + eventData);
+            }
+        } catch (Exception e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception while trying to submit event data: " + eventData, e);
+            }
+            response = null;
+        }
+        recordUpload(request, response, start);
+        return response;
+    }
+
+    private void recordUpload(final Transport.Request request, final Transport.Response response, final long start) {
+        if (mMetrics != null) {
+            final byte[] body = request.getBody();
+            mMetrics.recordUpload(response != null ? response.getCode() : -1, System.nanoTime() - start,
+                    body != null ? body.length : 0);
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to encode the string as UTF-8.
+     */
+    static int utf8Length(final String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
             }
         }
+        return length;
     }
 }
@@ -1,29 +1,362 @@
 package com.mingbikes.acquisition;
 
 import android.content.Context;
+import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.HttpConnectionUtils;
 
 /**
  *
  */
 public class HttpConnectionQueue {
 
-    private ExecutorService mExecutorService;
+    // timers and short tasks, its thread ends when idle like the worker's
+    private ScheduledThreadPoolExecutor mExecutorService;
+    private final UploadWorker mWorker = new UploadWorker("acquisition-upload", new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    });
+    private long mIdleTimeoutMillis = UploadWorker.DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private boolean mStopped;
 
     private Context mContext;
     private String mServerURL;
-    private AcquisitionStore mAcquisitionStore;
+    private volatile AcquisitionStore mAcquisitionStore;
+
+    private final UploadSettings mSettings = new UploadSettings();
+    private Transport mTransport;
+    private boolean mCustomTransport;
+    private int mConnectTimeoutMillis = PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS;
+    private int mReadTimeoutMillis = PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS;
+    // requests sent alongside the worker's, shut down with the uploads and idle like the scheduler
+    private ThreadPoolExecutor mInFlightExecutor;
+    private RetryScheduler mRetryScheduler;
+
+    private long mRetryBaseDelayMillis = RetryScheduler.DEFAULT_BASE_DELAY_MILLIS;
+    private long mRetryMaxDelayMillis = RetryScheduler.DEFAULT_MAX_DELAY_MILLIS;
+    private int mCircuitFailureThreshold = RetryScheduler.DEFAULT_FAILURE_THRESHOLD;
+    private long mCircuitOpenMillis = RetryScheduler.DEFAULT_OPEN_MILLIS;
+
+    private UploadScheduler mUploadScheduler;
+    private boolean mWatchingNetwork;
+    private long mUploadWindowMillis = UploadScheduler.DEFAULT_WINDOW_MILLIS;
+    private int mUploadWindowRecords = UploadScheduler.DEFAULT_WINDOW_RECORDS;
+    private long mMeteredWindowMillis = UploadScheduler.DEFAULT_METERED_WINDOW_MILLIS;
+
+    private final AcquisitionMetrics mMetrics = new AcquisitionMetrics();
+    private ScheduledFuture<?> mMetricsReport;
+
+    public HttpConnectionQueue() {
+        mSettings.metrics = mMetrics;
+    }
+
+    Context getContext() {
+        return mContext;
+    }
+
+    void setContext(final Context context) {
+        mContext = context;
+    }
+
+    String getServerURL() {
+        return mServerURL;
+    }
+
+    synchronized void setServerURL(final String serverURL) {
+        mServerURL = serverURL;
+        if (!mCustomTransport) {
+            replaceTransport(serverURL != null ? HttpConnectionProcessor.transportFor(serverURL,
+                    mConnectTimeoutMillis, mReadTimeoutMillis) : null);
+        }
+        resetRetryScheduler();
+    }
+
+    Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Sets the transport uploads are sent with.
+     * @param transport transport to use, null to go back to the default transport for the server URL
+     */
+    synchronized void setTransport(final Transport transport) {
+        mCustomTransport = transport != null;
+        replaceTransport(transport != null ? transport : mServerURL != null
+                ? HttpConnectionProcessor.transportFor(mServerURL, mConnectTimeoutMillis, mReadTimeoutMillis) : null);
+    }
 
-    private Future<?> mConnectionProcessorFuture_;
+    /**
+     * Sets the timeouts of the default transport.
+     */
+    synchronized void setTimeouts(final int connectTimeoutMillis, final int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        if (!mCustomTransport && mServerURL != null) {
+            replaceTransport(HttpConnectionProcessor.transportFor(mServerURL, connectTimeoutMillis, readTimeoutMillis));
+        }
+    }
 
     /**
-     * Report a crash with device data to the server.
+     * Sets whether the static device metadata is registered once per session and uploads refer
+     * to it by id, see {@link SessionContext}.
      */
-    void sendCrashReport(String error, boolean nonfatal) {
+    synchronized void setSessionContextEnabled(final boolean enabled) {
+        if (!enabled) {
+            mSettings.sessionContext = null;
+        } else if (mSettings.sessionContext == null) {
+            if (mContext == null) {
+                throw new IllegalStateException("context has not been set");
+            }
+            mSettings.sessionContext = new SessionContext(mContext);
+        }
+    }
+
+    /**
+     * Returns the session context, or null if uploads carry none.
+     */
+    SessionContext getSessionContext() {
+        return mSettings.sessionContext;
+    }
+
+    private void replaceTransport(final Transport transport) {
+        if (mTransport != null && mTransport != transport) {
+            mTransport.close();
+        }
+        mTransport = transport;
+    }
+
+    AcquisitionStore getAcquisitionStore() {
+        return mAcquisitionStore;
+    }
+
+    void setAcquisitionStore(final AcquisitionStore acquisitionStore) {
+        mAcquisitionStore = acquisitionStore;
+        if (acquisitionStore != null) {
+            acquisitionStore.setMetrics(mMetrics);
+        }
+        resetRetryScheduler();
+    }
+
+    AcquisitionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Runs the report at a fixed rate on the scheduler thread, replacing the previous report.
+     * @param intervalMillis time between reports, 0 to stop reporting
+     */
+    synchronized void setMetricsReport(final long intervalMillis, final Runnable report) {
+        if (mMetricsReport != null) {
+            mMetricsReport.cancel(false);
+            mMetricsReport = null;
+            purgeExecutor();
+        }
+        if (intervalMillis > 0) {
+            ensureExecutor();
+            mMetricsReport = mExecutorService.scheduleAtFixedRate(report, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens the acquisition store on the worker thread, so the thread calling init does not
+     * load the stored backlog.
+     */
+    synchronized void openStore() {
+        final AcquisitionStore store = mAcquisitionStore;
+        ensureExecutor();
+        mExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                store.open();
+            }
+        });
+    }
+
+    /**
+     * Sets how many stored records are packed into one upload request.
+     * @param maxRecords maximum records per request, 1 disables batching
+     * @param maxBytes maximum request body size in bytes
+     * @param format layout of batched request bodies
+     */
+    void setBatching(final int maxRecords, final int maxBytes, final BatchFormat format) {
+        mSettings.maxBatchRecords = maxRecords;
+        mSettings.maxBatchBytes = maxBytes;
+        mSettings.batchFormat = format;
+    }
+
+    /**
+     * Sets the minimum request body length for gzip compression.
+     * @param threshold length in characters, or {@link HttpConnectionUtils#COMPRESSION_DISABLED}
+     */
+    void setCompressionThreshold(final int threshold) {
+        mSettings.compressionThreshold = threshold;
+    }
+
+    /**
+     * Sets how many upload requests may be in flight at the same time.
+     * @param window number of concurrent requests, 1 sends them one after the other
+     */
+    void setInFlightWindow(final int window) {
+        mSettings.inFlightWindow = window;
+    }
+
+    /**
+     * Sets the backoff applied after failed uploads.
+     * @param baseDelayMillis ceiling of the first retry delay, doubled after each failure
+     * @param maxDelayMillis upper bound of the retry delay ceiling
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openMillis time the circuit stays open before a probe is sent
+     */
+    synchronized void setRetryBackoff(final long baseDelayMillis, final long maxDelayMillis,
+                                      final int failureThreshold, final long openMillis) {
+        mRetryBaseDelayMillis = baseDelayMillis;
+        mRetryMaxDelayMillis = maxDelayMillis;
+        mCircuitFailureThreshold = failureThreshold;
+        mCircuitOpenMillis = openMillis;
+        if (mRetryScheduler != null) {
+            mRetryScheduler.configure(baseDelayMillis, maxDelayMillis, failureThreshold, openMillis);
+        }
+    }
+
+    /**
+     * Sets when queued records are uploaded.
+     * @param windowMillis time the oldest record waits for others to join it
+     * @param windowRecords number of queued records that are uploaded without waiting
+     * @param meteredWindowMillis time the oldest record waits on a metered network
+     */
+    synchronized void setUploadWindow(final long windowMillis, final int windowRecords, final long meteredWindowMillis) {
+        mUploadWindowMillis = windowMillis;
+        mUploadWindowRecords = windowRecords;
+        mMeteredWindowMillis = meteredWindowMillis;
+        if (mUploadScheduler != null) {
+            mUploadScheduler.configure(windowMillis, windowRecords, meteredWindowMillis);
+        }
+    }
+
+    /**
+     * Follows connectivity so uploads wait while the device is offline. The device snapshot
+     * is read on the worker thread.
+     */
+    synchronized void watchNetwork() {
+        checkInternalState();
+        if (mWatchingNetwork) {
+            return;
+        }
+        mWatchingNetwork = true;
+        ensureExecutor();
+        final UploadScheduler scheduler = uploadScheduler();
+        final Context context = mContext;
+        mExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.attach(DeviceSnapshot.get(context));
+            }
+        });
+    }
+
+    /**
+     * Opens the crash file on the scheduler thread so fatal crashes can be written before the
+     * process dies, and schedules the upload of crashes left by the previous process. Crashes
+     * before the file is open are stored like other records.
+     */
+    synchronized void enableCrashReports() {
         checkInternalState();
+        if (mSettings.crashReport != null) {
+            return;
+        }
+        final CrashReport crashReport = new CrashReport(mContext.getFilesDir());
+        mSettings.crashReport = crashReport;
+
+        ensureExecutor();
+        mExecutorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    crashReport.open();
+                } catch (IOException e) {
+                    if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Acquisition.TAG, "Could not open the crash file, crashes are stored like other records", e);
+                    }
+                }
+                crashReport.prepare(DeviceSnapshot.get(mContext));
+                tick();
+            }
+        });
+    }
+
+    /**
+     * Sets the share of upload requests and the capacity of a lane.
+     * @param weight share of requests while other lanes hold records too
+     * @param capacity maximum number of bytes in the lane
+     * @param policy what happens to new records once the lane is full
+     */
+    synchronized void setLane(final Lane lane, final int weight, final int capacity, final OverflowPolicy policy) {
+        if (mAcquisitionStore == null) {
+            throw new IllegalStateException("acquisition store has not been set");
+        }
+        mAcquisitionStore.setLaneLimit(lane, capacity, policy);
+        mSettings.laneWeights[lane.ordinal()] = weight;
+    }
+
+    /**
+     * Sets the byte budgets of the store and what is evicted once they are reached.
+     */
+    synchronized void setByteBudget(final long maxBytes, final int maxEventBytes, final EvictionPolicy policy) {
+        if (mAcquisitionStore == null) {
+            throw new IllegalStateException("acquisition store has not been set");
+        }
+        mAcquisitionStore.setByteBudget(maxBytes, maxEventBytes, policy);
+    }
+
+    /**
+     * Report a crash with device data to the server. A fatal crash is written to the crash
+     * file and uploaded by the next process.
+     */
+    void sendCrashReport(final Throwable throwable, final boolean nonfatal) {
+        checkInternalState();
+
+        final CrashReport crashReport = mSettings.crashReport;
+        if (!nonfatal && crashReport != null && crashReport.writeFatal(throwable)) {
+            // the process is about to die, an upload started now would not finish
+            return;
+        }
+        storeCrashReport(throwable, nonfatal);
+    }
+
+    /**
+     * Writes a fatal crash from the uncaught exception handler. The state is not validated,
+     * the caller must catch anything thrown, so the previous handler still runs.
+     */
+    void sendFatalCrashReport(final Throwable throwable) {
+        final CrashReport crashReport = mSettings.crashReport;
+        if (crashReport != null && crashReport.writeFatal(throwable)) {
+            return;
+        }
+        if (mContext != null && mAcquisitionStore != null) {
+            storeCrashReport(throwable, false);
+        }
+    }
+
+    private void storeCrashReport(final Throwable throwable, final boolean nonfatal) {
+        final StringWriter sw = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(sw));
+        final SessionContext context = mSettings.sessionContext;
+        mAcquisitionStore.addConnection(nonfatal ? Lane.NON_FATAL : Lane.CRASH, CrashReport.buildRecord(sw.toString(),
+                nonfatal, DeviceSnapshot.get(mContext), context != null && context.isActive() ? context : null));
 
         tick();
     }
@@ -34,6 +367,8 @@ public class HttpConnectionQueue {
     void recordEvents(final String events) {
         checkInternalState();
 
+        mAcquisitionStore.addConnection(Lane.EVENTS, events);
+
         tick();
     }
 
@@ -47,21 +382,205 @@ public class HttpConnectionQueue {
         if (mServerURL == null) {
             throw new IllegalStateException("server URL is not valid");
         }
+        if (mTransport == null) {
+            throw new IllegalStateException("transport has not been set");
+        }
     }
 
-    void tick() {
-        if (!mAcquisitionStore.isEmptyConnections()
-                && (mConnectionProcessorFuture_ == null || mConnectionProcessorFuture_.isDone())) {
+    /**
+     * Signals the upload worker if records are queued and the upload scheduler lets them go
+     * now. While the worker drains, the signal only makes it check the queue once more.
+     */
+    synchronized void tick() {
+        if (mStopped) {
+            return;
+        }
+        if (mWorker.isDraining()) {
+            mWorker.signal();
+            return;
+        }
+        final CrashReport crashReport = mSettings.crashReport;
+        final boolean crashPending = crashReport != null && crashReport.hasPending();
+        if (!crashPending && mAcquisitionStore.isEmptyConnections()) {
+            return;
+        }
+        final boolean urgent = crashPending || !mAcquisitionStore.isEmptyConnections(Lane.CRASH)
+                || !mAcquisitionStore.isEmptyConnections(Lane.NON_FATAL);
+        ensureExecutor();
+        if (uploadScheduler().shouldUpload(urgent, mAcquisitionStore.connectionCount(),
+                mAcquisitionStore.oldestConnectionTimestamp())) {
+            mWorker.signal();
+        }
+    }
+
+    /**
+     * Uploads everything queued, run on the worker thread. The settings are copied for the run.
+     */
+    private void drain() {
+        final HttpConnectionProcessor processor;
+        synchronized (this) {
+            if (mStopped || mAcquisitionStore == null || mTransport == null) {
+                return;
+            }
             ensureExecutor();
-            mConnectionProcessorFuture_ = mExecutorService.submit(
-                    new HttpConnectionProcessor(mServerURL, mAcquisitionStore));
+            processor = new HttpConnectionProcessor(mAcquisitionStore, mTransport, mSettings.copy(),
+                    mInFlightExecutor, retryScheduler());
+        }
+        processor.run();
+
+        synchronized (this) {
+            if (mUploadScheduler != null && mAcquisitionStore.isEmptyConnections()) {
+                // nothing left to wait for, let the scheduler thread go idle
+                mUploadScheduler.cancel();
+                purgeExecutor();
+            }
         }
     }
 
-    void ensureExecutor() {
+    /**
+     * Removes cancelled timers, which would otherwise keep the scheduler thread until they are due.
+     */
+    private void purgeExecutor() {
+        if (mExecutorService != null) {
+            mExecutorService.purge();
+        }
+    }
+
+    /**
+     * Uploads the queued records now, regardless of the upload window, and waits for it.
+     * @param timeoutMillis maximum time to wait
+     * @return true if the upload run finished in time
+     */
+    boolean flush(final long timeoutMillis) {
+        synchronized (this) {
+            if (mStopped) {
+                return false;
+            }
+        }
+        return mWorker.flush(timeoutMillis);
+    }
+
+    /**
+     * Lets uploads run again after {@link #stop} and uploads what is due.
+     */
+    synchronized void start() {
+        mStopped = false;
+        mWorker.start();
+        if (mAcquisitionStore != null && mTransport != null) {
+            tick();
+        }
+    }
+
+    /**
+     * Stops uploading until {@link #start}, records are still stored. Pending retries and
+     * upload windows are cancelled and a running upload gets the timeout to finish.
+     * @param timeoutMillis maximum time to wait for a running upload
+     * @return true if no upload is running anymore
+     */
+    boolean stop(final long timeoutMillis) {
+        synchronized (this) {
+            mStopped = true;
+            if (mUploadScheduler != null) {
+                mUploadScheduler.cancel();
+            }
+            if (mRetryScheduler != null) {
+                mRetryScheduler.cancel();
+            }
+            purgeExecutor();
+        }
+        final boolean stopped = mWorker.stop(timeoutMillis);
+        synchronized (this) {
+            if (mInFlightExecutor != null) {
+                // requests still running finish, a run past the timeout sends the rest next time
+                mInFlightExecutor.shutdown();
+                mInFlightExecutor = null;
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * Sets the priority and daemon status of the SDK's threads and how long they stay idle
+     * before they end. Threads already running keep their priority and daemon status.
+     */
+    synchronized void setWorkerThreads(final int priority, final boolean daemon, final long idleTimeoutMillis) {
+        mWorker.configure(priority, daemon, idleTimeoutMillis);
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        if (mExecutorService != null) {
+            mExecutorService.setKeepAliveTime(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if (mInFlightExecutor != null) {
+            mInFlightExecutor.setKeepAliveTime(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private UploadScheduler uploadScheduler() {
+        if (mUploadScheduler == null) {
+            mUploadScheduler = new UploadScheduler(mExecutorService, new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            });
+            mUploadScheduler.configure(mUploadWindowMillis, mUploadWindowRecords, mMeteredWindowMillis);
+        }
+        return mUploadScheduler;
+    }
+
+    /**
+     * Returns the backoff state of the current server, loading it from the store on first use.
+     */
+    private RetryScheduler retryScheduler() {
+        if (mRetryScheduler == null) {
+            mRetryScheduler = new RetryScheduler(mExecutorService, mAcquisitionStore, mServerURL, new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            });
+            mRetryScheduler.configure(mRetryBaseDelayMillis, mRetryMaxDelayMillis, mCircuitFailureThreshold,
+                    mCircuitOpenMillis);
+        }
+        return mRetryScheduler;
+    }
+
+    private synchronized void resetRetryScheduler() {
+        if (mRetryScheduler != null) {
+            mRetryScheduler.cancel();
+            mRetryScheduler = null;
+        }
+    }
+
+    synchronized void ensureExecutor() {
         if (mExecutorService == null) {
-            mExecutorService = Executors.newSingleThreadExecutor();
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    mWorker.threadFactory("acquisition-scheduler"));
+            executor.setKeepAliveTime(mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            mExecutorService = executor;
         }
+        if (mSettings.inFlightWindow > 1 && mInFlightExecutor == null) {
+            mInFlightExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, mIdleTimeoutMillis,
+                    TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), inFlightThreadFactory());
+        }
+    }
+
+    /**
+     * Returns a factory for numbered daemon threads with the worker's priority, so requests in
+     * flight never keep the process alive.
+     */
+    private ThreadFactory inFlightThreadFactory() {
+        final ThreadFactory factory = mWorker.threadFactory("acquisition-in-flight");
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = factory.newThread(runnable);
+                thread.setName("acquisition-in-flight-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
 }
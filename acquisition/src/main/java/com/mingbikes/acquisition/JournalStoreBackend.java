@@ -0,0 +1,567 @@
+package com.mingbikes.acquisition;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal backend. Records are appended to segment files as
+ * [length:int][crc32:int][UTF-8 payload] and a persisted read cursor marks the head of the queue.
+ * Acknowledging records only moves the cursor, segments are deleted once they are fully read.
+ * The cursor also keeps the number of records in the segments before the tail, so opening the
+ * journal only scans the tail segment. A segment is created by the append of its first record
+ * and its name carries the time of that append, which bounds the age of the oldest record.
+ *
+ * Writes go to the OS page cache without an explicit sync, so they survive process death
+ * but not necessarily power loss. A torn tail record is detected by its CRC and truncated on open.
+ */
+public class JournalStoreBackend implements StoreBackend {
+
+    static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+    static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    // [head id:long][head offset:long][sealed records:int][crc32:int]
+    private static final int CURSOR_SIZE = 24;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILE = "cursor";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mCursorBuffer = new byte[CURSOR_SIZE];
+
+    // writer of the tail segment, null while there is none
+    private RandomAccessFile mWriter;
+    private RandomAccessFile mCursorFile;
+    // id of the segment the next append starts once all segments are read
+    private long mNextId;
+    // read position inside the head segment
+    private long mCursorOffset;
+    // unacknowledged records before the tail segment and in the tail segment
+    private int mSealedCount;
+    private int mTailCount;
+    private long mBytes;
+
+    private static class Segment {
+        final long id;
+        final File file;
+        // time the first record was appended, in milliseconds
+        final long created;
+        // length of the valid part of the file
+        long length;
+
+        Segment(final long id, final File file, final long created) {
+            this.id = id;
+            this.file = file;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Opens (or creates) a journal in the specified directory.
+     * @param directory directory holding the segment files, created if missing
+     * @throws IOException if the directory or the journal files cannot be opened
+     */
+    public JournalStoreBackend(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens (or creates) a journal in the specified directory.
+     * @param directory directory holding the segment files, created if missing
+     * @param segmentSize size in bytes after which a new segment file is started
+     * @throws IOException if the directory or the journal files cannot be opened
+     */
+    public JournalStoreBackend(final File directory, final int segmentSize) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("must provide valid directory");
+        }
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segment size is too small");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create journal directory " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        open();
+    }
+
+    @Override
+    public synchronized boolean append(final String record) {
+        if (record == null || record.length() == 0 || mCursorFile == null) {
+            return false;
+        }
+        final byte[] payload = record.getBytes(UTF8);
+        if (payload.length > MAX_RECORD_SIZE) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Record of " + payload.length + " bytes is too large for the journal");
+            }
+            return false;
+        }
+
+        Segment tail = mSegments.peekLast();
+        try {
+            if (tail == null) {
+                // the cursor already points at the start of this segment
+                tail = startSegment(mNextId);
+            } else if (tail.length > 0 && tail.length + HEADER_SIZE + payload.length > mSegmentSize) {
+                tail = startSegment(tail.id + 1);
+                mSealedCount += mTailCount;
+                mTailCount = 0;
+                writeCursor();
+            }
+
+            final byte[] buffer = new byte[HEADER_SIZE + payload.length];
+            mCrc.reset();
+            mCrc.update(payload, 0, payload.length);
+            putInt(buffer, 0, payload.length);
+            putInt(buffer, 4, (int) mCrc.getValue());
+            System.arraycopy(payload, 0, buffer, HEADER_SIZE, payload.length);
+
+            mWriter.seek(tail.length);
+            mWriter.write(buffer);
+            tail.length += buffer.length;
+            mTailCount++;
+            mBytes += buffer.length;
+            return true;
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception appending to journal", e);
+            }
+            truncateQuietly(tail);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized List<String> peek(final int maxRecords) {
+        final int count = mSealedCount + mTailCount;
+        final List<String> records = new ArrayList<>(Math.max(0, Math.min(maxRecords, count)));
+        if (maxRecords <= 0 || count == 0) {
+            return records;
+        }
+
+        try {
+            for (Segment segment : mSegments) {
+                long position = segment == mSegments.peekFirst() ? mCursorOffset : 0;
+                final RandomAccessFile reader = readerFor(segment);
+                try {
+                    while (position < segment.length && records.size() < maxRecords) {
+                        final byte[] payload = readRecord(reader, position, segment.length);
+                        if (payload == null) {
+                            break;
+                        }
+                        records.add(new String(payload, UTF8));
+                        position += HEADER_SIZE + payload.length;
+                    }
+                } finally {
+                    if (reader != mWriter) {
+                        reader.close();
+                    }
+                }
+                if (records.size() >= maxRecords) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception reading from journal", e);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized void ack(final int count) {
+        int remaining = Math.min(count, mSealedCount + mTailCount);
+        if (remaining <= 0) {
+            return;
+        }
+
+        final List<Segment> consumed = new ArrayList<>();
+        try {
+            while (remaining > 0) {
+                final Segment head = mSegments.peekFirst();
+                final boolean tail = mSegments.size() == 1;
+                long position = mCursorOffset;
+                int acked = 0;
+                final RandomAccessFile reader = readerFor(head);
+                try {
+                    while (acked < remaining && position + HEADER_SIZE <= head.length) {
+                        reader.seek(position);
+                        final int length = reader.readInt();
+                        if (length < 0 || position + HEADER_SIZE + length > head.length) {
+                            // unreadable rest of the segment, drop it with the records before it
+                            position = head.length;
+                            break;
+                        }
+                        position += HEADER_SIZE + length;
+                        acked++;
+                    }
+                } finally {
+                    if (reader != mWriter) {
+                        reader.close();
+                    }
+                }
+                remaining -= acked;
+                mBytes -= position - mCursorOffset;
+                if (tail) {
+                    mTailCount -= acked;
+                } else {
+                    mSealedCount -= acked;
+                }
+
+                if (position < head.length) {
+                    mCursorOffset = position;
+                } else {
+                    consumed.add(head);
+                    if (tail) {
+                        // the tail is fully read, the next append starts a new segment
+                        closeQuietly(mWriter);
+                        mWriter = null;
+                        mNextId = head.id + 1;
+                        mTailCount = 0;
+                        remaining = 0;
+                    }
+                    mSegments.removeFirst();
+                    mCursorOffset = 0;
+                }
+                if (mSegments.size() <= 1) {
+                    // counts of sealed segments cannot go stale once only the tail is left
+                    mSealedCount = 0;
+                }
+            }
+            writeCursor();
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception moving journal cursor", e);
+            }
+        }
+
+        for (Segment segment : consumed) {
+            deleteQuietly(segment.file);
+        }
+    }
+
+    /**
+     * Only the head of an append-only journal can be removed, any other record is left in place.
+     */
+    @Override
+    public synchronized boolean remove(final String record) {
+        if (record == null || isEmpty()) {
+            return false;
+        }
+        final List<String> head = peek(1);
+        if (head.size() == 1 && head.get(0).equals(record)) {
+            ack(1);
+            return true;
+        }
+        if (Acquisition.sharedInstance().isLoggingEnabled()) {
+            Log.w(Acquisition.TAG, "Journal can only remove the oldest record");
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSealedCount + mTailCount;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the time the first record of the head segment was appended, which no record
+     * still in it predates.
+     */
+    @Override
+    public synchronized long oldestTimestamp() {
+        return isEmpty() ? 0 : mSegments.peekFirst().created;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return mSealedCount + mTailCount == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        final List<Segment> segments = new ArrayList<>(mSegments);
+        if (!mSegments.isEmpty()) {
+            mNextId = mSegments.peekLast().id + 1;
+        }
+        closeQuietly(mWriter);
+        mWriter = null;
+        mSegments.clear();
+        try {
+            mCursorOffset = 0;
+            mSealedCount = 0;
+            mTailCount = 0;
+            mBytes = 0;
+            writeCursor();
+        } catch (IOException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception clearing journal", e);
+            }
+        }
+        for (Segment segment : segments) {
+            deleteQuietly(segment.file);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeQuietly(mWriter);
+        closeQuietly(mCursorFile);
+        mWriter = null;
+        mCursorFile = null;
+    }
+
+    private void open() throws IOException {
+        final List<Segment> found = new ArrayList<>();
+        final String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                final Segment segment = parseSegment(name);
+                if (segment != null) {
+                    found.add(segment);
+                }
+            }
+        }
+        final Segment[] sorted = found.toArray(new Segment[found.size()]);
+        Arrays.sort(sorted, new Comparator<Segment>() {
+            @Override
+            public int compare(final Segment s1, final Segment s2) {
+                return s1.id < s2.id ? -1 : (s1.id == s2.id ? 0 : 1);
+            }
+        });
+
+        mCursorFile = new RandomAccessFile(new File(mDirectory, CURSOR_FILE), "rw");
+        long cursorId = -1;
+        long cursorOffset = 0;
+        int sealedCount = -1;
+        if (mCursorFile.length() >= CURSOR_SIZE) {
+            mCursorFile.seek(0);
+            mCursorFile.readFully(mCursorBuffer);
+            if (getInt(mCursorBuffer, 20) == crc(mCursorBuffer, 20)) {
+                cursorId = getLong(mCursorBuffer, 0);
+                cursorOffset = getLong(mCursorBuffer, 8);
+                sealedCount = getInt(mCursorBuffer, 16);
+            }
+        }
+
+        for (Segment segment : sorted) {
+            if (segment.id < cursorId) {
+                // fully acknowledged, the delete did not happen before the process went away
+                deleteQuietly(segment.file);
+                continue;
+            }
+            if (mSegments.isEmpty()) {
+                mCursorOffset = segment.id == cursorId ? cursorOffset : 0;
+            }
+            mSegments.add(segment);
+        }
+
+        if (mSegments.isEmpty()) {
+            // nothing to read, the first append creates the segment the cursor points at
+            mNextId = Math.max(cursorId, 0);
+            mCursorOffset = 0;
+            writeCursor();
+            return;
+        }
+
+        // the record count of sealed segments is only trusted if the cursor still points at them
+        final boolean counted = sealedCount >= 0 && mSegments.peekFirst().id == cursorId;
+        final Segment tail = mSegments.peekLast();
+        for (Segment segment : mSegments) {
+            final long start = segment == mSegments.peekFirst() ? mCursorOffset : 0;
+            final int records;
+            if (segment == tail || !counted) {
+                records = scan(segment, start);
+            } else {
+                // sealed segments are complete, they were only written while they were the tail
+                segment.length = Math.max(segment.file.length(), start);
+                records = 0;
+            }
+            mBytes += segment.length - start;
+            if (segment == tail) {
+                mTailCount = records;
+            } else {
+                mSealedCount += records;
+            }
+        }
+        if (counted && mSegments.size() > 1) {
+            mSealedCount = sealedCount;
+        }
+
+        mWriter = new RandomAccessFile(tail.file, "rw");
+        if (mWriter.length() != tail.length) {
+            // drop a torn record left by an interrupted append
+            mWriter.setLength(tail.length);
+        }
+        writeCursor();
+    }
+
+    /**
+     * Returns the segment named by the file name, or null if the file is not a segment.
+     */
+    private Segment parseSegment(final String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        final String stem = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+        final int separator = stem.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            return new Segment(Long.parseLong(stem.substring(0, separator)), new File(mDirectory, name),
+                    Long.parseLong(stem.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            // not one of ours
+            return null;
+        }
+    }
+
+    /**
+     * Counts the valid records of a segment, starting at the specified offset, and sets its
+     * length to the end of the last valid record.
+     */
+    private int scan(final Segment segment, final long start) throws IOException {
+        final RandomAccessFile reader = new RandomAccessFile(segment.file, "r");
+        try {
+            final long limit = reader.length();
+            long position = Math.min(start, limit);
+            int records = 0;
+            byte[] payload;
+            while ((payload = readRecord(reader, position, limit)) != null) {
+                position += HEADER_SIZE + payload.length;
+                records++;
+            }
+            segment.length = position;
+            if (position < limit && Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Ignoring " + (limit - position) + " corrupt bytes in " + segment.file);
+            }
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads and verifies the record at the specified position.
+     * @return the record payload, or null if there is no complete valid record at this position
+     */
+    private byte[] readRecord(final RandomAccessFile reader, final long position, final long limit) throws IOException {
+        if (position + HEADER_SIZE > limit) {
+            return null;
+        }
+        reader.seek(position);
+        final int length = reader.readInt();
+        final int crc = reader.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > limit) {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        reader.readFully(payload);
+        mCrc.reset();
+        mCrc.update(payload, 0, length);
+        return (int) mCrc.getValue() == crc ? payload : null;
+    }
+
+    private Segment startSegment(final long id) throws IOException {
+        final Segment segment = segmentFor(id);
+        final RandomAccessFile writer = new RandomAccessFile(segment.file, "rw");
+        writer.setLength(0);
+        closeQuietly(mWriter);
+        mWriter = writer;
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private RandomAccessFile readerFor(final Segment segment) throws IOException {
+        return segment == mSegments.peekLast() ? mWriter : new RandomAccessFile(segment.file, "r");
+    }
+
+    private Segment segmentFor(final long id) {
+        final long created = System.currentTimeMillis();
+        return new Segment(id, new File(mDirectory, SEGMENT_PREFIX + id + "-" + created + SEGMENT_SUFFIX), created);
+    }
+
+    private void writeCursor() throws IOException {
+        putLong(mCursorBuffer, 0, mSegments.isEmpty() ? mNextId : mSegments.peekFirst().id);
+        putLong(mCursorBuffer, 8, mCursorOffset);
+        putInt(mCursorBuffer, 16, mSealedCount);
+        putInt(mCursorBuffer, 20, crc(mCursorBuffer, 20));
+        mCursorFile.seek(0);
+        mCursorFile.write(mCursorBuffer);
+    }
+
+    private int crc(final byte[] buffer, final int length) {
+        mCrc.reset();
+        mCrc.update(buffer, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    private void truncateQuietly(final Segment segment) {
+        try {
+            if (segment == mSegments.peekLast() && mWriter != null) {
+                mWriter.setLength(segment.length);
+            }
+        } catch (IOException ignored) {
+            // the torn record is dropped on next open
+        }
+    }
+
+    private static void deleteQuietly(final File file) {
+        if (file.exists() && !file.delete() && Acquisition.sharedInstance().isLoggingEnabled()) {
+            Log.w(Acquisition.TAG, "Cannot delete journal segment " + file);
+        }
+    }
+
+    private static void closeQuietly(final RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // nothing useful to do
+            }
+        }
+    }
+
+    private static void putInt(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(final byte[] buffer, final int offset, final long value) {
+        putInt(buffer, offset, (int) (value >>> 32));
+        putInt(buffer, offset + 4, (int) value);
+    }
+
+    private static int getInt(final byte[] buffer, final int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static long getLong(final byte[] buffer, final int offset) {
+        return ((long) getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xffffffffL);
+    }
+}
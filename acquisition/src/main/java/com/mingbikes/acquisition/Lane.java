@@ -0,0 +1,64 @@
+package com.mingbikes.acquisition;
+
+/**
+ * Upload queues kept by {@link AcquisitionStore}, each with its own byte capacity and overflow
+ * policy. Uploads drain the lanes by weight, so a crash does not wait behind queued events.
+ */
+public enum Lane {
+
+    /**
+     * Fatal crash reports.
+     */
+    CRASH("crash", 8, 256 * 1024, OverflowPolicy.DROP_OLDEST),
+
+    /**
+     * Handled exceptions logged with {@link Acquisition#logException}.
+     */
+    NON_FATAL("non_fatal", 4, 512 * 1024, OverflowPolicy.DROP_OLDEST),
+
+    /**
+     * Batches of custom events.
+     */
+    EVENTS(null, 1, 2 * 1024 * 1024, OverflowPolicy.DROP_NEWEST);
+
+    private final String mSuffix;
+    private final int mDefaultWeight;
+    private final int mDefaultCapacity;
+    private final OverflowPolicy mDefaultPolicy;
+
+    Lane(final String suffix, final int defaultWeight, final int defaultCapacity, final OverflowPolicy defaultPolicy) {
+        mSuffix = suffix;
+        mDefaultWeight = defaultWeight;
+        mDefaultCapacity = defaultCapacity;
+        mDefaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * Returns the suffix of the lane's storage names, null for the lane that keeps the names
+     * of the single queue used before lanes existed.
+     */
+    String getSuffix() {
+        return mSuffix;
+    }
+
+    /**
+     * Returns the share of upload requests the lane gets while other lanes have records too.
+     */
+    public int getDefaultWeight() {
+        return mDefaultWeight;
+    }
+
+    /**
+     * Returns the number of bytes the lane keeps before its overflow policy applies.
+     */
+    public int getDefaultCapacity() {
+        return mDefaultCapacity;
+    }
+
+    /**
+     * Returns what the lane does with a new record when it is full.
+     */
+    public OverflowPolicy getDefaultPolicy() {
+        return mDefaultPolicy;
+    }
+}
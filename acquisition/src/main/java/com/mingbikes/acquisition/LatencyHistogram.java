@@ -0,0 +1,78 @@
+package com.mingbikes.acquisition;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock and allocation free histogram of durations in microseconds, with log-linear buckets in
+ * the style of HdrHistogram: values below 16 have a bucket each, larger values fall into 16
+ * buckets per power of two, so any value is off by at most 1/16 of itself. Durations above
+ * about 19 hours are counted in the last bucket.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a duration measured with {@link System#nanoTime}.
+     */
+    void recordNanos(final long nanos) {
+        record(Math.max(nanos, 0) / 1000);
+    }
+
+    /**
+     * Records a duration in microseconds.
+     */
+    void record(final long micros) {
+        mCounts.incrementAndGet(bucketOf(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Returns a copy of the current values. Values recorded while the copy is made may be
+     * missing from some of its totals.
+     */
+    AcquisitionMetrics.Histogram snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new AcquisitionMetrics.Histogram(counts, mCount.get(), mSum.get(), mMax.get());
+    }
+
+    static int bucketOf(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value counted in the bucket.
+     */
+    static long lowestOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+}
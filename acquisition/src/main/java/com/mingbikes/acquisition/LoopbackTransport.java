@@ -0,0 +1,213 @@
+package com.mingbikes.acquisition;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.CountingOutputStream;
+import utils.HttpConnectionUtils;
+
+/**
+ * In-process transport that answers requests itself, for benchmarks and load tests of the
+ * upload pipeline without a live collector.
+ *
+ * Latency, failures and a throughput limit can be injected. Randomness comes from a seeded
+ * generator, so a run with the same seed and request sequence fails the same requests.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private final Random mRandom;
+    private final Object mLinkLock = new Object();
+
+    private long mMinLatencyMillis;
+    private long mMaxLatencyMillis;
+    private double mErrorRate;
+    private int mErrorCode;
+    private long mBytesPerSecond;
+    private boolean mRecording;
+    private final List<Request> mReceived = new ArrayList<>();
+    // time the simulated link has sent everything queued so far
+    private long mLinkFreeAtNanos;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+
+    public LoopbackTransport() {
+        this(0);
+    }
+
+    /**
+     * @param seed seed for latency and error injection
+     */
+    public LoopbackTransport(final long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Delays every response by a random time in the range.
+     * @return LoopbackTransport instance
+     */
+    public synchronized LoopbackTransport setLatency(final long minMillis, final long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("invalid latency range");
+        }
+        mMinLatencyMillis = minMillis;
+        mMaxLatencyMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * Fails a share of the requests.
+     * @param rate probability of a request failing, between 0 and 1
+     * @param statusCode HTTP status returned for failed requests, or 0 to throw an IOException
+     * @return LoopbackTransport instance
+     */
+    public synchronized LoopbackTransport setErrorRate(final double rate, final int statusCode) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be between 0 and 1");
+        }
+        mErrorRate = rate;
+        mErrorCode = statusCode;
+        return this;
+    }
+
+    /**
+     * Limits the simulated link to the given rate, shared by concurrent requests.
+     * Compressed requests are limited by their compressed size.
+     * @param bytesPerSecond link speed, 0 for unlimited
+     * @return LoopbackTransport instance
+     */
+    public synchronized LoopbackTransport setThroughput(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond must not be negative");
+        }
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Keeps every successfully received request for {@link #takeReceived()}.
+     * @return LoopbackTransport instance
+     */
+    public synchronized LoopbackTransport setRecording(final boolean recording) {
+        mRecording = recording;
+        return this;
+    }
+
+    @Override
+    public Response send(final Request request) throws IOException {
+        final long latencyMillis;
+        final boolean fail;
+        final int errorCode;
+        final long bytesPerSecond;
+        synchronized (this) {
+            latencyMillis = mMinLatencyMillis
+                    + (long) (mRandom.nextDouble() * (mMaxLatencyMillis - mMinLatencyMillis));
+            fail = mErrorRate > 0 && mRandom.nextDouble() < mErrorRate;
+            errorCode = mErrorCode;
+            bytesPerSecond = mBytesPerSecond;
+        }
+        mRequestCount.incrementAndGet();
+
+        final long bytes = wireLength(request);
+        long waitNanos = latencyMillis * 1000000L;
+        if (bytesPerSecond > 0) {
+            final long transferNanos = bytes * 1000000000L / bytesPerSecond;
+            final long now = System.nanoTime();
+            final long doneAt;
+            synchronized (mLinkLock) {
+                doneAt = Math.max(now, mLinkFreeAtNanos) + transferNanos;
+                mLinkFreeAtNanos = doneAt;
+            }
+            waitNanos += doneAt - now;
+        }
+        sleep(waitNanos);
+
+        if (fail) {
+            mErrorCount.incrementAndGet();
+            if (errorCode <= 0) {
+                throw new IOException("injected failure");
+            }
+            return new Response(errorCode, null);
+        }
+
+        mBytesReceived.addAndGet(bytes);
+        synchronized (this) {
+            if (mRecording) {
+                mReceived.add(request);
+            }
+        }
+        return new Response(200, null);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns and forgets the requests received since the last call.
+     */
+    public synchronized List<Request> takeReceived() {
+        final List<Request> received = new ArrayList<>(mReceived);
+        mReceived.clear();
+        return received;
+    }
+
+    /**
+     * Returns the number of requests sent, including failed ones.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Returns the number of injected failures.
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * Returns the size on the wire of all successfully received bodies.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private static long wireLength(final Request request) throws IOException {
+        if (!request.isCompressed()) {
+            return request.getBody().length;
+        }
+        // compress for real so the CPU cost and the compression totals match a network transport
+        final CountingOutputStream out = new CountingOutputStream(DISCARD);
+        HttpConnectionUtils.writeEventData(out, request.getBody(), true);
+        return out.getCount();
+    }
+
+    private static void sleep(final long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while simulating the link");
+        }
+    }
+}
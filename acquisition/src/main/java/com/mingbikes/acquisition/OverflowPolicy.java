@@ -0,0 +1,24 @@
+package com.mingbikes.acquisition;
+
+/**
+ * What {@link Acquisition#record} does when the in-memory event buffer is full, and what a
+ * {@link Lane} of the store does when it reaches its capacity.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Discard the oldest buffered event or stored record to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new event or record.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Wait up to the configured timeout for room, then discard the new event. Only applies to
+     * the event buffer.
+     */
+    BLOCK
+}
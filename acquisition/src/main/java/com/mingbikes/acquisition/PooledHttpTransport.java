@@ -0,0 +1,440 @@
+package com.mingbikes.acquisition;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import utils.CountingOutputStream;
+import utils.HttpConnectionUtils;
+
+/**
+ * HTTP/1.1 transport keeping a pool of keep-alive connections to the upload endpoint.
+ *
+ * Every response body is read to the end so the connection can carry the next request,
+ * which saves the TCP and TLS handshakes that a new connection per record costs.
+ * Connections idle for longer than the keep-alive time are closed instead of reused.
+ */
+public class PooledHttpTransport implements Transport {
+
+    static final int DEFAULT_TIMEOUT_MILLIS = 30000;
+    static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String mHost;
+    private final int mPort;
+    private final boolean mSecure;
+    private final String mPath;
+    private final String mHostHeader;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    private final int mMaxIdleConnections;
+
+    private final ArrayDeque<Connection> mIdle = new ArrayDeque<>();
+    private final AtomicLong mConnectionsOpened = new AtomicLong();
+    private final AtomicLong mRequestsSent = new AtomicLong();
+    private volatile int mMaxReuseCount;
+    private boolean mClosed;
+
+    /**
+     * @param url full URL of the upload endpoint, http or https
+     * @throws MalformedURLException if the URL is not a valid http(s) URL
+     */
+    public PooledHttpTransport(final String url) throws MalformedURLException {
+        this(url, DEFAULT_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_IDLE_CONNECTIONS);
+    }
+
+    /**
+     * @param url full URL of the upload endpoint, http or https
+     * @param connectTimeoutMillis timeout for establishing a connection
+     * @param readTimeoutMillis timeout for reading the response
+     * @param maxIdleConnections number of idle connections kept for reuse
+     * @throws MalformedURLException if the URL is not a valid http(s) URL
+     */
+    public PooledHttpTransport(final String url, final int connectTimeoutMillis, final int readTimeoutMillis,
+                               final int maxIdleConnections) throws MalformedURLException {
+        final URL endpoint = new URL(url);
+        final String protocol = endpoint.getProtocol();
+        if (!"http".equals(protocol) && !"https".equals(protocol)) {
+            throw new MalformedURLException("unsupported protocol " + protocol);
+        }
+        mSecure = "https".equals(protocol);
+        mHost = endpoint.getHost();
+        mPort = endpoint.getPort() != -1 ? endpoint.getPort() : endpoint.getDefaultPort();
+        mPath = endpoint.getFile().length() > 0 ? endpoint.getFile() : "/";
+        mHostHeader = endpoint.getPort() != -1 ? mHost + ":" + mPort : mHost;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        mMaxIdleConnections = maxIdleConnections;
+    }
+
+    @Override
+    public Response send(final Request request) throws IOException {
+        Connection connection = acquire();
+        try {
+            return execute(connection, request);
+        } catch (IOException e) {
+            if (connection.mRequests == 0) {
+                throw e;
+            }
+            // the server may have dropped the idle connection, retry once on a new one
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.d(Acquisition.TAG, "Pooled connection failed, retrying on a new connection", e);
+            }
+            connection = open();
+            return execute(connection, request);
+        }
+    }
+
+    private Response execute(final Connection connection, final Request request) throws IOException {
+        final Response response;
+        try {
+            response = connection.execute(request);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        mRequestsSent.incrementAndGet();
+        release(connection);
+        return response;
+    }
+
+    @Override
+    public void close() {
+        synchronized (mIdle) {
+            mClosed = true;
+            for (Connection connection : mIdle) {
+                connection.close();
+            }
+            mIdle.clear();
+        }
+    }
+
+    /**
+     * Returns the number of connections opened so far.
+     */
+    public long getConnectionsOpened() {
+        return mConnectionsOpened.get();
+    }
+
+    /**
+     * Returns the number of requests that received a response.
+     */
+    public long getRequestsSent() {
+        return mRequestsSent.get();
+    }
+
+    /**
+     * Returns the number of requests served by each idle pooled connection.
+     */
+    public int[] getReuseCounts() {
+        synchronized (mIdle) {
+            final int[] counts = new int[mIdle.size()];
+            int i = 0;
+            for (Connection connection : mIdle) {
+                counts[i++] = connection.mRequests;
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Returns the highest number of requests any single connection has served.
+     */
+    public int getMaxReuseCount() {
+        return mMaxReuseCount;
+    }
+
+    private Connection acquire() throws IOException {
+        final long now = System.currentTimeMillis();
+        synchronized (mIdle) {
+            Connection connection;
+            while ((connection = mIdle.pollLast()) != null) {
+                if (now - connection.mIdleSince < DEFAULT_KEEP_ALIVE_MILLIS && !connection.mSocket.isClosed()) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open();
+    }
+
+    private void release(final Connection connection) {
+        if (connection.mRequests > mMaxReuseCount) {
+            mMaxReuseCount = connection.mRequests;
+        }
+        if (!connection.mKeepAlive) {
+            connection.close();
+            return;
+        }
+        connection.mIdleSince = System.currentTimeMillis();
+        synchronized (mIdle) {
+            if (!mClosed && mIdle.size() < mMaxIdleConnections) {
+                mIdle.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeoutMillis);
+            socket.setSoTimeout(mReadTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            if (mSecure) {
+                final SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, mHost, mPort, true);
+                socket = sslSocket;
+                sslSocket.startHandshake();
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(mHost, sslSocket.getSession())) {
+                    throw new IOException("hostname " + mHost + " not verified");
+                }
+            }
+            mConnectionsOpened.incrementAndGet();
+            return new Connection(socket);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            throw e;
+        }
+    }
+
+    private final class Connection {
+
+        final Socket mSocket;
+        final InputStream mIn;
+        final OutputStream mOut;
+        final StringBuilder mLine = new StringBuilder(128);
+        int mRequests;
+        long mIdleSince;
+        boolean mKeepAlive = true;
+
+        Connection(final Socket socket) throws IOException {
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        Response execute(final Request request) throws IOException {
+            writeRequest(request);
+            final Response response = readResponse();
+            mRequests++;
+            return response;
+        }
+
+        private void writeRequest(final Request request) throws IOException {
+            final StringBuilder head = new StringBuilder(256);
+            head.append("POST ").append(mPath).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(mHostHeader).append("\r\n");
+            head.append("Connection: keep-alive\r\n");
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (request.getContentType() != null) {
+                head.append("Content-Type: ").append(request.getContentType())
+                        .append(request.isText() ? "; charset=utf-8\r\n" : "\r\n");
+            }
+
+            if (request.isCompressed()) {
+                head.append("Content-Encoding: gzip\r\n");
+                head.append("Transfer-Encoding: chunked\r\n\r\n");
+                mOut.write(head.toString().getBytes(ASCII));
+
+                // stream through gzip into HTTP chunks, the compressed body is never held in full
+                final CountingOutputStream compressed = new CountingOutputStream(
+                        new BufferedOutputStream(new ChunkedOutputStream(mOut), BUFFER_SIZE));
+                final GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+                gzip.write(request.getBody());
+                gzip.close();
+                HttpConnectionUtils.recordCompression(request.getBody().length, compressed.getCount());
+            } else {
+                final byte[] body = request.getBody();
+                head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+                mOut.write(head.toString().getBytes(ASCII));
+                mOut.write(body);
+            }
+            mOut.flush();
+        }
+
+        private Response readResponse() throws IOException {
+            String statusLine;
+            int code;
+            Map<String, String> headers;
+            do {
+                statusLine = readLine();
+                code = parseStatus(statusLine);
+                headers = readHeaders();
+            } while (code >= 100 && code < 200);
+
+            final String connectionHeader = headers.get("connection");
+            if (statusLine.startsWith("HTTP/1.0")) {
+                mKeepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+            } else {
+                mKeepAlive = !"close".equalsIgnoreCase(connectionHeader);
+            }
+
+            // read the whole body, otherwise the connection cannot carry another request
+            final String transferEncoding = headers.get("transfer-encoding");
+            final String contentLength = headers.get("content-length");
+            if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                drainChunked();
+            } else if (contentLength != null) {
+                try {
+                    skipFully(Long.parseLong(contentLength.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid Content-Length " + contentLength);
+                }
+            } else if (code != 204 && code != 304) {
+                // body delimited by the end of the connection
+                while (mIn.skip(BUFFER_SIZE) > 0 || mIn.read() != -1) {
+                    // discard
+                }
+                mKeepAlive = false;
+            }
+            return new Response(code, headers);
+        }
+
+        private int parseStatus(final String statusLine) throws IOException {
+            final int start = statusLine.indexOf(' ');
+            if (!statusLine.startsWith("HTTP/") || start < 0 || statusLine.length() < start + 4) {
+                throw new IOException("invalid status line " + statusLine);
+            }
+            try {
+                return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid status line " + statusLine);
+            }
+        }
+
+        private Map<String, String> readHeaders() throws IOException {
+            final Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine()).length() > 0) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+            }
+            return headers;
+        }
+
+        private void drainChunked() throws IOException {
+            while (true) {
+                final String line = readLine();
+                final int extension = line.indexOf(';');
+                final long size;
+                try {
+                    size = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid chunk size " + line);
+                }
+                if (size == 0) {
+                    // trailers end with an empty line
+                    while (readLine().length() > 0) {
+                        // discard
+                    }
+                    return;
+                }
+                skipFully(size);
+                readLine();
+            }
+        }
+
+        private void skipFully(long count) throws IOException {
+            while (count > 0) {
+                final long skipped = mIn.skip(count);
+                if (skipped > 0) {
+                    count -= skipped;
+                } else if (mIn.read() == -1) {
+                    throw new EOFException("unexpected end of response body");
+                } else {
+                    count--;
+                }
+            }
+        }
+
+        private String readLine() throws IOException {
+            mLine.setLength(0);
+            int c;
+            while ((c = mIn.read()) != -1) {
+                if (c == '\n') {
+                    final int length = mLine.length();
+                    if (length > 0 && mLine.charAt(length - 1) == '\r') {
+                        mLine.setLength(length - 1);
+                    }
+                    return mLine.toString();
+                }
+                mLine.append((char) c);
+            }
+            throw new EOFException("connection closed by server");
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+                // nothing useful to do
+            }
+        }
+    }
+
+    /**
+     * Frames everything written into HTTP/1.1 chunks, closing writes the last chunk
+     * but leaves the connection stream open.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(ASCII));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write("0\r\n\r\n".getBytes(ASCII));
+            out.flush();
+        }
+    }
+}
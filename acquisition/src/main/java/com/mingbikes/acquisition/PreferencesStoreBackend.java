@@ -0,0 +1,174 @@
+package com.mingbikes.acquisition;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Legacy backend keeping the whole queue as a single delimited SharedPreferences string.
+ * Every write commits the full queue, prefer {@link JournalStoreBackend}. The record count is
+ * kept in memory and records are located by scanning for delimiters, the queue is never split.
+ */
+public class PreferencesStoreBackend implements StoreBackend {
+
+    static final String DELIMITER = ":::";
+    static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+    private static final String OLDEST_SUFFIX = "_OLDEST";
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+    // number of records, -1 until first counted
+    private int mCount = -1;
+
+    public PreferencesStoreBackend(final SharedPreferences preferences) {
+        this(preferences, CONNECTIONS_PREFERENCE);
+    }
+
+    /**
+     * @param preferences preferences holding the queue
+     * @param key preference the queue is kept under
+     */
+    public PreferencesStoreBackend(final SharedPreferences preferences, final String key) {
+        if (preferences == null) {
+            throw new IllegalArgumentException("must provide valid preferences");
+        }
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("must provide valid key");
+        }
+        mPreferences = preferences;
+        mKey = key;
+    }
+
+    @Override
+    public synchronized boolean append(final String record) {
+        if (record == null || record.length() == 0) {
+            return false;
+        }
+        final String joined = joined();
+        final int count = size();
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        if (joined.length() == 0) {
+            editor.putString(mKey, record).putLong(mKey + OLDEST_SUFFIX, System.currentTimeMillis());
+        } else {
+            editor.putString(mKey, joined + DELIMITER + record);
+        }
+        final boolean stored = editor.commit();
+        if (stored) {
+            mCount = count + 1;
+        }
+        return stored;
+    }
+
+    @Override
+    public synchronized List<String> peek(final int maxRecords) {
+        final String joined = joined();
+        final List<String> records = new ArrayList<>(Math.max(0, Math.min(maxRecords, size())));
+        int start = 0;
+        while (records.size() < maxRecords && start < joined.length()) {
+            final int end = endOf(joined, start);
+            records.add(joined.substring(start, end));
+            start = end + DELIMITER.length();
+        }
+        return records;
+    }
+
+    /**
+     * Acknowledged records leave the queue, the time of the oldest record is kept as a bound
+     * for the ones after it.
+     */
+    @Override
+    public synchronized void ack(final int count) {
+        if (count <= 0) {
+            return;
+        }
+        final String joined = joined();
+        int start = 0;
+        for (int i = 0; i < count && start < joined.length(); i++) {
+            start = endOf(joined, start) + DELIMITER.length();
+        }
+        if (start >= joined.length()) {
+            clear();
+        } else {
+            mPreferences.edit().putString(mKey, joined.substring(start)).commit();
+            mCount = Math.max(size() - count, 0);
+        }
+    }
+
+    @Override
+    public synchronized boolean remove(final String record) {
+        if (record == null || record.length() == 0) {
+            return false;
+        }
+        final String joined = joined();
+        int start = 0;
+        while (start < joined.length()) {
+            final int end = endOf(joined, start);
+            if (end - start == record.length() && joined.startsWith(record, start)) {
+                final String remaining;
+                if (start == 0) {
+                    remaining = end < joined.length() ? joined.substring(end + DELIMITER.length()) : "";
+                } else {
+                    remaining = joined.substring(0, start - DELIMITER.length()) + joined.substring(end);
+                }
+                if (remaining.length() == 0) {
+                    clear();
+                } else {
+                    mPreferences.edit().putString(mKey, remaining).commit();
+                    mCount = size() - 1;
+                }
+                return true;
+            }
+            start = end + DELIMITER.length();
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized int size() {
+        if (mCount < 0) {
+            final String joined = joined();
+            int count = 0;
+            for (int start = 0; start < joined.length(); start = endOf(joined, start) + DELIMITER.length()) {
+                count++;
+            }
+            mCount = count;
+        }
+        return mCount;
+    }
+
+    @Override
+    public synchronized long bytes() {
+        return HttpConnectionProcessor.utf8Length(joined());
+    }
+
+    @Override
+    public synchronized long oldestTimestamp() {
+        return isEmpty() ? 0 : mPreferences.getLong(mKey + OLDEST_SUFFIX, 0);
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return joined().length() == 0;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mPreferences.edit().remove(mKey).remove(mKey + OLDEST_SUFFIX).commit();
+        mCount = 0;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, SharedPreferences are owned by the context
+    }
+
+    private String joined() {
+        return mPreferences.getString(mKey, "");
+    }
+
+    private static int endOf(final String joined, final int start) {
+        final int end = joined.indexOf(DELIMITER, start);
+        return end < 0 ? joined.length() : end;
+    }
+}
@@ -0,0 +1,208 @@
+package com.mingbikes.acquisition;
+
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when failed uploads to one server are retried.
+ *
+ * Each consecutive failure waits a random delay between zero and an exponentially growing
+ * ceiling (full jitter) capped at the maximum delay, or longer if the server sent Retry-After.
+ * After enough consecutive failures the circuit opens and no request is made until the open
+ * period has passed; a single probe run then closes it again or reopens it.
+ *
+ * The failure count and next attempt time are persisted in the store, so a restarted process
+ * keeps waiting instead of retrying all at once.
+ */
+final class RetryScheduler {
+
+    static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_OPEN_MILLIS = 10 * 60 * 1000;
+
+    private static final String BACKOFF_PREFERENCE_PREFIX = "BACKOFF_";
+    private static final String STATE_DELIMITER = ":";
+
+    private final ScheduledExecutorService mScheduler;
+    private final AcquisitionStore mAcquisitionStore;
+    private final String mPreferenceKey;
+    private final Runnable mRetry;
+    private final Random mRandom = new Random();
+
+    private long mBaseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long mMaxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long mOpenMillis = DEFAULT_OPEN_MILLIS;
+
+    private int mFailures;
+    private long mNextAttemptMillis;
+    private ScheduledFuture<?> mPendingRetry;
+
+    /**
+     * @param scheduler executor the retry is scheduled on
+     * @param serverURL server the state belongs to
+     * @param retry action that restarts the upload
+     */
+    RetryScheduler(final ScheduledExecutorService scheduler, final AcquisitionStore acquisitionStore,
+                   final String serverURL, final Runnable retry) {
+        mScheduler = scheduler;
+        mAcquisitionStore = acquisitionStore;
+        mPreferenceKey = BACKOFF_PREFERENCE_PREFIX + serverURL;
+        mRetry = retry;
+        restore();
+    }
+
+    /**
+     * Sets the backoff parameters, the current state is kept.
+     */
+    synchronized void configure(final long baseDelayMillis, final long maxDelayMillis,
+                                final int failureThreshold, final long openMillis) {
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * Returns true if uploads may be attempted now. Otherwise a retry is scheduled for the
+     * time the current backoff ends, so callers can simply give up.
+     */
+    synchronized boolean canAttempt() {
+        final long delay = mNextAttemptMillis - System.currentTimeMillis();
+        if (delay <= 0) {
+            return true;
+        }
+        schedule(delay);
+        return false;
+    }
+
+    /**
+     * Returns true if the circuit is open or only letting a probe through.
+     */
+    synchronized boolean isCircuitOpen() {
+        return mFailures >= mFailureThreshold;
+    }
+
+    synchronized int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Records a successful exchange with the server and resets the backoff.
+     */
+    synchronized void onSuccess() {
+        if (mFailures == 0 && mNextAttemptMillis == 0) {
+            return;
+        }
+        mFailures = 0;
+        mNextAttemptMillis = 0;
+        if (mPendingRetry != null) {
+            mPendingRetry.cancel(false);
+            mPendingRetry = null;
+        }
+        persist();
+    }
+
+    /**
+     * Records a failed upload and schedules the retry.
+     * @param retryAfterMillis delay requested by the server, or 0 if it did not send one
+     * @return the delay until the retry in milliseconds
+     */
+    synchronized long onFailure(final long retryAfterMillis) {
+        mFailures++;
+        long delay;
+        if (mFailures >= mFailureThreshold) {
+            // open the circuit, jittered so clients that failed together do not return together
+            delay = mOpenMillis / 2 + (long) (mRandom.nextDouble() * (mOpenMillis / 2));
+        } else {
+            final int exponent = Math.min(mFailures - 1, 30);
+            final long ceiling = Math.min(mMaxDelayMillis, mBaseDelayMillis << exponent);
+            delay = (long) (mRandom.nextDouble() * ceiling);
+        }
+        delay = Math.max(delay, retryAfterMillis);
+        mNextAttemptMillis = System.currentTimeMillis() + delay;
+        persist();
+
+        if (Acquisition.sharedInstance().isLoggingEnabled()) {
+            Log.w(Acquisition.TAG, "Upload failed " + mFailures + " times in a row, retrying in " + delay + " ms"
+                    + (mFailures >= mFailureThreshold ? " (circuit open)" : ""));
+        }
+        schedule(delay);
+        return delay;
+    }
+
+    /**
+     * Cancels the pending retry.
+     */
+    synchronized void cancel() {
+        if (mPendingRetry != null) {
+            mPendingRetry.cancel(false);
+            mPendingRetry = null;
+        }
+    }
+
+    private void schedule(final long delayMillis) {
+        if (mPendingRetry != null && !mPendingRetry.isDone()) {
+            if (mPendingRetry.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                return;
+            }
+            mPendingRetry.cancel(false);
+        }
+        mPendingRetry = mScheduler.schedule(mRetry, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void restore() {
+        final String state = mAcquisitionStore.getPreference(mPreferenceKey);
+        if (state == null) {
+            return;
+        }
+        final String[] parts = state.split(STATE_DELIMITER);
+        try {
+            mFailures = Integer.parseInt(parts[0]);
+            mNextAttemptMillis = Long.parseLong(parts[1]);
+        } catch (RuntimeException e) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Ignoring invalid backoff state: " + state, e);
+            }
+            mFailures = 0;
+            mNextAttemptMillis = 0;
+        }
+    }
+
+    private void persist() {
+        mAcquisitionStore.setPreference(mPreferenceKey,
+                mFailures == 0 ? null : mFailures + STATE_DELIMITER + mNextAttemptMillis);
+    }
+
+    /**
+     * Parses a Retry-After header, either delay seconds or an HTTP date.
+     * @return the requested delay in milliseconds, 0 if the header is missing or invalid
+     */
+    static long parseRetryAfter(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        final String trimmed = value.trim();
+        try {
+            return Math.max(Long.parseLong(trimmed) * 1000, 0);
+        } catch (NumberFormatException e) {
+            // not a number, try the date form
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        try {
+            final Date date = format.parse(trimmed);
+            return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+}
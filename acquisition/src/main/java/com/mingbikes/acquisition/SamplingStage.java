@@ -0,0 +1,21 @@
+package com.mingbikes.acquisition;
+
+/**
+ * Where a sampling policy set with {@link Acquisition#setSamplingPolicies} decides which events
+ * of its key are kept.
+ */
+public enum SamplingStage {
+
+    /**
+     * Decide on the recording thread, before the event is buffered or coalesced. Events that
+     * are not kept cost no more than the policy lookup.
+     */
+    HEAD,
+
+    /**
+     * Decide when the coalesced events are written to the store, once per key and segmentation.
+     * Every event is counted in memory first, and the policy limits how many store records
+     * a key with many distinct segmentations takes.
+     */
+    TAIL
+}
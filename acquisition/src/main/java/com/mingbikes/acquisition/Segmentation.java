@@ -0,0 +1,210 @@
+package com.mingbikes.acquisition;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable segmentation of an event, its names and values held in a single array sorted by
+ * name instead of a HashMap with an entry object per pair. The hash code is computed once, so
+ * events and aggregator buckets compare and hash without walking the pairs. Equal to any
+ * other map with the same pairs. Null names are left out, like they are when the event is
+ * written.
+ */
+final class Segmentation extends AbstractMap<String, String> {
+
+    static final Segmentation EMPTY = new Segmentation(new String[0]);
+
+    // name, value, name, value... sorted by name, names unique
+    private final String[] mPairs;
+    private final int mHash;
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    private Segmentation(final String[] pairs) {
+        mPairs = pairs;
+        int hash = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            hash += pairs[i].hashCode() ^ (pairs[i + 1] != null ? pairs[i + 1].hashCode() : 0);
+        }
+        mHash = hash;
+    }
+
+    /**
+     * Returns the segmentation with the pairs of the map, names and values interned.
+     * @param map segmentation to copy, may be null
+     * @return the segmentation, or null if the map is null
+     */
+    static Segmentation of(final Map<String, String> map, final SymbolTable symbols) {
+        if (map == null || map instanceof Segmentation) {
+            return (Segmentation) map;
+        }
+        final String[] pairs = new String[map.size() * 2];
+        int length = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            pairs[length++] = symbols.intern(entry.getKey());
+            pairs[length++] = symbols.intern(entry.getValue());
+        }
+        return of(pairs, length);
+    }
+
+    /**
+     * Returns the segmentation with the pairs, a later pair replacing an earlier one of the
+     * same name.
+     * @param pairs names and values in turn, not kept
+     * @param length number of elements of pairs used
+     */
+    static Segmentation of(final String[] pairs, final int length) {
+        final String[] sorted = new String[length];
+        int size = 0;
+        for (int i = 0; i < length; i += 2) {
+            final String name = pairs[i];
+            if (name == null) {
+                continue;
+            }
+            // insertion sort, segmentations hold a handful of pairs
+            int j = size;
+            while (j > 0 && sorted[j - 2].compareTo(name) > 0) {
+                j -= 2;
+            }
+            if (j > 0 && sorted[j - 2].equals(name)) {
+                sorted[j - 1] = pairs[i + 1];
+                continue;
+            }
+            System.arraycopy(sorted, j, sorted, j + 2, size - j);
+            sorted[j] = name;
+            sorted[j + 1] = pairs[i + 1];
+            size += 2;
+        }
+        if (size == 0) {
+            return EMPTY;
+        }
+        if (size == length) {
+            return new Segmentation(sorted);
+        }
+        final String[] trimmed = new String[size];
+        System.arraycopy(sorted, 0, trimmed, 0, size);
+        return new Segmentation(trimmed);
+    }
+
+    @Override
+    public int size() {
+        return mPairs.length / 2;
+    }
+
+    /**
+     * Returns the name of the pair at the index, pairs are ordered by name.
+     */
+    String nameAt(final int index) {
+        return mPairs[index * 2];
+    }
+
+    /**
+     * Returns the value of the pair at the index, may be null.
+     */
+    String valueAt(final int index) {
+        return mPairs[index * 2 + 1];
+    }
+
+    private int indexOf(final Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        int low = 0;
+        int high = mPairs.length / 2 - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int order = mPairs[middle * 2].compareTo((String) name);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean containsKey(final Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override
+    public String get(final Object name) {
+        final int index = indexOf(name);
+        return index >= 0 ? mPairs[index * 2 + 1] : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int mIndex;
+
+                        @Override
+                        public boolean hasNext() {
+                            return mIndex < mPairs.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (mIndex >= mPairs.length) {
+                                throw new NoSuchElementException();
+                            }
+                            final Map.Entry<String, String> entry =
+                                    new SimpleImmutableEntry<>(mPairs[mIndex], mPairs[mIndex + 1]);
+                            mIndex += 2;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return mPairs.length / 2;
+                }
+            };
+        }
+        return mEntrySet;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof Segmentation)) {
+            return super.equals(o);
+        }
+        final Segmentation other = (Segmentation) o;
+        if (mHash != other.mHash || mPairs.length != other.mPairs.length) {
+            return false;
+        }
+        for (int i = 0; i < mPairs.length; i++) {
+            final String a = mPairs[i];
+            final String b = other.mPairs[i];
+            // interned strings are usually the same instance
+            if (a != b && (a == null || !a.equals(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+}
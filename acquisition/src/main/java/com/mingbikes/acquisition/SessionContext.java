@@ -0,0 +1,107 @@
+package com.mingbikes.acquisition;
+
+import android.content.Context;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Static device metadata sent to the server once per session instead of with every record.
+ *
+ * Protocol, all requests go to the upload endpoint:
+ * <ol>
+ * <li>The context is the JSON object of the {@link DeviceSnapshot#getStaticFields() static
+ * device fields}. Its id is the first 16 hex digits of the SHA-1 of that JSON in UTF-8, so the
+ * same device and app version always map to the same id.</li>
+ * <li>Before the first upload of a session the client posts the context JSON with
+ * Content-Type {@value #CONTENT_TYPE} and the header {@value #HEADER} set to the id. The
+ * server stores the context under the id and answers 2xx.</li>
+ * <li>Every following upload request carries the {@value #HEADER} header. The server expands
+ * the id to the stored context for all records of the request. Records that hold device data
+ * of their own, such as reports of handled exceptions, carry only the id in a {@value #FIELD}
+ * member next to their dynamic fields. Fatal crash files keep the full fields, since they are
+ * uploaded by the next process, possibly of a newer app version.</li>
+ * <li>If the server does not know the id, for example after it dropped old contexts, it
+ * answers 428 Precondition Required without handling the records. The client registers the
+ * context again and resends the request.</li>
+ * </ol>
+ * A server that answers the registration with any other 4xx does not support contexts, the
+ * client then sends no context header for the rest of the session.
+ */
+final class SessionContext {
+
+    static final String HEADER = "X-Acquisition-Context";
+    static final String CONTENT_TYPE = "application/x-acquisition-context";
+    static final String FIELD = "_context";
+    static final int HTTP_PRECONDITION_REQUIRED = 428;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int ID_LENGTH = 16;
+
+    private final Context mContext;
+    private String mJson;
+    private String mId;
+    private volatile boolean mRegistered;
+    private volatile boolean mUnsupported;
+
+    /**
+     * @param context context to read the device snapshot with, the snapshot is read on first use
+     */
+    SessionContext(final Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the context JSON object, reading the device snapshot on first use.
+     */
+    synchronized String getJson() {
+        if (mJson == null) {
+            mJson = "{" + DeviceSnapshot.get(mContext).getStaticJson() + "}";
+            mId = idFor(mJson);
+        }
+        return mJson;
+    }
+
+    /**
+     * Returns the content hash identifying the context.
+     */
+    synchronized String getId() {
+        getJson();
+        return mId;
+    }
+
+    /**
+     * Returns whether uploads carry the context id, false once the server refused it.
+     */
+    boolean isActive() {
+        return !mUnsupported;
+    }
+
+    void setUnsupported() {
+        mUnsupported = true;
+    }
+
+    boolean isRegistered() {
+        return mRegistered;
+    }
+
+    void setRegistered(final boolean registered) {
+        mRegistered = registered;
+    }
+
+    static String idFor(final String json) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(json.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java and Android runtime is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder id = new StringBuilder(ID_LENGTH);
+        for (int i = 0; i < ID_LENGTH / 2; i++) {
+            id.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.mingbikes.acquisition;
+
+import java.util.List;
+
+/**
+ * Storage backend for the queue of pending connections kept by {@link AcquisitionStore}.
+ * Records are kept in insertion order, the head of the queue is the oldest record.
+ */
+public interface StoreBackend {
+
+    /**
+     * Appends a record to the tail of the queue.
+     * @param record the record to be added, must not be null or empty
+     * @return true if the record was stored
+     */
+    boolean append(String record);
+
+    /**
+     * Returns up to maxRecords records from the head of the queue, oldest first,
+     * without removing them.
+     * @param maxRecords maximum number of records to return
+     */
+    List<String> peek(int maxRecords);
+
+    /**
+     * Removes count records from the head of the queue.
+     * @param count number of records to acknowledge, clamped to the queue size
+     */
+    void ack(int count);
+
+    /**
+     * Removes the first record equal to the specified one.
+     * @param record the record to be removed
+     * @return true if a matching record was removed
+     */
+    boolean remove(String record);
+
+    /**
+     * Returns the number of records in the queue.
+     */
+    int size();
+
+    /**
+     * Returns the number of bytes the queued records take in storage, framing included.
+     */
+    long bytes();
+
+    /**
+     * Returns the time in milliseconds the oldest record was appended, or an earlier time
+     * if the backend does not keep exact times, 0 if the queue is empty.
+     */
+    long oldestTimestamp();
+
+    /**
+     * Returns true if the queue holds no records.
+     */
+    boolean isEmpty();
+
+    /**
+     * Removes all records.
+     */
+    void clear();
+
+    /**
+     * Releases any resources held by this backend.
+     */
+    void close();
+}
@@ -0,0 +1,204 @@
+package com.mingbikes.acquisition;
+
+/**
+ * Bounded intern pool for event keys and segmentation names and values, so the events read
+ * back from the store and the buckets of the aggregator share one String per distinct value
+ * instead of allocating a copy per record.
+ *
+ * The table is split by hash into {@link #STRIPES} stripes with a lock each, like the buckets
+ * of {@link EventAggregator}, so threads recording or parsing events rarely wait for each
+ * other. Once a stripe is full its least recently used symbol is evicted by the clock
+ * algorithm, an approximation of LRU that costs a bit per lookup. Strings longer than
+ * {@link #MAX_LENGTH} are not interned, they are rarely repeated.
+ *
+ * Symbols have no integer ids. The interned String itself is the handle, compared by
+ * identity, and an id reused after eviction could not be kept in a record anyway.
+ * {@link CompactEventCodec} numbers the strings of each batch in its own dictionary.
+ */
+final class SymbolTable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_LENGTH = 64;
+    static final int STRIPES = 16;
+    private static final int STRIPE_SHIFT = 32 - 4;
+
+    private static final SymbolTable SHARED = new SymbolTable(DEFAULT_CAPACITY);
+
+    private final Stripe[] mStripes = new Stripe[STRIPES];
+
+    private static final class Symbol {
+        final String value;
+        final int hash;
+        Symbol next;
+        boolean referenced;
+
+        Symbol(final String value, final int hash) {
+            this.value = value;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Part of the table holding the symbols of some hashes, guarded by its own lock.
+     */
+    private static final class Stripe {
+        final Symbol[] buckets;
+        // symbols in the order the clock hand visits them
+        final Symbol[] slots;
+        int size;
+        int clockHand;
+
+        Stripe(final int capacity) {
+            slots = new Symbol[capacity];
+            buckets = new Symbol[Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2];
+        }
+
+        synchronized String intern(final String value, final int hash) {
+            for (Symbol symbol = buckets[indexOf(hash)]; symbol != null; symbol = symbol.next) {
+                if (symbol.hash == hash && symbol.value.equals(value)) {
+                    symbol.referenced = true;
+                    return symbol.value;
+                }
+            }
+            return add(value, hash);
+        }
+
+        synchronized String intern(final char[] chars, final int offset, final int length, final int hash) {
+            for (Symbol symbol = buckets[indexOf(hash)]; symbol != null; symbol = symbol.next) {
+                if (symbol.hash == hash && matches(symbol.value, chars, offset, length)) {
+                    symbol.referenced = true;
+                    return symbol.value;
+                }
+            }
+            return add(new String(chars, offset, length), hash);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private String add(final String value, final int hash) {
+            final int slot;
+            if (size < slots.length) {
+                slot = size++;
+            } else {
+                slot = evict();
+            }
+            final Symbol symbol = new Symbol(value, hash);
+            final int bucket = indexOf(hash);
+            symbol.next = buckets[bucket];
+            buckets[bucket] = symbol;
+            slots[slot] = symbol;
+            return value;
+        }
+
+        /**
+         * Removes the first symbol the clock hand finds unreferenced since its last pass.
+         * @return the slot that became free
+         */
+        private int evict() {
+            while (true) {
+                final int slot = clockHand;
+                final Symbol symbol = slots[slot];
+                clockHand = (clockHand + 1) % slots.length;
+                if (symbol.referenced) {
+                    symbol.referenced = false;
+                    continue;
+                }
+                final int bucket = indexOf(symbol.hash);
+                if (buckets[bucket] == symbol) {
+                    buckets[bucket] = symbol.next;
+                } else {
+                    Symbol previous = buckets[bucket];
+                    while (previous.next != symbol) {
+                        previous = previous.next;
+                    }
+                    previous.next = symbol.next;
+                }
+                slots[slot] = null;
+                return slot;
+            }
+        }
+
+        private int indexOf(final int hash) {
+            return spread(hash) & (buckets.length - 1);
+        }
+    }
+
+    /**
+     * @param capacity maximum number of symbols, spread evenly over the stripes
+     */
+    SymbolTable(final int capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe(Math.max(capacity / STRIPES, 1));
+        }
+    }
+
+    /**
+     * Returns the table shared by all readers and writers of events.
+     */
+    static SymbolTable shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the interned instance equal to the string.
+     * @param value string to intern, may be null
+     */
+    String intern(final String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        final int hash = value.hashCode();
+        return stripeOf(hash).intern(value, hash);
+    }
+
+    /**
+     * Returns the interned instance equal to the characters, creating a String only if the
+     * value is not in the table yet.
+     */
+    String intern(final char[] chars, final int offset, final int length) {
+        if (length > MAX_LENGTH) {
+            return new String(chars, offset, length);
+        }
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        return stripeOf(hash).intern(chars, offset, length, hash);
+    }
+
+    /**
+     * Returns the number of interned strings.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe stripeOf(final int hash) {
+        // Fibonacci hashing, the top bits of the product depend on all bits of the hash, while
+        // the buckets of a stripe use the low bits
+        return mStripes[(hash * 0x9E3779B9) >>> STRIPE_SHIFT];
+    }
+
+    private static int spread(final int hash) {
+        // String hashes of short strings differ mostly in their low bits, spread the high ones
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(final String value, final char[] chars, final int offset, final int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
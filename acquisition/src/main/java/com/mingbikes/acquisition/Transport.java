@@ -0,0 +1,145 @@
+package com.mingbikes.acquisition;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends upload request bodies to the server. Implementations must be safe to use from
+ * several upload threads at once.
+ */
+public interface Transport {
+
+    /**
+     * Sends one request and reads its complete response.
+     * @param request the request to send
+     * @return the server response
+     * @throws IOException if the request could not be sent or no response was received
+     */
+    Response send(Request request) throws IOException;
+
+    /**
+     * Releases pooled connections and other resources.
+     */
+    void close();
+
+    /**
+     * Upload request.
+     */
+    final class Request {
+
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final byte[] mBody;
+        private final String mContentType;
+        private final boolean mText;
+        private final boolean mCompress;
+        private Map<String, String> mHeaders = Collections.emptyMap();
+
+        /**
+         * @param body request body, sent as UTF-8
+         * @param contentType Content-Type header value without charset, null to leave it unset
+         * @param compress true to send the body gzip compressed
+         */
+        public Request(final String body, final String contentType, final boolean compress) {
+            this(body != null ? body.getBytes(UTF8) : null, contentType, true, compress);
+        }
+
+        /**
+         * @param body binary request body
+         * @param contentType Content-Type header value, null to leave it unset
+         * @param compress true to send the body gzip compressed
+         */
+        public Request(final byte[] body, final String contentType, final boolean compress) {
+            this(body, contentType, false, compress);
+        }
+
+        private Request(final byte[] body, final String contentType, final boolean text, final boolean compress) {
+            if (body == null) {
+                throw new IllegalArgumentException("body must not be null");
+            }
+            mBody = body;
+            mContentType = contentType;
+            mText = text;
+            mCompress = compress;
+        }
+
+        /**
+         * Returns the body bytes, must not be modified.
+         */
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns true if the body is UTF-8 text, which is declared as charset of the content type.
+         */
+        public boolean isText() {
+            return mText;
+        }
+
+        public String getContentType() {
+            return mContentType;
+        }
+
+        public boolean isCompressed() {
+            return mCompress;
+        }
+
+        /**
+         * Adds a request header, transports send it in addition to their own headers.
+         * @return the request
+         */
+        public Request addHeader(final String name, final String value) {
+            if (mHeaders.isEmpty()) {
+                mHeaders = new LinkedHashMap<>();
+            }
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * Returns the headers added to this request.
+         */
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+    }
+
+    /**
+     * Server response, the body has already been consumed.
+     */
+    final class Response {
+
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+
+        /**
+         * @param code HTTP status code
+         * @param headers response headers keyed by lower case name, may be null
+         */
+        public Response(final int code, final Map<String, String> headers) {
+            mCode = code;
+            mHeaders = headers != null ? headers : Collections.<String, String>emptyMap();
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * Returns the value of the response header, or null if it is not present.
+         * @param name header name, case insensitive
+         */
+        public String getHeader(final String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        public boolean isSuccessful() {
+            return mCode >= 200 && mCode < 300;
+        }
+    }
+}
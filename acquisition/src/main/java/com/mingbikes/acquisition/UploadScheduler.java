@@ -0,0 +1,129 @@
+package com.mingbikes.acquisition;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when queued records are uploaded, so the radio wakes up for fewer, larger requests.
+ *
+ * Crash reports and handled exceptions are uploaded right away. Other records wait until the
+ * oldest of them has been queued for the upload window or enough of them are queued, and a
+ * single timer fires when the window of the oldest record ends. On a metered network only the
+ * metered window applies, so a bulk backlog waits for an unmetered network unless it gets old.
+ * While the device is offline nothing is uploaded, the next connectivity change decides again.
+ */
+final class UploadScheduler {
+
+    static final long DEFAULT_WINDOW_MILLIS = 30 * 1000;
+    static final int DEFAULT_WINDOW_RECORDS = 50;
+    static final long DEFAULT_METERED_WINDOW_MILLIS = 15 * 60 * 1000;
+
+    private final ScheduledExecutorService mScheduler;
+    private final Runnable mFlush;
+
+    private long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+    private int mWindowRecords = DEFAULT_WINDOW_RECORDS;
+    private long mMeteredWindowMillis = DEFAULT_METERED_WINDOW_MILLIS;
+
+    private volatile DeviceSnapshot mSnapshot;
+    private ScheduledFuture<?> mPendingFlush;
+
+    /**
+     * @param scheduler executor the flush is scheduled on
+     * @param flush action that decides again and starts the upload
+     */
+    UploadScheduler(final ScheduledExecutorService scheduler, final Runnable flush) {
+        mScheduler = scheduler;
+        mFlush = flush;
+    }
+
+    /**
+     * Sets the upload windows, the next decision uses them.
+     */
+    synchronized void configure(final long windowMillis, final int windowRecords, final long meteredWindowMillis) {
+        mWindowMillis = windowMillis;
+        mWindowRecords = windowRecords;
+        mMeteredWindowMillis = meteredWindowMillis;
+    }
+
+    /**
+     * Follows the connectivity of the snapshot, deciding again after every change. Until then
+     * the device is taken to be online on an unmetered network.
+     */
+    void attach(final DeviceSnapshot snapshot) {
+        mSnapshot = snapshot;
+        snapshot.addNetworkListener(mFlush);
+    }
+
+    /**
+     * Stops following connectivity and cancels the pending flush.
+     */
+    synchronized void detach() {
+        final DeviceSnapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            snapshot.removeNetworkListener(mFlush);
+            mSnapshot = null;
+        }
+        cancel();
+    }
+
+    /**
+     * Returns true if the queued records should be uploaded now. Otherwise a flush is scheduled
+     * for the end of the window, or left to the next connectivity change while offline, so
+     * callers can simply give up.
+     * @param urgent true if crash reports or handled exceptions are queued
+     * @param records number of queued records
+     * @param oldestMillis time the oldest record was queued, 0 if unknown
+     */
+    synchronized boolean shouldUpload(final boolean urgent, final int records, final long oldestMillis) {
+        final DeviceSnapshot snapshot = mSnapshot;
+        if (snapshot != null && !snapshot.isOnline()) {
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.d(Acquisition.TAG, "Offline, deferring upload of " + records + " records");
+            }
+            cancel();
+            return false;
+        }
+        if (urgent) {
+            return true;
+        }
+        final boolean metered = snapshot != null && snapshot.isMetered();
+        if (!metered && records >= mWindowRecords) {
+            return true;
+        }
+        final long window = metered ? mMeteredWindowMillis : mWindowMillis;
+        final long delay = oldestMillis > 0 ? oldestMillis + window - System.currentTimeMillis() : 0;
+        if (delay <= 0) {
+            return true;
+        }
+        schedule(delay);
+        return false;
+    }
+
+    /**
+     * Cancels the pending flush.
+     */
+    synchronized void cancel() {
+        if (mPendingFlush != null) {
+            mPendingFlush.cancel(false);
+            mPendingFlush = null;
+        }
+    }
+
+    private void schedule(final long delayMillis) {
+        if (mPendingFlush != null && !mPendingFlush.isDone()) {
+            // a flush that is already due may be the one deciding now, it does not count
+            final long pendingMillis = mPendingFlush.getDelay(TimeUnit.MILLISECONDS);
+            if (pendingMillis > 0 && pendingMillis <= delayMillis) {
+                return;
+            }
+            if (pendingMillis > 0) {
+                mPendingFlush.cancel(false);
+            }
+        }
+        mPendingFlush = mScheduler.schedule(mFlush, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
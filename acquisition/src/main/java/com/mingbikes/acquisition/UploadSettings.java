@@ -0,0 +1,91 @@
+package com.mingbikes.acquisition;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import utils.HttpConnectionUtils;
+
+/**
+ * Upload tuning handed from the connection queue to each processor run.
+ */
+class UploadSettings {
+
+    static final int DEFAULT_MAX_BATCH_RECORDS = 1;
+    static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Maximum number of stored records per request, 1 disables batching.
+     */
+    int maxBatchRecords = DEFAULT_MAX_BATCH_RECORDS;
+
+    /**
+     * Maximum request body size, a single larger record is still sent alone.
+     */
+    int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    /**
+     * Layout of batched request bodies.
+     */
+    BatchFormat batchFormat = BatchFormat.JSON_ARRAY;
+
+    /**
+     * Minimum body length for gzip compression, or {@link HttpConnectionUtils#COMPRESSION_DISABLED}.
+     */
+    int compressionThreshold = HttpConnectionUtils.COMPRESSION_DISABLED;
+
+    /**
+     * Number of requests allowed in flight at the same time.
+     */
+    int inFlightWindow = 1;
+
+    /**
+     * Set once the server has refused {@link BatchFormat#COMPACT_BINARY}. Shared by all copies
+     * so later runs do not offer the format again.
+     */
+    AtomicBoolean compactRejected = new AtomicBoolean();
+
+    /**
+     * Device context registered once per session, null to send no context header.
+     */
+    SessionContext sessionContext;
+
+    /**
+     * Crash files of earlier processes, uploaded before the stored records. Null if crash
+     * reporting is not enabled. Volatile, the uncaught exception handler reads it unlocked.
+     */
+    volatile CrashReport crashReport;
+
+    /**
+     * Share of requests each {@link Lane} gets while several lanes hold records, by ordinal.
+     */
+    int[] laneWeights = defaultLaneWeights();
+
+    /**
+     * Metrics the processor records upload timings and outcomes in, null to record none.
+     * Shared by all copies.
+     */
+    AcquisitionMetrics metrics;
+
+    UploadSettings copy() {
+        final UploadSettings copy = new UploadSettings();
+        copy.maxBatchRecords = maxBatchRecords;
+        copy.maxBatchBytes = maxBatchBytes;
+        copy.batchFormat = batchFormat;
+        copy.compressionThreshold = compressionThreshold;
+        copy.inFlightWindow = inFlightWindow;
+        copy.compactRejected = compactRejected;
+        copy.sessionContext = sessionContext;
+        copy.crashReport = crashReport;
+        copy.laneWeights = laneWeights.clone();
+        copy.metrics = metrics;
+        return copy;
+    }
+
+    private static int[] defaultLaneWeights() {
+        final Lane[] lanes = Lane.values();
+        final int[] weights = new int[lanes.length];
+        for (Lane lane : lanes) {
+            weights[lane.ordinal()] = lane.getDefaultWeight();
+        }
+        return weights;
+    }
+}
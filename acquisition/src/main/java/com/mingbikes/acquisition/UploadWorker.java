@@ -0,0 +1,210 @@
+package com.mingbikes.acquisition;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs upload drains on a single long-lived thread that sleeps until it is signalled.
+ *
+ * Signals that arrive while a drain runs are coalesced into one more drain. The thread is
+ * started by the first signal and ends after it has been idle for the idle timeout, so an
+ * idle SDK holds no thread. Once stopped, signals are ignored until the worker is started.
+ */
+final class UploadWorker {
+
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private final Runnable mDrain;
+    private final String mName;
+
+    private int mPriority = Process.THREAD_PRIORITY_BACKGROUND;
+    private boolean mDaemon = true;
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    private Thread mThread;
+    private boolean mSignalled;
+    private boolean mDraining;
+    private boolean mStopped;
+    // drains started and finished, so a flush can wait for the drain that follows its signal
+    private long mStartedDrains;
+    private long mFinishedDrains;
+
+    /**
+     * @param name name of the worker thread
+     * @param drain one drain of the queue, run on the worker thread
+     */
+    UploadWorker(final String name, final Runnable drain) {
+        mName = name;
+        mDrain = drain;
+    }
+
+    /**
+     * Sets the thread settings, a running thread keeps its priority and daemon status.
+     * @param priority Android thread priority, see {@link Process#setThreadPriority(int)}
+     * @param daemon whether the thread keeps the JVM from exiting, only matters off Android
+     * @param idleTimeoutMillis time the thread waits for a signal before it ends
+     */
+    synchronized void configure(final int priority, final boolean daemon, final long idleTimeoutMillis) {
+        mPriority = priority;
+        mDaemon = daemon;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        notifyAll();
+    }
+
+    /**
+     * Returns a factory for other threads of the SDK with the same priority and daemon status.
+     */
+    ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final int priority;
+                final boolean daemon;
+                synchronized (UploadWorker.this) {
+                    priority = mPriority;
+                    daemon = mDaemon;
+                }
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, name);
+                thread.setDaemon(daemon);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Requests a drain, starting the thread if it is not running.
+     */
+    synchronized void signal() {
+        if (mStopped) {
+            return;
+        }
+        mSignalled = true;
+        if (mThread == null) {
+            final int priority = mPriority;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    loop();
+                }
+            }, mName);
+            mThread.setDaemon(mDaemon);
+            mThread.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns true while a drain runs.
+     */
+    synchronized boolean isDraining() {
+        return mDraining;
+    }
+
+    /**
+     * Requests a drain and waits until a drain started after the request has finished.
+     * @param timeoutMillis maximum time to wait
+     * @return true if the drain finished in time, false on timeout or if the worker is stopped
+     */
+    synchronized boolean flush(final long timeoutMillis) {
+        if (mStopped) {
+            return false;
+        }
+        final long drain = mStartedDrains + 1;
+        signal();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (mFinishedDrains < drain && !mStopped) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return mFinishedDrains >= drain;
+    }
+
+    /**
+     * Lets signals start drains again after {@link #stop}.
+     */
+    synchronized void start() {
+        mStopped = false;
+    }
+
+    /**
+     * Stops taking signals and waits for a running drain to finish, the thread then ends.
+     * @param timeoutMillis maximum time to wait
+     * @return true if no drain is running anymore
+     */
+    boolean stop(final long timeoutMillis) {
+        final Thread thread;
+        synchronized (this) {
+            mStopped = true;
+            mSignalled = false;
+            notifyAll();
+            thread = mThread;
+        }
+        if (thread == null || thread == Thread.currentThread()) {
+            return true;
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    final long idleSince = System.currentTimeMillis();
+                    while (!mSignalled && !mStopped) {
+                        final long remaining = idleSince + mIdleTimeoutMillis - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    // treated like the idle timeout
+                }
+                if (!mSignalled || mStopped) {
+                    mThread = null;
+                    notifyAll();
+                    return;
+                }
+                mSignalled = false;
+                mDraining = true;
+                mStartedDrains++;
+            }
+            try {
+                mDrain.run();
+            } catch (RuntimeException e) {
+                if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Acquisition.TAG, "Upload drain failed", e);
+                }
+            } finally {
+                synchronized (this) {
+                    mDraining = false;
+                    mFinishedDrains++;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
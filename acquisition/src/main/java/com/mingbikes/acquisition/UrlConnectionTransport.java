@@ -0,0 +1,121 @@
+package com.mingbikes.acquisition;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import utils.HttpConnectionUtils;
+
+/**
+ * Transport posting each request with {@link HttpURLConnection}, leaving connection reuse to
+ * the platform's own keep-alive pool.
+ */
+public class UrlConnectionTransport implements Transport {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final URL mUrl;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /**
+     * @param url full URL of the upload endpoint
+     * @throws MalformedURLException if the URL is not valid
+     */
+    public UrlConnectionTransport(final String url) throws MalformedURLException {
+        this(url, PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS, PooledHttpTransport.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param url full URL of the upload endpoint
+     * @param connectTimeoutMillis timeout for establishing a connection
+     * @param readTimeoutMillis timeout for reading the response
+     * @throws MalformedURLException if the URL is not valid
+     */
+    public UrlConnectionTransport(final String url, final int connectTimeoutMillis, final int readTimeoutMillis)
+            throws MalformedURLException {
+        mUrl = new URL(url);
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+
+        // HTTP connection reuse which was buggy pre-froyo
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    @Override
+    public Response send(final Request request) throws IOException {
+        final URLConnection conn = mUrl.openConnection();
+        if (!(conn instanceof HttpURLConnection)) {
+            throw new IOException("not an HTTP URL: " + mUrl);
+        }
+        final HttpURLConnection http = (HttpURLConnection) conn;
+        try {
+            http.setConnectTimeout(mConnectTimeoutMillis);
+            http.setReadTimeout(mReadTimeoutMillis);
+            http.setUseCaches(false);
+            http.setDoInput(true);
+            http.setDoOutput(true);
+            http.setRequestMethod("POST");
+            if (request.getContentType() != null) {
+                http.setRequestProperty("Content-Type", request.getContentType()
+                        + (request.isText() ? "; charset=utf-8" : ""));
+            }
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                http.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (request.isCompressed()) {
+                http.setRequestProperty("Content-Encoding", "gzip");
+                http.setChunkedStreamingMode(0);
+            }
+            HttpConnectionUtils.writeEventData(http.getOutputStream(), request.getBody(), request.isCompressed());
+
+            final int code = http.getResponseCode();
+            final Map<String, String> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : http.getHeaderFields().entrySet()) {
+                if (header.getKey() != null && !header.getValue().isEmpty()) {
+                    headers.put(header.getKey().toLowerCase(Locale.US), header.getValue().get(0));
+                }
+            }
+            drain(http, code);
+            return new Response(code, headers);
+        } catch (IOException e) {
+            // the connection state is unknown, do not hand it back to the pool
+            http.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the response body to the end so the platform can reuse the connection.
+     */
+    private static void drain(final HttpURLConnection http, final int code) throws IOException {
+        final InputStream in = code >= 400 ? http.getErrorStream() : http.getInputStream();
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        // connections belong to the platform pool
+    }
+}
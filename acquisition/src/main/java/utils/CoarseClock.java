@@ -0,0 +1,65 @@
+package utils;
+
+import android.os.SystemClock;
+
+/**
+ * Wall clock in milliseconds for hot paths, the time since boot from
+ * {@link SystemClock#elapsedRealtime} plus an offset to the wall clock. Reading it costs no
+ * thread and no wall clock lookup; the first read after {@link #SYNC_MILLIS} since the last
+ * one reads the wall clock again and moves the offset, so adjustments of the wall clock are
+ * followed within that time. Deep sleep is counted like the wall clock counts it.
+ *
+ * The time does not go backwards when the wall clock is adjusted back by less than
+ * {@link #STEP_MILLIS}, it keeps advancing from the last time returned until the wall clock
+ * is past it. A larger step back is a correction of the wall clock and is followed right away,
+ * so the time never runs ahead of the wall clock for long.
+ */
+public final class CoarseClock {
+
+    /**
+     * Longest time a read goes without checking the offset against the wall clock.
+     */
+    public static final long SYNC_MILLIS = 1000;
+    /**
+     * Smallest step back of the wall clock that is followed rather than held.
+     */
+    public static final long STEP_MILLIS = 1000;
+
+    private static final Object LOCK = new Object();
+    // wall clock time minus the time since boot
+    private static volatile long sOffset;
+    // time since boot the offset was last checked at
+    private static volatile long sSynced = Long.MIN_VALUE / 2;
+
+    private CoarseClock() {}
+
+    /**
+     * Returns the current time in milliseconds, following changes of the system time within
+     * {@link #SYNC_MILLIS}.
+     */
+    public static long millis() {
+        final long elapsed = SystemClock.elapsedRealtime();
+        if (elapsed - sSynced >= SYNC_MILLIS) {
+            return sync(elapsed);
+        }
+        return sOffset + elapsed;
+    }
+
+    private static long sync(final long elapsed) {
+        synchronized (LOCK) {
+            if (elapsed - sSynced >= SYNC_MILLIS) {
+                final long now = next(sOffset + elapsed, System.currentTimeMillis());
+                sOffset = now - elapsed;
+                sSynced = elapsed;
+            }
+            return sOffset + elapsed;
+        }
+    }
+
+    /**
+     * Returns the time after now given the wall clock time.
+     */
+    private static long next(final long now, final long wall) {
+        return wall >= now || wall <= now - STEP_MILLIS ? wall : now;
+    }
+}
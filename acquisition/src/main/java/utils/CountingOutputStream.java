@@ -0,0 +1,36 @@
+package utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * output stream counting the bytes written through it
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private long mCount;
+
+    public CountingOutputStream(final OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        mCount++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        mCount += len;
+    }
+
+    /**
+     * return the number of bytes written so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+}
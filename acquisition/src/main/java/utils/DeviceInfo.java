@@ -10,6 +10,7 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.media.AudioManager;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Environment;
@@ -166,7 +167,7 @@ public class DeviceInfo {
     /**
      * Returns the current device manufacturer.
      */
-    static String getManufacturer() {
+    public static String getManufacturer() {
         return android.os.Build.MANUFACTURER;
     }
 
@@ -304,15 +305,7 @@ public class DeviceInfo {
     public static String getBatteryLevel(Context context) {
         try {
             Intent batteryIntent = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-            if(batteryIntent != null) {
-                int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-                int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
-
-                // Error checking that probably isn't needed but I added just in case.
-                if (level > -1 && scale > 0) {
-                    return Float.toString(((float) level / (float) scale) * 100.0f);
-                }
-            }
+            return getBatteryLevel(batteryIntent);
         }
         catch(Exception e){
             if (Acquisition.sharedInstance().isLoggingEnabled()) {
@@ -323,6 +316,22 @@ public class DeviceInfo {
         return null;
     }
 
+    /**
+     * return the battery level held in an ACTION_BATTERY_CHANGED intent, null if it has none.
+     */
+    public static String getBatteryLevel(Intent batteryIntent) {
+        if(batteryIntent != null) {
+            int level = batteryIntent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryIntent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+            // Error checking that probably isn't needed but I added just in case.
+            if (level > -1 && scale > 0) {
+                return Float.toString(((float) level / (float) scale) * 100.0f);
+            }
+        }
+        return null;
+    }
+
     /**
      * get app's running time before crashing.
      */
@@ -384,6 +393,38 @@ public class DeviceInfo {
         return null;
     }
 
+    /**
+     * check if the active network is metered, such as mobile data.
+     */
+    public static String isMetered(Context context) {
+        try {
+            ConnectivityManager conMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (conMgr == null) {
+                return null;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return conMgr.isActiveNetworkMetered() ? "true" : "false";
+            }
+            NetworkInfo info = conMgr.getActiveNetworkInfo();
+            if (info == null) {
+                return null;
+            }
+            switch (info.getType()) {
+                case ConnectivityManager.TYPE_WIFI:
+                case ConnectivityManager.TYPE_ETHERNET:
+                    return "false";
+                default:
+                    return "true";
+            }
+        }
+        catch(Exception e){
+            if (Acquisition.sharedInstance().isLoggingEnabled()) {
+                Log.w(Acquisition.TAG, "Got exception determining network metering", e);
+            }
+        }
+        return null;
+    }
+
     /**
      * check if device is muted.
      */
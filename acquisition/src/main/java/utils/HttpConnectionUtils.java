@@ -4,23 +4,53 @@ import android.util.Log;
 
 import com.mingbikes.acquisition.Acquisition;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * http connection utils
  */
 public class HttpConnectionUtils {
 
+    /**
+     * compression threshold value that disables request compression
+     */
+    public static final int COMPRESSION_DISABLED = -1;
+
     private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
     private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    private static final AtomicLong sUncompressedBytes = new AtomicLong();
+    private static final AtomicLong sCompressedBytes = new AtomicLong();
 
     public static URLConnection urlConnectionForEventData(String serverURL, final String eventData) throws IOException {
+        return urlConnectionForEventData(serverURL, eventData, null);
+    }
+
+    /**
+     * Opens a connection and posts the event data with the specified content type.
+     * @param contentType Content-Type header value, null to leave it unset
+     */
+    public static URLConnection urlConnectionForEventData(String serverURL, final String eventData,
+                                                          final String contentType) throws IOException {
+        return urlConnectionForEventData(serverURL, eventData, contentType, COMPRESSION_DISABLED);
+    }
+
+    /**
+     * Opens a connection and posts the event data, gzip compressed if it is large enough.
+     * @param contentType Content-Type header value, null to leave it unset
+     * @param compressionThreshold minimum body length in characters for gzip compression,
+     *                             or {@link #COMPRESSION_DISABLED}
+     */
+    public static URLConnection urlConnectionForEventData(String serverURL, final String eventData,
+                                                          final String contentType,
+                                                          final int compressionThreshold) throws IOException {
         String urlStr = serverURL + "/developer_server/log";
         final URL url = new URL(urlStr);
         HttpURLConnection conn = (HttpURLConnection)url.openConnection();
@@ -35,13 +65,70 @@ public class HttpConnectionUtils {
 
         conn.setDoOutput(true);
         conn.setRequestMethod("POST");
-        OutputStream os = conn.getOutputStream();
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-        writer.write(eventData);
-        writer.flush();
-        writer.close();
-        os.close();
+        if (contentType != null) {
+            conn.setRequestProperty("Content-Type", contentType + "; charset=utf-8");
+        }
+
+        final boolean compress = compressionThreshold >= 0 && eventData.length() >= compressionThreshold;
+        if (compress) {
+            // compressed length is unknown up front, stream it instead of buffering the body
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            conn.setChunkedStreamingMode(0);
+        }
+
+        writeEventData(conn.getOutputStream(), eventData, compress);
 
         return conn;
     }
+
+    /**
+     * Writes the event data as UTF-8, gzip compressed if requested, and closes the stream.
+     * Compressed bodies are added to the compression totals.
+     */
+    public static void writeEventData(final OutputStream os, final String eventData, final boolean compress)
+            throws IOException {
+        writeEventData(os, eventData.getBytes("UTF-8"), compress);
+    }
+
+    /**
+     * Writes the body, gzip compressed if requested, and closes the stream.
+     * Compressed bodies are added to the compression totals.
+     */
+    public static void writeEventData(final OutputStream os, final byte[] body, final boolean compress)
+            throws IOException {
+        if (compress) {
+            final CountingOutputStream compressed = new CountingOutputStream(os);
+            final GZIPOutputStream gzip = new GZIPOutputStream(compressed, GZIP_BUFFER_SIZE);
+            gzip.write(body);
+            gzip.close();
+            recordCompression(body.length, compressed.getCount());
+        } else {
+            os.write(body);
+            os.close();
+        }
+    }
+
+    /**
+     * add a compressed request body to the compression totals
+     * @param uncompressedBytes body size before compression
+     * @param compressedBytes body size as sent
+     */
+    public static void recordCompression(final long uncompressedBytes, final long compressedBytes) {
+        sUncompressedBytes.addAndGet(uncompressedBytes);
+        sCompressedBytes.addAndGet(compressedBytes);
+    }
+
+    /**
+     * return the total size of compressed request bodies before compression
+     */
+    public static long getUncompressedBytes() {
+        return sUncompressedBytes.get();
+    }
+
+    /**
+     * return the total size of compressed request bodies as sent
+     */
+    public static long getCompressedBytes() {
+        return sCompressedBytes.get();
+    }
 }
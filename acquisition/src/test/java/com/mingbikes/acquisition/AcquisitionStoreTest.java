@@ -0,0 +1,131 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link AcquisitionStore}, backed by in-memory preferences and journals in a
+ * temporary directory.
+ */
+public class AcquisitionStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private AcquisitionStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new AcquisitionStore(new TestContext(folder.getRoot()));
+    }
+
+    @Test
+    public void storedEventsAreStamped() throws Exception {
+        store.addEvent("click");
+        store.addEvent("click", Collections.singletonMap("screen", "home"));
+
+        final List<Event> events = store.eventsList();
+        assertEquals(2, events.size());
+        for (Event event : events) {
+            // SystemClock returns 0 in unit tests, so the clock does not advance there
+            assertTrue(event.timestamp > 0);
+            assertTrue(event.seq > 0);
+        }
+        assertTrue(events.get(0).seq < events.get(1).seq);
+    }
+
+    @Test
+    public void removesOneOfTwoSameKeyEvents() throws Exception {
+        store.addEvent("click");
+        store.addEvent("click");
+
+        final List<Event> events = store.eventsList();
+        assertEquals(2, events.size());
+        assertNotEquals(events.get(0), events.get(1));
+
+        store.removeEvents(Collections.singletonList(events.get(0)));
+        final List<Event> left = store.eventsList();
+        assertEquals(1, left.size());
+        assertEquals(events.get(1), left.get(0));
+    }
+
+    @Test
+    public void ackAfterMiddleRemovalRemovesSentRecords() throws Exception {
+        // only the preferences backend removes records other than the oldest
+        store = preferencesStore();
+        addConnections("a", "b", "c", "d");
+        final List<String> sent = new ArrayList<>();
+        final AcquisitionStore.Position position = store.peekConnections(Lane.EVENTS, 3, sent);
+
+        store.removeConnection("b");
+        store.ackConnections(Lane.EVENTS, position, sent);
+        assertEquals(Collections.singletonList("d"), store.peekConnections(Lane.EVENTS, 10));
+    }
+
+    @Test
+    public void ackLeavesRecordsQueuedSincePeek() throws Exception {
+        store = preferencesStore();
+        addConnections("a", "b", "c");
+        final List<String> sent = new ArrayList<>();
+        final AcquisitionStore.Position position = store.peekConnections(Lane.EVENTS, 2, sent);
+
+        // the oldest record was evicted and one was removed from the middle while uploading
+        store.ackConnections(Lane.EVENTS, 1);
+        store.addConnection("e");
+        store.removeConnection("c");
+        store.ackConnections(Lane.EVENTS, position, sent);
+        assertEquals(Collections.singletonList("e"), store.peekConnections(Lane.EVENTS, 10));
+
+        addConnections("f", "g");
+        sent.clear();
+        final AcquisitionStore.Position next = store.peekConnections(Lane.EVENTS, 2, sent);
+        store.ackConnections(Lane.EVENTS, 1);
+        store.ackConnections(Lane.EVENTS, next, sent);
+        assertEquals(Collections.singletonList("g"), store.peekConnections(Lane.EVENTS, 10));
+    }
+
+    @Test
+    public void oldestFirstNeverEvictsMoreImportantLanes() throws Exception {
+        store.addConnection(Lane.CRASH, "crash-0000");
+        store.setByteBudget(store.bytes(), 1024, EvictionPolicy.OLDEST_FIRST);
+        for (int i = 0; i < 10; i++) {
+            store.addConnection("event-000" + i);
+        }
+        assertEquals(Collections.singletonList("crash-0000"), store.peekConnections(Lane.CRASH, 10));
+        assertTrue(store.peekConnections(Lane.EVENTS, 10).isEmpty());
+        assertEquals(10, store.getEvictedRecordCount());
+    }
+
+    @Test
+    public void oldestFirstEvictsOldestRecordAcrossLanes() throws Exception {
+        store.addConnection("event-0000");
+        Thread.sleep(20);
+        store.addConnection(Lane.NON_FATAL, "error-0000");
+        store.setByteBudget(store.bytes(), 1024, EvictionPolicy.OLDEST_FIRST);
+
+        store.addConnection(Lane.NON_FATAL, "error-0001");
+        assertTrue(store.peekConnections(Lane.EVENTS, 10).isEmpty());
+        assertEquals(Arrays.asList("error-0000", "error-0001"), store.peekConnections(Lane.NON_FATAL, 10));
+    }
+
+    private AcquisitionStore preferencesStore() {
+        final TestContext context = new TestContext(folder.getRoot());
+        return new AcquisitionStore(context, new PreferencesStoreBackend(
+                context.getSharedPreferences("connections", 0)));
+    }
+
+    private void addConnections(final String... records) {
+        for (String record : Arrays.asList(records)) {
+            store.addConnection(record);
+        }
+    }
+}
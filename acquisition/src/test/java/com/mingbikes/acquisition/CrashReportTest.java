@@ -0,0 +1,55 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the crash file written by {@link CrashReport}.
+ */
+public class CrashReportTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void constructorDoesNoFileWork() throws Exception {
+        final CrashReport report = new CrashReport(folder.getRoot());
+        assertFalse(new File(folder.getRoot(), CrashReport.FILE_NAME).exists());
+        assertFalse(report.writeFatal(new IllegalStateException("too early")));
+    }
+
+    @Test
+    public void openAllocatesCrashFile() throws Exception {
+        final CrashReport report = new CrashReport(folder.getRoot());
+        report.open();
+        final File file = new File(folder.getRoot(), CrashReport.FILE_NAME);
+        assertEquals(CrashReport.FILE_SIZE, file.length());
+        assertNull(CrashReport.readRecord(file));
+        assertFalse(report.hasPending());
+    }
+
+    @Test
+    public void fatalCrashIsPendingInNextProcess() throws Exception {
+        final CrashReport report = new CrashReport(folder.getRoot());
+        report.open();
+        assertTrue(report.writeFatal(new IllegalStateException("boom \"quoted\"")));
+
+        final String record = CrashReport.readRecord(new File(folder.getRoot(), CrashReport.FILE_NAME));
+        assertNotNull(record);
+        assertTrue(record.contains("\"_nonfatal\":false"));
+        assertTrue(record.contains("java.lang.IllegalStateException: boom \\\"quoted\\\""));
+
+        final CrashReport next = new CrashReport(folder.getRoot());
+        next.open();
+        assertTrue(next.hasPending());
+        final File[] pending = next.pendingFiles();
+        assertEquals(1, pending.length);
+        assertEquals(record, CrashReport.readRecord(pending[0]));
+        assertNull(CrashReport.readRecord(new File(folder.getRoot(), CrashReport.FILE_NAME)));
+    }
+}
@@ -0,0 +1,140 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link EventJsonReader}, reading back what {@link EventJsonWriter} wrote.
+ */
+public class EventJsonReaderTest {
+
+    private final EventJsonReader reader = new EventJsonReader();
+
+    @Test
+    public void readsWrittenEvent() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put("screen", "home");
+        map.put("quote \" slash / tab\t", "unicode é \u0001");
+
+        final Event event = event("click \"now\"");
+        event.count = 7;
+        event.sum = -2.5;
+        event.segmentation = map;
+
+        assertSameEvent(event, read(write(event)));
+    }
+
+    @Test
+    public void readsTimedEvent() throws Exception {
+        final Event event = event("timed");
+        event.sum = 350.5;
+        event.min = 100;
+        event.max = 250.5;
+        event.start = 1500000000000L;
+
+        final Event read = read(write(event));
+        assertSameEvent(event, read);
+        assertTrue(read.isTimed());
+    }
+
+    @Test
+    public void readsEventInsideString() throws Exception {
+        final Event event = event("click");
+        final String json = write(event);
+        final String padded = "xx" + json + "yy";
+
+        assertSameEvent(event, reader.read(padded, 2, 2 + json.length()));
+    }
+
+    @Test
+    public void readsArray() throws Exception {
+        final Event first = event("first");
+        final Event second = event("second");
+        second.seq = 43;
+        second.segmentation = Segmentation.EMPTY;
+        final String json = "[" + write(first) + "," + write(second) + "]";
+
+        final List<Event> events = reader.readArray(json);
+        assertEquals(2, events.size());
+        assertSameEvent(first, events.get(0));
+        assertSameEvent(second, events.get(1));
+        assertTrue(reader.readArray(" [ ] ").isEmpty());
+    }
+
+    @Test
+    public void rejectsEventsWithoutKey() throws Exception {
+        assertNull(read("{\"count\":1}"));
+        assertNull(read("{\"key\":\"\",\"count\":1}"));
+        assertNull(read("{\"key\":null,\"count\":1}"));
+        assertNull(reader.readArray("[{\"key\":\"a\"},{\"count\":1}]"));
+    }
+
+    @Test
+    public void rejectsMalformedJson() throws Exception {
+        assertNull(read(""));
+        assertNull(read("{\"key\":\"a\""));
+        assertNull(read("{\"key\" \"a\"}"));
+        assertNull(reader.readArray("[{\"key\":\"a\"}"));
+        assertNull(reader.readArray("[{\"key\":\"a\"}] trailing"));
+    }
+
+    @Test
+    public void appliesOrgJsonCoercions() throws Exception {
+        final Event event = read("{\"key\":\"a\",\"count\":\"3\",\"sum\":\"1.5\",\"unknown\":[1,{\"x\":2}],"
+                + "\"segmentation\":{\"number\":5,\"flag\":true,\"missing\":null}}");
+        assertEquals(3, event.count);
+        assertEquals(1.5, event.sum, 0);
+        final Map<String, String> segmentation = new HashMap<>();
+        segmentation.put("number", "5");
+        segmentation.put("flag", "true");
+        assertEquals(segmentation, event.segmentation);
+    }
+
+    @Test
+    public void convertsTimestampsInSeconds() throws Exception {
+        assertEquals(1500000000000L, read("{\"key\":\"a\",\"timestamp\":1500000000}").timestamp);
+        assertEquals(1500000000123L, read("{\"key\":\"a\",\"timestamp\":1500000000123}").timestamp);
+    }
+
+    @Test
+    public void internsKeysAndSegmentation() throws Exception {
+        final String json = "{\"key\":\"interned\",\"segmentation\":{\"name\":\"value\"}}";
+        final Event first = read(json);
+        final Event second = read(json);
+        assertSame(first.key, second.key);
+        assertSame(((Segmentation) first.segmentation).nameAt(0), ((Segmentation) second.segmentation).nameAt(0));
+        assertSame(((Segmentation) first.segmentation).valueAt(0), ((Segmentation) second.segmentation).valueAt(0));
+    }
+
+    private Event read(final String json) {
+        return reader.read(json, 0, json.length());
+    }
+
+    private static Event event(final String key) {
+        final Event event = new Event();
+        event.key = key;
+        event.count = 1;
+        event.timestamp = 1500000000123L;
+        event.seq = 42;
+        return event;
+    }
+
+    private static String write(final Event event) {
+        return EventJsonWriter.write(event, new StringBuilder()).toString();
+    }
+
+    private static void assertSameEvent(final Event expected, final Event actual) {
+        assertNotNull(actual);
+        assertEquals(expected, actual);
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.sum, actual.sum, 0);
+        assertEquals(expected.min, actual.min, 0);
+        assertEquals(expected.max, actual.max, 0);
+        assertEquals(expected.start, actual.start);
+    }
+}
@@ -0,0 +1,133 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link EventJsonWriter} writes exactly what {@code Event.toJSON().toString()}
+ * does with the org.json of Android.
+ */
+public class EventJsonWriterTest {
+
+    @Test
+    public void writesPlainEvent() throws Exception {
+        final Event event = event("click");
+        event.count = 3;
+        event.sum = 12;
+        assertSameAsToJSON(event);
+    }
+
+    @Test
+    public void leavesOutMissingKey() throws Exception {
+        final Event event = event(null);
+        assertSameAsToJSON(event);
+        assertFalse(write(event).contains("\"key\":"));
+    }
+
+    @Test
+    public void writesSegmentation() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put("screen", "home");
+        map.put("button", "start");
+        map.put("empty", "");
+        map.put("missing", null);
+
+        final Event event = event("click");
+        event.segmentation = map;
+        assertSameAsToJSON(event);
+
+        event.segmentation = Segmentation.of(map, SymbolTable.shared());
+        assertSameAsToJSON(event);
+
+        event.segmentation = Segmentation.EMPTY;
+        assertSameAsToJSON(event);
+    }
+
+    @Test
+    public void escapesStrings() throws Exception {
+        final String[] values = {
+                "quote \" backslash \\ slash /",
+                "tab\t newline\n return\r backspace\b feed\f",
+                "controls \u0000 \u0001 \u001f and \u007f",
+                "unicode é 中 😀",
+                "</script>"
+        };
+        for (String value : values) {
+            final Map<String, String> map = new HashMap<>();
+            map.put(value, value);
+            final Event event = event(value);
+            event.segmentation = map;
+            assertSameAsToJSON(event);
+        }
+    }
+
+    @Test
+    public void formatsNumbers() throws Exception {
+        final double[] sums = {
+                0, -0.0d, 1, -1, 2.5, -2.5, 0.1, 1e-7, 123456789.125, 1e15, 1e20, -1e300,
+                Long.MAX_VALUE, Double.MIN_VALUE, Double.MAX_VALUE
+        };
+        for (double sum : sums) {
+            final Event event = event("sum");
+            event.sum = sum;
+            assertSameAsToJSON(event);
+        }
+
+        final Event event = event("count");
+        event.count = Integer.MIN_VALUE;
+        event.timestamp = Long.MAX_VALUE;
+        event.seq = Long.MIN_VALUE;
+        assertSameAsToJSON(event);
+    }
+
+    @Test
+    public void leavesOutNonFiniteSum() throws Exception {
+        final double[] sums = {Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (double sum : sums) {
+            final Event event = event("sum");
+            event.sum = sum;
+            assertSameAsToJSON(event);
+            assertFalse(write(event).contains("\"sum\":"));
+        }
+    }
+
+    @Test
+    public void writesTimedEvent() throws Exception {
+        final Event event = event("timed");
+        event.count = 2;
+        event.sum = 350.5;
+        event.min = 100;
+        event.max = 250.5;
+        event.start = 1500000000123L;
+        assertSameAsToJSON(event);
+    }
+
+    @Test
+    public void appendsToBuilder() throws Exception {
+        final Event event = event("click");
+        final StringBuilder out = new StringBuilder("[");
+        assertSame(out, EventJsonWriter.write(event, out));
+        assertEquals("[" + event.toJSON().toString(), out.toString());
+    }
+
+    private static Event event(final String key) {
+        final Event event = new Event();
+        event.key = key;
+        event.count = 1;
+        event.timestamp = 1500000000123L;
+        event.seq = 42;
+        return event;
+    }
+
+    private static String write(final Event event) {
+        return EventJsonWriter.write(event, new StringBuilder()).toString();
+    }
+
+    private static void assertSameAsToJSON(final Event event) {
+        assertEquals(event.toJSON().toString(), write(event));
+    }
+}
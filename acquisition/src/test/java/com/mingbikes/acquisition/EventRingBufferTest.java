@@ -0,0 +1,215 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link EventRingBuffer}.
+ */
+public class EventRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(3, OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(event(i)));
+        }
+        assertFalse(buffer.offer(event(4)));
+        assertEquals(4, buffer.size());
+    }
+
+    @Test
+    public void keepsAtLeastTwoSlots() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(1, OverflowPolicy.DROP_NEWEST, 0);
+        assertTrue(buffer.offer(event(0)));
+        assertTrue(buffer.offer(event(1)));
+        assertFalse(buffer.offer(event(2)));
+        assertEquals(seqs(0, 1), drain(buffer));
+    }
+
+    @Test
+    public void wrapsAround() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(4, OverflowPolicy.DROP_NEWEST, 0);
+        long next = 0;
+        long expected = 0;
+        assertTrue(buffer.offer(event(next++)));
+        // the slots are reused many times over, with the head and tail in every position
+        for (int round = 0; round < 100; round++) {
+            final int count = round % 3 + 1;
+            for (int i = 0; i < count; i++) {
+                assertTrue(buffer.offer(event(next++)));
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected++, buffer.poll().seq);
+            }
+        }
+        assertEquals(expected, buffer.poll().seq);
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestEvents() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(4, OverflowPolicy.DROP_OLDEST, 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.publish(event(i)));
+        }
+        assertEquals(6, buffer.getDroppedCount());
+        assertEquals(seqs(6, 7, 8, 9), drain(buffer));
+    }
+
+    @Test
+    public void dropNewestKeepsOldestEvents() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(4, OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, buffer.publish(event(i)));
+        }
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(seqs(0, 1, 2, 3), drain(buffer));
+    }
+
+    @Test
+    public void blockDropsAfterTimeout() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(2, OverflowPolicy.BLOCK, 10);
+        assertTrue(buffer.publish(event(0)));
+        assertTrue(buffer.publish(event(1)));
+        assertFalse(buffer.publish(event(2)));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(seqs(0, 1), drain(buffer));
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(2, OverflowPolicy.BLOCK, TimeUnit.SECONDS.toMillis(10));
+        assertTrue(buffer.publish(event(0)));
+        assertTrue(buffer.publish(event(1)));
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.awaitEvents(-1);
+                buffer.poll();
+            }
+        });
+        consumer.start();
+
+        assertTrue(buffer.publish(event(2)));
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(seqs(1, 2), drain(buffer));
+    }
+
+    @Test
+    public void drainToMovesAtMostMaxEvents() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(8, OverflowPolicy.DROP_NEWEST, 0);
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(event(i));
+        }
+        final List<Event> events = new ArrayList<>();
+        assertEquals(3, buffer.drainTo(events, 3));
+        assertEquals(2, buffer.drainTo(events, 3));
+        assertEquals(0, buffer.drainTo(events, 3));
+        assertEquals(5, events.size());
+        assertEquals(4, events.get(4).seq);
+    }
+
+    @Test
+    public void awaitEventsReturnsOnPublish() throws Exception {
+        final EventRingBuffer buffer = new EventRingBuffer(4, OverflowPolicy.DROP_NEWEST, 0);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                waiting.countDown();
+                while (buffer.isEmpty()) {
+                    buffer.awaitEvents(-1);
+                }
+            }
+        });
+        consumer.start();
+        waiting.await();
+
+        buffer.publish(event(0));
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(consumer.isAlive());
+    }
+
+    @Test
+    public void concurrentProducersLoseNoEvents() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final EventRingBuffer buffer = new EventRingBuffer(64, OverflowPolicy.BLOCK, TimeUnit.SECONDS.toMillis(10));
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        buffer.publish(event((long) producer * perProducer + i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        final boolean[] seen = new boolean[producers * perProducer];
+        final long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        final List<Event> batch = new ArrayList<>();
+        int received = 0;
+        while (received < seen.length) {
+            if (buffer.drainTo(batch, 16) == 0) {
+                buffer.awaitEvents(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            for (Event event : batch) {
+                final int seq = (int) event.seq;
+                assertFalse(seen[seq]);
+                seen[seq] = true;
+                // each producer's events come out in the order it published them
+                final int producer = seq / perProducer;
+                assertTrue(seq > last[producer]);
+                last[producer] = seq;
+                received++;
+            }
+            batch.clear();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    private static Event event(final long seq) {
+        final Event event = new Event();
+        event.key = "event";
+        event.seq = seq;
+        return event;
+    }
+
+    private static List<Long> seqs(final long... seqs) {
+        final List<Long> list = new ArrayList<>();
+        for (long seq : seqs) {
+            list.add(seq);
+        }
+        return list;
+    }
+
+    private static List<Long> drain(final EventRingBuffer buffer) {
+        final List<Long> seqs = new ArrayList<>();
+        Event event;
+        while ((event = buffer.poll()) != null) {
+            seqs.add(event.seq);
+        }
+        return seqs;
+    }
+}
@@ -0,0 +1,241 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link JournalStoreBackend}, run against a temporary directory.
+ */
+public class JournalStoreBackendTest {
+
+    // each record of this size gets a segment of its own
+    private static final int SMALL_SEGMENT_SIZE = 16;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void peekReturnsRecordsInAppendOrder() throws Exception {
+        final JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        assertTrue(journal.append("a"));
+        assertTrue(journal.append("b"));
+        assertTrue(journal.append("c"));
+
+        assertEquals(3, journal.size());
+        assertEquals(Arrays.asList("a", "b"), journal.peek(2));
+        assertEquals(Arrays.asList("a", "b", "c"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void reopenKeepsRecords() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("first");
+        journal.append("second");
+        final long bytes = journal.bytes();
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(2, journal.size());
+        assertEquals(bytes, journal.bytes());
+        assertEquals(Arrays.asList("first", "second"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void reopenDropsTornWrite() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("a");
+        journal.append("b");
+        journal.close();
+
+        // a record header promising more bytes than the interrupted append wrote
+        final RandomAccessFile file = new RandomAccessFile(segments()[0], "rw");
+        final long validLength = file.length();
+        file.seek(validLength);
+        file.writeInt(100);
+        file.writeInt(0);
+        file.write(new byte[] {'x', 'y', 'z'});
+        file.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(2, journal.size());
+        assertEquals(Arrays.asList("a", "b"), journal.peek(10));
+        assertEquals(validLength, segments()[0].length());
+
+        // the next append goes where the torn record was
+        journal.append("c");
+        journal.close();
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(Arrays.asList("a", "b", "c"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void reopenDropsRecordWithBadCrc() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("a");
+        journal.append("b");
+        journal.close();
+
+        // flip the payload byte of the last record, its header is intact
+        final RandomAccessFile file = new RandomAccessFile(segments()[0], "rw");
+        file.seek(file.length() - 1);
+        file.write('x');
+        file.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(1, journal.size());
+        assertEquals(Arrays.asList("a"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void reopenResumesAtCursor() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("a");
+        journal.append("b");
+        journal.append("c");
+        journal.ack(1);
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(2, journal.size());
+        assertEquals(Arrays.asList("b", "c"), journal.peek(10));
+        journal.ack(1);
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(Arrays.asList("c"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void reopenIgnoresCorruptCursor() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("a");
+        journal.append("b");
+        journal.ack(1);
+        journal.close();
+
+        final RandomAccessFile cursor = new RandomAccessFile(new File(folder.getRoot(), "cursor"), "rw");
+        cursor.seek(8);
+        cursor.writeLong(12345);
+        cursor.close();
+
+        // without a valid cursor the head segment is read from its start
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(Arrays.asList("a", "b"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void ackSpansSegments() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot(), SMALL_SEGMENT_SIZE);
+        for (String record : new String[] {"a", "b", "c", "d", "e"}) {
+            journal.append(record);
+        }
+        assertEquals(5, segments().length);
+
+        journal.ack(3);
+        assertEquals(2, journal.size());
+        assertEquals(Arrays.asList("d", "e"), journal.peek(10));
+        assertEquals(2, segments().length);
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot(), SMALL_SEGMENT_SIZE);
+        assertEquals(2, journal.size());
+        assertEquals(Arrays.asList("d", "e"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void ackIsClampedToSize() throws Exception {
+        final JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot(), SMALL_SEGMENT_SIZE);
+        journal.append("a");
+        journal.append("b");
+
+        journal.ack(5);
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.bytes());
+        assertTrue(journal.peek(10).isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void segmentIsCreatedByFirstAppend() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        assertEquals(0, segments().length);
+        assertEquals(0, journal.oldestTimestamp());
+
+        final long before = System.currentTimeMillis();
+        journal.append("a");
+        assertEquals(1, segments().length);
+        assertTrue(journal.oldestTimestamp() >= before);
+
+        // a fully read journal keeps no segment until the next append
+        journal.ack(1);
+        assertEquals(0, segments().length);
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot());
+        assertTrue(journal.isEmpty());
+        journal.append("b");
+        assertEquals(Arrays.asList("b"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void removeOnlyTakesHead() throws Exception {
+        final JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        journal.append("a");
+        journal.append("b");
+
+        assertFalse(journal.remove("b"));
+        assertTrue(journal.remove("a"));
+        assertEquals(Arrays.asList("b"), journal.peek(10));
+        journal.close();
+    }
+
+    @Test
+    public void clearRemovesAllSegments() throws Exception {
+        JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot(), SMALL_SEGMENT_SIZE);
+        journal.append("a");
+        journal.append("b");
+        journal.clear();
+        assertTrue(journal.isEmpty());
+        assertEquals(0, segments().length);
+        journal.close();
+
+        journal = new JournalStoreBackend(folder.getRoot(), SMALL_SEGMENT_SIZE);
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void appendRejectsEmptyRecords() throws Exception {
+        final JournalStoreBackend journal = new JournalStoreBackend(folder.getRoot());
+        assertFalse(journal.append(null));
+        assertFalse(journal.append(""));
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    private File[] segments() {
+        final File[] files = folder.getRoot().listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith("segment-")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+}
@@ -0,0 +1,155 @@
+package com.mingbikes.acquisition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link Segmentation} and the {@link SymbolTable} it interns into.
+ */
+public class SegmentationTest {
+
+    private final SymbolTable symbols = new SymbolTable(SymbolTable.DEFAULT_CAPACITY);
+
+    @Test
+    public void equalsMapWithSamePairs() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put("screen", "home");
+        map.put("button", "start");
+        map.put("missing", null);
+
+        final Segmentation segmentation = Segmentation.of(map, symbols);
+        assertEquals(map, segmentation);
+        assertEquals(segmentation, map);
+        assertEquals(map.hashCode(), segmentation.hashCode());
+        assertEquals(3, segmentation.size());
+        assertEquals("home", segmentation.get("screen"));
+        assertTrue(segmentation.containsKey("missing"));
+        assertNull(segmentation.get("missing"));
+        assertFalse(segmentation.containsKey("other"));
+        assertNull(segmentation.get(1));
+    }
+
+    @Test
+    public void sortsPairsByName() throws Exception {
+        final Segmentation segmentation = Segmentation.of(new String[] {"c", "3", "a", "1", "b", "2"}, 6);
+        final List<String> names = new ArrayList<>();
+        for (Map.Entry<String, String> entry : segmentation.entrySet()) {
+            names.add(entry.getKey());
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), names);
+        assertEquals("a", segmentation.nameAt(0));
+        assertEquals("3", segmentation.valueAt(2));
+    }
+
+    @Test
+    public void laterPairReplacesEarlierOne() throws Exception {
+        final Segmentation segmentation = Segmentation.of(new String[] {"a", "1", "b", "2", "a", "3"}, 6);
+        assertEquals(2, segmentation.size());
+        assertEquals("3", segmentation.get("a"));
+    }
+
+    @Test
+    public void leavesOutNullNames() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put(null, "dropped");
+        map.put("kept", "value");
+
+        final Segmentation segmentation = Segmentation.of(map, symbols);
+        assertEquals(1, segmentation.size());
+        assertEquals("value", segmentation.get("kept"));
+        assertSame(Segmentation.EMPTY, Segmentation.of(new String[] {null, "dropped"}, 2));
+    }
+
+    @Test
+    public void ignoresPairsPastLength() throws Exception {
+        final Segmentation segmentation = Segmentation.of(new String[] {"a", "1", "b", "2"}, 2);
+        assertEquals(1, segmentation.size());
+        assertFalse(segmentation.containsKey("b"));
+    }
+
+    @Test
+    public void equalSegmentationsHaveEqualHashes() throws Exception {
+        final Segmentation first = Segmentation.of(new String[] {"a", "1", "b", null}, 4);
+        final Segmentation second = Segmentation.of(new String[] {"b", null, "a", "1"}, 4);
+        final Segmentation other = Segmentation.of(new String[] {"a", "1", "b", "2"}, 4);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, other);
+    }
+
+    @Test
+    public void copiesMapsOnlyOnce() throws Exception {
+        final Segmentation segmentation = Segmentation.of(new String[] {"a", "1"}, 2);
+        assertSame(segmentation, Segmentation.of(segmentation, symbols));
+        assertNull(Segmentation.of((Map<String, String>) null, symbols));
+    }
+
+    @Test
+    public void entrySetIsReadOnly() throws Exception {
+        final Segmentation segmentation = Segmentation.of(new String[] {"a", "1"}, 2);
+        try {
+            segmentation.put("b", "2");
+            fail("segmentation is immutable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            segmentation.entrySet().iterator().next().setValue("2");
+            fail("segmentation is immutable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void internsNamesAndValues() throws Exception {
+        final Map<String, String> map = new HashMap<>();
+        map.put(new String("name"), new String("value"));
+        final Segmentation first = Segmentation.of(map, symbols);
+
+        final Map<String, String> copy = new HashMap<>();
+        copy.put(new String("name"), new String("value"));
+        final Segmentation second = Segmentation.of(copy, symbols);
+
+        assertSame(first.nameAt(0), second.nameAt(0));
+        assertSame(first.valueAt(0), second.valueAt(0));
+    }
+
+    @Test
+    public void symbolTableInternsCharsLikeStrings() throws Exception {
+        final String value = symbols.intern(new String("symbol"));
+        final char[] chars = "xxsymbolxx".toCharArray();
+        assertSame(value, symbols.intern(chars, 2, 6));
+        assertSame(value, symbols.intern("symbol"));
+        assertNull(symbols.intern(null));
+    }
+
+    @Test
+    public void symbolTableSkipsLongStrings() throws Exception {
+        final char[] chars = new char[SymbolTable.MAX_LENGTH + 1];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+        assertSame(value, symbols.intern(value));
+        assertEquals(0, symbols.size());
+    }
+
+    @Test
+    public void symbolTableIsBounded() throws Exception {
+        final SymbolTable table = new SymbolTable(SymbolTable.STRIPES * 4);
+        for (int i = 0; i < 10000; i++) {
+            table.intern("symbol" + i);
+        }
+        assertTrue(table.size() <= SymbolTable.STRIPES * 4);
+
+        // a symbol still in the table is returned instead of the argument
+        final String kept = table.intern("kept");
+        assertSame(kept, table.intern(new String("kept")));
+    }
+}
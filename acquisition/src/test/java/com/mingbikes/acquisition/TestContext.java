@@ -0,0 +1,192 @@
+package com.mingbikes.acquisition;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Context backed by in-memory preferences and a files directory chosen by the test.
+ */
+class TestContext extends ContextWrapper {
+
+    private final Map<String, MemoryPreferences> mPreferences = new HashMap<>();
+    private final File mFilesDir;
+
+    TestContext(final File filesDir) {
+        super(null);
+        mFilesDir = filesDir;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(final String name, final int mode) {
+        MemoryPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new MemoryPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public synchronized String getString(final String key, final String defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(final String key, final Set<String> defValues) {
+            final Object value = mValues.get(key);
+            return value != null ? (Set<String>) value : defValues;
+        }
+
+        @Override
+        public synchronized int getInt(final String key, final int defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(final String key, final long defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public synchronized float getFloat(final String key, final float defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Float) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(final String key, final boolean defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Boolean) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(final String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+            // not needed by the tests
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+            // not needed by the tests
+        }
+
+        private class MemoryEditor implements Editor {
+
+            private final Map<String, Object> mPuts = new HashMap<>();
+            private final Set<String> mRemovals = new HashSet<>();
+            private boolean mClear;
+
+            @Override
+            public Editor putString(final String key, final String value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(final String key, final Set<String> values) {
+                mPuts.put(key, values != null ? new HashSet<>(values) : null);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(final String key, final int value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(final String key, final long value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(final String key, final float value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(final String key, final boolean value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(final String key) {
+                mRemovals.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (mClear) {
+                        mValues.clear();
+                    }
+                    for (String key : mRemovals) {
+                        mValues.remove(key);
+                    }
+                    for (Map.Entry<String, Object> put : mPuts.entrySet()) {
+                        if (put.getValue() != null) {
+                            mValues.put(put.getKey(), put.getValue());
+                        } else {
+                            mValues.remove(put.getKey());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
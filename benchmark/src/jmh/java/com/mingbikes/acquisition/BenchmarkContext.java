@@ -0,0 +1,153 @@
+package com.mingbikes.acquisition;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Context backed by in-memory preferences and a temporary files directory.
+ */
+class BenchmarkContext extends Context {
+
+    private final Map<String, MemoryPreferences> mPreferences = new HashMap<>();
+    private final File mFilesDir;
+
+    BenchmarkContext() throws IOException {
+        mFilesDir = File.createTempFile("acquisition", "bench");
+        if (!mFilesDir.delete() || !mFilesDir.mkdirs()) {
+            throw new IOException("cannot create " + mFilesDir);
+        }
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(final String name, final int mode) {
+        MemoryPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new MemoryPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    /**
+     * Deletes the files directory.
+     */
+    void delete() {
+        delete(mFilesDir);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public synchronized String getString(final String key, final String defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(final String key, final long defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public synchronized int getInt(final String key, final int defValue) {
+            final Object value = mValues.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(final String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        private class MemoryEditor implements Editor {
+
+            private final Map<String, Object> mPuts = new HashMap<>();
+            private final Set<String> mRemovals = new HashSet<>();
+            private boolean mClear;
+
+            @Override
+            public Editor putString(final String key, final String value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(final String key, final long value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(final String key, final int value) {
+                mPuts.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(final String key) {
+                mRemovals.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (mClear) {
+                        mValues.clear();
+                    }
+                    for (String key : mRemovals) {
+                        mValues.remove(key);
+                    }
+                    mValues.putAll(mPuts);
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.mingbikes.acquisition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Enqueue/dequeue churn on a connection queue holding a steady backlog, per store backend.
+ */
+@State(Scope.Thread)
+public class ConnectionChurnBenchmark {
+
+    @Param({"preferences", "journal"})
+    public String backend;
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private BenchmarkContext mContext;
+    private AcquisitionStore mStore;
+    private final ArrayDeque<String> mQueued = new ArrayDeque<>();
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mContext = new BenchmarkContext();
+        final StoreBackend storeBackend = "journal".equals(backend)
+                ? new JournalStoreBackend(new File(mContext.getFilesDir(), "journal"))
+                : new PreferencesStoreBackend(mContext.getSharedPreferences("ACQUISITION_STORE", 0));
+        mStore = new AcquisitionStore(mContext, storeBackend);
+        for (mNext = 0; mNext < size; mNext++) {
+            enqueue();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mContext.delete();
+    }
+
+    @Benchmark
+    public void addRemove() {
+        enqueue();
+        mStore.removeConnection(mQueued.poll());
+    }
+
+    private void enqueue() {
+        final String record = Fixtures.record(mNext++);
+        mStore.addConnection(record);
+        mQueued.add(record);
+    }
+}
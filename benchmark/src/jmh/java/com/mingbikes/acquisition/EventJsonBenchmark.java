@@ -0,0 +1,47 @@
+package com.mingbikes.acquisition;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Single event serialization: org.json object trees against the streaming writer and reader.
+ */
+@State(Scope.Thread)
+public class EventJsonBenchmark {
+
+    private Event mEvent;
+    private String mJson;
+    private final StringBuilder mBuilder = new StringBuilder(256);
+    private final EventJsonReader mReader = new EventJsonReader();
+
+    @Setup
+    public void setUp() {
+        mEvent = Fixtures.event(7);
+        mJson = mEvent.toJSON().toString();
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return mEvent.toJSON().toString();
+    }
+
+    @Benchmark
+    public StringBuilder streamingWrite() {
+        mBuilder.setLength(0);
+        return EventJsonWriter.write(mEvent, mBuilder);
+    }
+
+    @Benchmark
+    public Event fromJSON() throws JSONException {
+        return Event.fromJSON(new JSONObject(mJson));
+    }
+
+    @Benchmark
+    public Event streamingRead() {
+        return mReader.read(mJson, 0, mJson.length());
+    }
+}
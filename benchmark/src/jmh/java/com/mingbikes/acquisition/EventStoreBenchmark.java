@@ -0,0 +1,59 @@
+package com.mingbikes.acquisition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Joining and parsing the stored event list at different queue sizes.
+ */
+@State(Scope.Thread)
+public class EventStoreBenchmark {
+
+    private static final String DELIMITER = ":::";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private List<Event> mEvents;
+    private List<String> mRecords;
+    private BenchmarkContext mContext;
+    private AcquisitionStore mStore;
+
+    @Setup
+    public void setUp() throws IOException {
+        mEvents = Fixtures.events(size);
+        mRecords = Fixtures.records(size);
+        mContext = new BenchmarkContext();
+        mStore = new AcquisitionStore(mContext);
+        // write directly, addEvents() would stop at the store limit
+        mContext.getSharedPreferences("ACQUISITION_STORE", 0).edit()
+                .putString("EVENTS", AcquisitionStore.joinEvents(mEvents, DELIMITER)).commit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mContext.delete();
+    }
+
+    @Benchmark
+    public String join() {
+        return AcquisitionStore.join(mRecords, DELIMITER);
+    }
+
+    @Benchmark
+    public String joinEvents() {
+        return AcquisitionStore.joinEvents(mEvents, DELIMITER);
+    }
+
+    @Benchmark
+    public List<Event> eventsList() {
+        return mStore.eventsList();
+    }
+}
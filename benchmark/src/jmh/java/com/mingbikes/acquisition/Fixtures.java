@@ -0,0 +1,71 @@
+package com.mingbikes.acquisition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Event and record shapes resembling real traffic.
+ */
+final class Fixtures {
+
+    private static final String[] KEYS = {"button_press", "screen_view", "sensor_tick", "ride_start", "ride_end"};
+    private static final String[] SCREENS = {"main", "map", "settings", "wallet"};
+
+    private Fixtures() {}
+
+    static Event event(final int i) {
+        final Event event = new Event();
+        event.key = KEYS[i % KEYS.length];
+        event.count = 1 + i % 3;
+        event.sum = i % 2 == 0 ? 0 : i * 0.25;
+        event.timestamp = 1500000000000L + i * 1000L;
+        event.seq = i;
+        final Map<String, String> segmentation = new HashMap<>();
+        segmentation.put("screen", SCREENS[i % SCREENS.length]);
+        segmentation.put("network", i % 3 == 0 ? "wifi" : "cellular");
+        event.segmentation = segmentation;
+        return event;
+    }
+
+    static List<Event> events(final int count) {
+        final List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(event(i));
+        }
+        return events;
+    }
+
+    static String record(final int i) {
+        return EventJsonWriter.write(event(i), new StringBuilder()).toString();
+    }
+
+    /**
+     * Returns stored records the way Acquisition.sendEvents writes them: JSON arrays of events.
+     */
+    static List<String> eventRecords(final int count, final int eventsPerRecord) {
+        final List<String> records = new ArrayList<>(count);
+        final StringBuilder builder = new StringBuilder(256 * eventsPerRecord);
+        for (int i = 0; i < count; i++) {
+            builder.setLength(0);
+            builder.append('[');
+            for (int j = 0; j < eventsPerRecord; j++) {
+                if (j > 0) {
+                    builder.append(',');
+                }
+                EventJsonWriter.write(event(i * eventsPerRecord + j), builder);
+            }
+            records.add(builder.append(']').toString());
+        }
+        return records;
+    }
+
+    static List<String> records(final int count) {
+        final List<String> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+}
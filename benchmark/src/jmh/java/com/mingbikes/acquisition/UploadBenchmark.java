@@ -0,0 +1,110 @@
+package com.mingbikes.acquisition;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draining a stored backlog through HttpConnectionProcessor, either against an in-process HTTP
+ * server or a loopback transport that simulates a 1 MB/s link with 20 ms latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UploadBenchmark {
+
+    @Param({"100", "1000"})
+    public int backlog;
+
+    @Param({"1", "50"})
+    public int batchRecords;
+
+    @Param({"-1", "1024"})
+    public int compressionThreshold;
+
+    @Param({"1", "4"})
+    public int inFlightWindow;
+
+    @Param({"http", "loopback"})
+    public String transport;
+
+    private HttpServer mServer;
+    private Transport mTransport;
+    private ExecutorService mInFlightExecutor;
+    private UploadSettings mSettings;
+    private BenchmarkContext mContext;
+    private AcquisitionStore mStore;
+    private List<String> mRecords;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream body = exchange.getRequestBody();
+                final byte[] buffer = new byte[8192];
+                while (body.read(buffer) != -1) {
+                    // drain the request
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newFixedThreadPool(4));
+        mServer.start();
+        if ("loopback".equals(transport)) {
+            mTransport = new LoopbackTransport(42).setLatency(20, 20).setThroughput(1024 * 1024);
+        } else {
+            mTransport = HttpConnectionProcessor.transportFor("http://127.0.0.1:" + mServer.getAddress().getPort());
+        }
+        mInFlightExecutor = Executors.newCachedThreadPool();
+        mSettings = new UploadSettings();
+        mSettings.maxBatchRecords = batchRecords;
+        mSettings.compressionThreshold = compressionThreshold;
+        mSettings.inFlightWindow = inFlightWindow;
+        mContext = new BenchmarkContext();
+        mStore = new AcquisitionStore(mContext);
+        mRecords = Fixtures.records(backlog);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillStore() {
+        for (String record : mRecords) {
+            mStore.addConnection(record);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        mTransport.close();
+        mInFlightExecutor.shutdown();
+        mServer.stop(0);
+        mContext.delete();
+    }
+
+    @Benchmark
+    public int drain() {
+        new HttpConnectionProcessor(mStore, mTransport, mSettings, mInFlightExecutor, null).run();
+        return mStore.connections().length;
+    }
+}
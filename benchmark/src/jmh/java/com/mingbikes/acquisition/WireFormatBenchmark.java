@@ -0,0 +1,86 @@
+package com.mingbikes.acquisition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding one upload batch as JSON or in the compact binary format.
+ *
+ * The batch comes from a recorded corpus, one stored record per line, when the system property
+ * acquisition.corpus names one, otherwise from synthetic records. The payload sizes of both
+ * formats, raw and gzip compressed, are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+
+    @Param({"JSON_ARRAY", "COMPACT_BINARY"})
+    public BatchFormat format;
+
+    @Param({"50"})
+    public int batchRecords;
+
+    private List<String> mRecords;
+    private final CompactEventCodec mCodec = new CompactEventCodec();
+
+    @Setup
+    public void loadCorpus() throws IOException {
+        final String corpus = System.getProperty("acquisition.corpus");
+        final List<String> records = corpus != null ? readCorpus(corpus) : Fixtures.eventRecords(batchRecords, 10);
+        mRecords = records.subList(0, Math.min(batchRecords, records.size()));
+    }
+
+    @Benchmark
+    public Object encode() {
+        if (format.isBinary()) {
+            return mCodec.encode(mRecords, null);
+        }
+        return format.join(mRecords);
+    }
+
+    @TearDown
+    public void reportSizes() throws IOException {
+        final byte[] json = BatchFormat.JSON_ARRAY.join(mRecords).getBytes("UTF-8");
+        final byte[] compact = mCodec.encode(mRecords, null);
+        System.out.println();
+        System.out.println("json " + json.length + " B, gzip " + gzipLength(json) + " B; compact "
+                + compact.length + " B, gzip " + gzipLength(compact) + " B; ratio "
+                + String.format("%.2f", json.length / (double) compact.length));
+    }
+
+    private static List<String> readCorpus(final String path) throws IOException {
+        final List<String> records = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    records.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private static int gzipLength(final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.size();
+    }
+}
@@ -0,0 +1,27 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the Android Context, benchmarks override what they use.
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        throw new UnsupportedOperationException();
+    }
+
+    public File getFilesDir() {
+        throw new UnsupportedOperationException();
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+package android.content;
+
+/**
+ * JVM stand-in for the Android Intent, carries no extras.
+ */
+public class Intent {
+
+    public static final String ACTION_BATTERY_CHANGED = "android.intent.action.BATTERY_CHANGED";
+
+    public int getIntExtra(String name, int defaultValue) {
+        return defaultValue;
+    }
+}
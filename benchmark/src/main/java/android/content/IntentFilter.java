@@ -0,0 +1,10 @@
+package android.content;
+
+/**
+ * JVM stand-in for the Android IntentFilter.
+ */
+public class IntentFilter {
+
+    public IntentFilter(String action) {
+    }
+}
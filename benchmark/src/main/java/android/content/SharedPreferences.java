@@ -0,0 +1,38 @@
+package android.content;
+
+import java.util.Map;
+
+/**
+ * JVM stand-in for the Android SharedPreferences interface.
+ */
+public interface SharedPreferences {
+
+    String getString(String key, String defValue);
+
+    long getLong(String key, long defValue);
+
+    int getInt(String key, int defValue);
+
+    boolean contains(String key);
+
+    Map<String, ?> getAll();
+
+    Editor edit();
+
+    interface Editor {
+
+        Editor putString(String key, String value);
+
+        Editor putLong(String key, long value);
+
+        Editor putInt(String key, int value);
+
+        Editor remove(String key);
+
+        Editor clear();
+
+        boolean commit();
+
+        void apply();
+    }
+}
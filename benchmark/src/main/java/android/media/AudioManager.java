@@ -0,0 +1,9 @@
+package android.media;
+
+/**
+ * JVM stand-in for the Android AudioManager constants.
+ */
+public class AudioManager {
+
+    public static final String RINGER_MODE_CHANGED_ACTION = "android.media.RINGER_MODE_CHANGED";
+}
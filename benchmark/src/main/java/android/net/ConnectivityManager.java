@@ -0,0 +1,9 @@
+package android.net;
+
+/**
+ * JVM stand-in for the Android ConnectivityManager constants.
+ */
+public class ConnectivityManager {
+
+    public static final String CONNECTIVITY_ACTION = "android.net.conn.CONNECTIVITY_CHANGE";
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android Build constants.
+ */
+public class Build {
+
+    public static final String MODEL = "jvm";
+    public static final String MANUFACTURER = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = 25;
+        public static final String RELEASE = "7.1";
+    }
+
+    public static class VERSION_CODES {
+        public static final int FROYO = 8;
+        public static final int GINGERBREAD = 9;
+        public static final int JELLY_BEAN_MR1 = 17;
+        public static final int LOLLIPOP = 21;
+        public static final int N = 24;
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * JVM stand-in for the Android SystemClock, the JVM has no time since boot so the monotonic
+ * clock is used.
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
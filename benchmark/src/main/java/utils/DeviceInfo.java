@@ -0,0 +1,86 @@
+package utils;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * JVM stand-in for the device probes, returns fixed values of a typical phone.
+ */
+public class DeviceInfo {
+
+    public static String getDevice() {
+        return "Pixel";
+    }
+
+    public static String getOS() {
+        return "Android";
+    }
+
+    public static String getOSVersion() {
+        return "7.1";
+    }
+
+    public static String getAppVersion(Context context) {
+        return "1.0";
+    }
+
+    public static String getManufacturer() {
+        return "Google";
+    }
+
+    public static String getCpu() {
+        return "arm64-v8a";
+    }
+
+    public static String getOpenGL(Context context) {
+        return "3";
+    }
+
+    public static String getDensity(Context context) {
+        return "XXHDPI";
+    }
+
+    public static String getRamTotal(Context context) {
+        return "3840";
+    }
+
+    public static String isRooted() {
+        return "false";
+    }
+
+    public static String getBatteryLevel(Intent intent) {
+        return "80.0";
+    }
+
+    public static String isOnline(Context context) {
+        return "true";
+    }
+
+    public static String isMetered(Context context) {
+        return "false";
+    }
+
+    public static String isMuted(Context context) {
+        return "false";
+    }
+
+    public static String getOrientation(Context context) {
+        return "Portrait";
+    }
+
+    public static String getDiskCurrent() {
+        return "12000";
+    }
+
+    public static String getDiskTotal() {
+        return "24000";
+    }
+
+    public static String getRamCurrent(Context context) {
+        return "1900";
+    }
+
+    public static String getRunningTime() {
+        return "60";
+    }
+}